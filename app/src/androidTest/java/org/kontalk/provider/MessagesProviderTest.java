@@ -110,6 +110,32 @@ public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
         assertQueryCount(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), 0);
     }
 
+    @Test
+    public void testThreadCounters() {
+        Uri msg1 = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "First message", true, 0);
+        assertNotNull(msg1);
+        Uri msg2 = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Second message", true, 0);
+        assertNotNull(msg2);
+        long threadId = MessagesProviderClient.getThreadByMessage(getMockContext(), msg1);
+        Uri threadUri = ContentUris.withAppendedId(Threads.CONTENT_URI, threadId);
+        assertQueryValues(threadUri,
+            Threads.COUNT, "2",
+            Threads.UNREAD, "0");
+
+        MessagesProviderClient.deleteMessage(getMockContext(), ContentUris.parseId(msg2));
+        assertQueryValues(threadUri,
+            Threads.COUNT, "1");
+
+        MessagesProvider.repairThreadCounters(getMockContext());
+        assertQueryValues(threadUri,
+            Threads.COUNT, "1",
+            Threads.UNREAD, "0");
+
+        MessagesProviderClient.deleteThread(getMockContext(), threadId, false);
+    }
+
     @Test
     public void testCreateGroup() {
         String groupId = StringUtils.randomString(20);
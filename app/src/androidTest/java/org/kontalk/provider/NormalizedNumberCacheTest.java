@@ -0,0 +1,176 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+
+import static org.junit.Assert.*;
+
+
+@RunWith(AndroidJUnit4.class)
+public class NormalizedNumberCacheTest {
+
+    private static final String MY_NUMBER = "+15555215554";
+    private static final String MY_NUMBER_IT = "+393375423981";
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(NormalizedNumberCache.SCHEMA_NUMBERS);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    private NormalizedNumberCache open(String myNumber) {
+        NormalizedNumberCache cache = new NormalizedNumberCache(mContext, myNumber);
+        cache.load(mDb);
+        return cache;
+    }
+
+    private long countRows() {
+        return mDb.compileStatement("SELECT COUNT(*) FROM " +
+            NormalizedNumberCache.TABLE_NUMBERS).simpleQueryForLong();
+    }
+
+    @Test
+    public void testHits() {
+        NormalizedNumberCache cache = open(MY_NUMBER);
+        String[] first = cache.normalize("(555) 521-5556");
+        assertNotNull(first);
+        assertEquals("+15555215556", first[0]);
+        // same number again in the same resync
+        assertArrayEquals(first, cache.normalize("(555) 521-5556"));
+        assertEquals(1, cache.getMissCount());
+        cache.save(mDb, true);
+        assertEquals(1, countRows());
+
+        cache = open(MY_NUMBER);
+        assertArrayEquals(first, cache.normalize("(555) 521-5556"));
+        assertEquals(0, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testInvalidNumber() {
+        NormalizedNumberCache cache = open(MY_NUMBER);
+        assertNull(cache.normalize("not a number"));
+        cache.save(mDb, true);
+
+        // invalid numbers are cached too
+        cache = open(MY_NUMBER);
+        assertNull(cache.normalize("not a number"));
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testRegionChange() {
+        NormalizedNumberCache cache = open(MY_NUMBER);
+        assertEquals("+15555215556", cache.normalize("5555215556")[0]);
+        cache.save(mDb, true);
+
+        // same raw number, different region: not a hit
+        cache = open(MY_NUMBER_IT);
+        assertNotEquals(open(MY_NUMBER).getRegion(), cache.getRegion());
+        String[] entry = cache.normalize("3375423982");
+        assertEquals("+393375423982", entry[0]);
+        assertNotNull(cache.normalize("5555215556"));
+        assertEquals(2, cache.getMissCount());
+        cache.save(mDb, true);
+
+        // rows of the old region were dropped
+        assertEquals(2, countRows());
+        cache = open(MY_NUMBER);
+        cache.normalize("5555215556");
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testStaleRows() {
+        NormalizedNumberCache cache = open(MY_NUMBER);
+        cache.normalize("5555215556");
+        cache.normalize("5555215557");
+        cache.save(mDb, true);
+        assertEquals(2, countRows());
+
+        // second number removed from the address book
+        cache = open(MY_NUMBER);
+        cache.normalize("5555215556");
+        assertEquals(0, cache.getMissCount());
+        cache.save(mDb, true);
+        // used entries are carried forward, stale ones dropped
+        assertEquals(1, countRows());
+
+        cache = open(MY_NUMBER);
+        assertNotNull(cache.normalize("5555215556"));
+        assertNotNull(cache.normalize("5555215557"));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testPartialSave() {
+        NormalizedNumberCache cache = open(MY_NUMBER);
+        cache.normalize("5555215556");
+        cache.save(mDb, true);
+
+        // incremental resync: only a new number is seen
+        cache = open(MY_NUMBER);
+        cache.normalize("5555215557");
+        cache.save(mDb, false);
+        // numbers not seen are kept
+        assertEquals(2, countRows());
+
+        cache = open(MY_NUMBER);
+        assertNotNull(cache.normalize("5555215556"));
+        assertNotNull(cache.normalize("5555215557"));
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testUnchangedSave() {
+        NormalizedNumberCache cache = open(MY_NUMBER);
+        cache.normalize("5555215556");
+        cache.save(mDb, true);
+
+        cache = open(MY_NUMBER);
+        cache.normalize("5555215556");
+        // nothing to write: rows must be kept as they are
+        mDb.execSQL("UPDATE " + NormalizedNumberCache.TABLE_NUMBERS + " SET hash = 'marker'");
+        cache.save(mDb, true);
+        assertEquals(1, mDb.compileStatement("SELECT COUNT(*) FROM " +
+            NormalizedNumberCache.TABLE_NUMBERS + " WHERE hash = 'marker'").simpleQueryForLong());
+    }
+
+}
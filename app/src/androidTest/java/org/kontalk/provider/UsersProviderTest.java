@@ -494,6 +494,20 @@ public class UsersProviderTest extends ProviderTestCase2<UsersProvider> {
         getMockContentResolver().delete(MyUsers.Keys.getUri(TEST_USERID, testFingerprint), null, null);
     }
 
+    @Test
+    public void testDeleteInvalidatesKeyCache() throws IOException, PGPException {
+        byte[] keydata = Base64.decode(TEST_KEYDATA, Base64.DEFAULT);
+        PGPPublicKeyRing originalKey = PGP.readPublicKeyring(keydata);
+        Keyring.setKey(getMockContext(), TEST_USERID, keydata);
+        // load the key into the cache
+        assertNotNull(Keyring.getPublicKey(getMockContext(), TEST_USERID, MyUsers.Keys.TRUST_UNKNOWN));
+
+        // delete the key directly through the provider
+        String testFingerprint = PGP.getFingerprint(originalKey.getPublicKey());
+        getMockContentResolver().delete(MyUsers.Keys.getUri(TEST_USERID, testFingerprint), null, null);
+        assertNull(Keyring.getPublicKey(getMockContext(), TEST_USERID, MyUsers.Keys.TRUST_UNKNOWN));
+    }
+
     private void assertQuery(Uri uri) {
         Cursor c = getMockContentResolver().query(uri, null, null, null, null);
         assertNotNull(c);
@@ -45,6 +45,7 @@ import android.support.annotation.RequiresApi;
 import android.support.multidex.MultiDexApplication;
 
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.ConnectionWarmup;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
@@ -185,6 +186,10 @@ public class Kontalk extends MultiDexApplication {
             Log.w(TAG, "Unable to install PRNG fix - ignoring", e);
         }
 
+        // prepare for connecting while we initialize the rest
+        if (Authenticator.getDefaultAccount(this) != null)
+            ConnectionWarmup.preload(this);
+
         // init contacts
         Contact.init(this, new Handler());
 
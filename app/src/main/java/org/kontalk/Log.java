@@ -27,6 +27,7 @@ import java.util.Locale;
 
 import android.content.Context;
 
+import org.kontalk.util.AsyncLogWriter;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.RotatingFileWriter;
 import org.kontalk.util.SystemUtils;
@@ -41,30 +42,71 @@ public final class Log {
 
     private static final String LOG_DIRECTORY = "debug";
     private static final String LOG_FILENAME = "kontalk-android.log";
-    private static DateFormat DATE_FORMAT;  // created on demand
+    private static final String LOG_EXPORT_FILENAME = "kontalk-android-export.log";
+    private static volatile DateFormat DATE_FORMAT;  // created on demand
+
+    /** Max number of lines waiting to be written in async mode. */
+    private static final int ASYNC_BUFFER_SIZE = 4096;
 
     /** A lock to fight race conditions when switching the debug log on and off. */
     private static final Object sDebugLock = new Object();
 
-    private static RotatingFileWriter sLogFileWriter;
+    /** Synchronous writer, used if async mode is disabled. */
+    private static volatile RotatingFileWriter sLogFileWriter;
+    /** Asynchronous writer, used by default. */
+    private static volatile AsyncLogWriter sAsyncLogWriter;
     private static File sLogFile;
 
+    private static boolean sAsyncEnabled = true;
+    private static AsyncLogWriter.OverflowPolicy sOverflowPolicy = AsyncLogWriter.OverflowPolicy.DROP_OLDEST;
+
+    /** Cached formatted timestamp for the current second. */
+    private static volatile Timestamp sTimestamp;
+
+    private static final class Timestamp {
+        final long second;
+        final String text;
+
+        Timestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Configures the debug log file output. Takes effect on next {@link #init}.
+     * @param async true to write the log file from a background thread
+     * @param overflowPolicy what to do when the async buffer is full
+     */
+    public static void configure(boolean async, AsyncLogWriter.OverflowPolicy overflowPolicy) {
+        synchronized (sDebugLock) {
+            sAsyncEnabled = async;
+            sOverflowPolicy = overflowPolicy;
+        }
+    }
+
     public static void init(Context context) {
         try {
             synchronized (sDebugLock) {
                 if (Preferences.isDebugLogEnabled(context)) {
-                    DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+                    // writer might already be running
+                    closeWriters(false);
+
+                    if (DATE_FORMAT == null)
+                        DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
                     File logDir = new File(context.getCacheDir(), LOG_DIRECTORY);
                     logDir.mkdirs();
                     sLogFile = new File(logDir, LOG_FILENAME);
-                    sLogFileWriter = new RotatingFileWriter(sLogFile);
+                    RotatingFileWriter writer = new RotatingFileWriter(sLogFile);
+                    if (sAsyncEnabled)
+                        sAsyncLogWriter = new AsyncLogWriter(writer, ASYNC_BUFFER_SIZE, sOverflowPolicy);
+                    else
+                        sLogFileWriter = writer;
                 }
                 else {
-                    if (sLogFileWriter != null) {
-                        sLogFileWriter.abort();
-                        sLogFileWriter = null;
-                    }
-                    DATE_FORMAT = null;
+                    closeWriters(true);
+                    new File(new File(context.getCacheDir(), LOG_DIRECTORY),
+                        LOG_EXPORT_FILENAME).delete();
                 }
             }
         }
@@ -73,12 +115,56 @@ public final class Log {
         }
     }
 
+    private static void closeWriters(boolean delete) throws IOException {
+        if (sAsyncLogWriter != null) {
+            AsyncLogWriter writer = sAsyncLogWriter;
+            sAsyncLogWriter = null;
+            if (delete)
+                writer.abort();
+            else
+                writer.close();
+        }
+        if (sLogFileWriter != null) {
+            RotatingFileWriter writer = sLogFileWriter;
+            sLogFileWriter = null;
+            if (delete)
+                writer.abort();
+            else
+                writer.close();
+        }
+    }
+
+    /** Number of lines dropped by the async writer because its buffer was full. */
+    public static long getDroppedCount() {
+        AsyncLogWriter writer = sAsyncLogWriter;
+        return writer != null ? writer.getDroppedCount() : 0;
+    }
+
     public static File getLogFile() {
         return sLogFile;
     }
 
+    /**
+     * Stitches all log segments into a separate file for sending.
+     * @return the exported file, or null if there is no log
+     */
+    public static File exportLogFile() {
+        File logFile = sLogFile;
+        if (logFile != null) {
+            try {
+                File exportFile = new File(logFile.getParentFile(), LOG_EXPORT_FILENAME);
+                if (RotatingFileWriter.export(logFile, exportFile) > 0)
+                    return exportFile;
+            }
+            catch (IOException e) {
+                w(Kontalk.TAG, "unable to export log file", e);
+            }
+        }
+        return null;
+    }
+
     public static boolean isDebug() {
-        return BuildConfig.DEBUG || sLogFileWriter != null;
+        return BuildConfig.DEBUG || sLogFileWriter != null || sAsyncLogWriter != null;
     }
 
     private static String buildLog(String tag, int level, String msg) {
@@ -103,14 +189,34 @@ public final class Log {
                 strLevel = "?";
                 break;
         }
-        String timestamp;
-        synchronized (DATE_FORMAT) {
-            timestamp = DATE_FORMAT.format(new Date());
+        return formatTimestamp() + " " + strLevel + "/" + tag + ": " + msg;
+    }
+
+    /** Formats the current time, only once per second. */
+    private static String formatTimestamp() {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        Timestamp cached = sTimestamp;
+        if (cached == null || cached.second != second) {
+            DateFormat format = DATE_FORMAT;
+            String text;
+            synchronized (format) {
+                text = format.format(new Date(now));
+            }
+            cached = new Timestamp(second, text);
+            sTimestamp = cached;
         }
-        return timestamp + " " + strLevel + "/" + tag + ": " + msg;
+        return cached.text;
     }
 
     private static void log(String tag, int level, Throwable tr) {
+        AsyncLogWriter async = sAsyncLogWriter;
+        if (async != null) {
+            if (tr != null)
+                async.println(buildLog(tag, level, android.util.Log.getStackTraceString(tr)));
+            return;
+        }
+
         synchronized (sDebugLock) {
             if (sLogFileWriter != null && tr != null) {
                 log(tag, level, android.util.Log.getStackTraceString(tr));
@@ -119,6 +225,13 @@ public final class Log {
     }
 
     private static void log(String tag, int level, String msg) {
+        AsyncLogWriter async = sAsyncLogWriter;
+        if (async != null) {
+            // formatted here, written by the background thread
+            async.println(buildLog(tag, level, msg));
+            return;
+        }
+
         synchronized (sDebugLock) {
             if (sLogFileWriter != null) {
                 try {
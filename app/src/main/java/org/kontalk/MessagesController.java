@@ -18,9 +18,14 @@
 
 package org.kontalk;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
@@ -75,6 +80,7 @@ import org.kontalk.service.msgcenter.event.GroupCreatedEvent;
 import org.kontalk.service.msgcenter.event.RosterLoadedEvent;
 import org.kontalk.service.msgcenter.event.SendDeliveryReceiptRequest;
 import org.kontalk.service.msgcenter.event.SendMessageRequest;
+import org.kontalk.service.msgcenter.event.SendMessagesRequest;
 import org.kontalk.service.msgcenter.event.SetUserPrivacyRequest;
 import org.kontalk.service.msgcenter.event.UploadAttachmentRequest;
 import org.kontalk.service.msgcenter.event.UploadServiceFoundEvent;
@@ -314,6 +320,68 @@ public class MessagesController {
      * Process an incoming message.
      */
     public Uri incoming(CompositeMessage msg) {
+        ContentValues values = prepareIncoming(msg);
+
+        // will be null if something went wrong
+        Uri msgUri = MessagesProviderClient.newIncomingMessage(mContext, values);
+
+        GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
+        if (groupInfo == null) {
+            markRegistered(Collections.singleton(msg.getSender(true)));
+        }
+
+        if (msgUri != null)
+            notifyIncoming(Collections.singletonList(msg));
+
+        autodownload(msg, msgUri);
+        return msgUri;
+    }
+
+    /**
+     * Process a batch of incoming messages, storing them in a single
+     * transaction. Used when many messages are coming in at once (e.g.
+     * offline messages).
+     * @return the message URIs, in the same order as the given messages (null for duplicates)
+     */
+    public Uri[] incoming(List<CompositeMessage> messages) {
+        ContentValues[] values = new ContentValues[messages.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = prepareIncoming(messages.get(i));
+        }
+
+        Uri[] msgUris = MessagesProviderClient.newIncomingMessages(mContext, values);
+
+        Set<String> senders = new HashSet<>();
+        List<CompositeMessage> stored = new LinkedList<>();
+        for (int i = 0; i < msgUris.length; i++) {
+            CompositeMessage msg = messages.get(i);
+            if (msg.getComponent(GroupComponent.class) == null)
+                senders.add(msg.getSender(true));
+
+            if (msgUris[i] != null)
+                stored.add(msg);
+
+            autodownload(msg, msgUris[i]);
+        }
+
+        markRegistered(senders);
+        notifyIncoming(stored);
+
+        return msgUris;
+    }
+
+    /** Returns true if the message should fire a notification. */
+    private boolean isNotifiable(CompositeMessage msg) {
+        GroupCommandComponent group = msg.getComponent(GroupCommandComponent.class);
+        // notify for 1-to-1 messages and group creation and part group commands
+        return (group == null || group.isCreateCommand() || group.isPartCommand());
+    }
+
+    /**
+     * Builds the content values for storing an incoming message.
+     * Group commands are applied to the database here.
+     */
+    private ContentValues prepareIncoming(CompositeMessage msg) {
         final String sender = msg.getSender(true);
 
         // save to local storage
@@ -324,8 +392,7 @@ public class MessagesController {
         MessageUtils.fillContentValues(values, msg);
 
         GroupCommandComponent group = msg.getComponent(GroupCommandComponent.class);
-        // notify for 1-to-1 messages and group creation and part group commands
-        boolean notify = (group == null || group.isCreateCommand() || group.isPartCommand());
+        boolean notify = isNotifiable(msg);
 
         values.put(MyMessages.Messages.STATUS, msg.getStatus());
         // group commands don't get notifications
@@ -426,36 +493,62 @@ public class MessagesController {
             }
         }
 
-        // will be null if something went wrong
-        Uri msgUri = MessagesProviderClient.newIncomingMessage(mContext, values);
+        return values;
+    }
 
-        if (groupInfo == null) {
-            // mark sender as registered in the users database
-            final Context context = mContext.getApplicationContext();
-            new Thread(new Runnable() {
-                public void run() {
+    /** Marks the given users as registered in the users database. */
+    private void markRegistered(final Collection<String> users) {
+        if (users.isEmpty())
+            return;
+
+        final Context context = mContext.getApplicationContext();
+        new Thread(new Runnable() {
+            public void run() {
+                for (String user : users) {
                     try {
-                        UsersProvider.markRegistered(context, sender);
-                    } catch (SQLiteConstraintException e) {
+                        UsersProvider.markRegistered(context, user);
+                    }
+                    catch (SQLiteConstraintException e) {
                         // this might happen during an online/offline switch
                     }
                 }
-            }).start();
+            }
+        }).start();
+    }
+
+    /** Fires a single notification for the given stored incoming messages. */
+    private void notifyIncoming(Collection<CompositeMessage> messages) {
+        boolean notify = false, sound = false;
+        for (CompositeMessage msg : messages) {
+            if (!isNotifiable(msg))
+                continue;
+
+            // fire notification only if the conversation is not open already
+            GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
+            String paused = groupInfo != null ? groupInfo.getContent().getJid().toString() : msg.getSender(true);
+            if (!MessagingNotification.isPaused(paused))
+                notify = true;
+            else
+                sound = true;
         }
 
-        // fire notification only if message was actually inserted to database
-        // and the conversation is not open already
-        String paused = groupInfo != null ? groupInfo.getContent().getJid().toString() : sender;
-        if (notify && msgUri != null) {
-            if (!MessagingNotification.isPaused(paused)) {
-                // update notifications (delayed)
-                MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
-            }
-            else {
-                // play in-conversation sound
-                MediaStorage.playNotificationSound(mContext.getApplicationContext(), R.raw.sound_incoming);
-            }
+        if (notify) {
+            // update notifications (delayed)
+            MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
         }
+        else if (sound) {
+            // play in-conversation sound
+            MediaStorage.playNotificationSound(mContext.getApplicationContext(), R.raw.sound_incoming);
+        }
+    }
+
+    /** Starts the download of the message attachment if needed. */
+    private void autodownload(CompositeMessage msg, Uri msgUri) {
+        if (msgUri == null)
+            return;
+
+        String sender = msg.getSender(true);
+        GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
 
         // check if we need to autodownload
         @SuppressWarnings("unchecked")
@@ -481,8 +574,6 @@ public class MessagesController {
                 break;
             }
         }
-
-        return msgUri;
     }
 
     private final class MessageCenterListener extends BroadcastReceiver {
@@ -689,35 +780,27 @@ public class MessagesController {
     private void resendPendingMessages(boolean retrying, boolean forcePending, String to) {
         String[] filterArgs = null;
 
+        // list the statuses explicitly so the (direction, status) index can be used
         StringBuilder filter = new StringBuilder()
             .append(MyMessages.Messages.DIRECTION)
             .append('=')
             .append(MyMessages.Messages.DIRECTION_OUT)
             .append(" AND ")
             .append(MyMessages.Messages.STATUS)
-            .append("<>")
-            .append(MyMessages.Messages.STATUS_SENT)
-            .append(" AND ")
-            .append(MyMessages.Messages.STATUS)
-            .append("<>")
-            .append(MyMessages.Messages.STATUS_RECEIVED)
-            .append(" AND ")
-            .append(MyMessages.Messages.STATUS)
-            .append("<>")
-            .append(MyMessages.Messages.STATUS_NOTDELIVERED)
-            .append(" AND ")
-            .append(MyMessages.Messages.STATUS)
-            .append("<>")
-            .append(MyMessages.Messages.STATUS_QUEUED);
-
-
-        // filter out pending messages
-        if (!forcePending) filter
-            .append(" AND ")
-            .append(MyMessages.Messages.STATUS)
-            .append("<>")
+            .append(" IN (")
+            .append(MyMessages.Messages.STATUS_SENDING)
+            .append(',')
+            .append(MyMessages.Messages.STATUS_ERROR)
+            .append(',')
+            .append(MyMessages.Messages.STATUS_NOTACCEPTED);
+
+        // include pending user review messages if requested
+        if (forcePending) filter
+            .append(',')
             .append(MyMessages.Messages.STATUS_PENDING);
 
+        filter.append(')');
+
         // filter out non-media non-uploaded messages
         if (retrying) filter
             .append(" AND ")
@@ -759,6 +842,9 @@ public class MessagesController {
         // a list of messages to be deleted
         List<Long> messagesToDelete = new LinkedList<>();
 
+        // messages to be sent, grouped by conversation in cursor order
+        Map<String, List<Long>> batches = new LinkedHashMap<>();
+
         while (c.moveToNext()) {
             // TODO constants for column indexes
             long id = c.getLong(0);
@@ -821,16 +907,29 @@ public class MessagesController {
 
             Log.v(TAG, "resending pending message " + id);
 
-            Object event;
             // non-uploaded media messages must follow another path
             if (attFileUri != null && attFetchUrl == null) {
-                event = new UploadAttachmentRequest(id);
+                MessageCenterService.bus().post(new UploadAttachmentRequest(id));
             }
             else {
-                event = new SendMessageRequest(id);
+                List<Long> batch = batches.get(peer);
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    batches.put(peer, batch);
+                }
+                batch.add(id);
             }
+        }
 
-            MessageCenterService.bus().post(event);
+        // one request per conversation, so context is loaded only once
+        for (Map.Entry<String, List<Long>> batch : batches.entrySet()) {
+            List<Long> ids = batch.getValue();
+            long[] databaseIds = new long[ids.size()];
+            for (int i = 0; i < databaseIds.length; i++)
+                databaseIds[i] = ids.get(i);
+
+            MessageCenterService.bus()
+                .post(new SendMessagesRequest(batch.getKey(), databaseIds));
         }
 
         // very inefficient, but it rarely happens
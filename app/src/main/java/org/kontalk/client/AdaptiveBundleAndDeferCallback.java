@@ -0,0 +1,177 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+import org.kontalk.client.smack.BundleAndDefer;
+import org.kontalk.client.smack.BundleAndDeferCallback;
+
+
+/**
+ * Adaptive bundle and defer policy for outgoing stanzas.
+ * Stanzas which are not urgent (receipts, chat states, presence) are held
+ * back for a while so they can be written together with other stanzas,
+ * instead of waking up the cellular radio for each one of them. Stanzas
+ * waited for by the user (messages, IQs) are sent immediately, together with
+ * anything queued before them. Nothing is deferred if the radio is already
+ * awake because of recent traffic.
+ * @author Daniele Ricci
+ */
+public class AdaptiveBundleAndDeferCallback implements BundleAndDeferCallback {
+
+    /** Defer period on mobile networks. */
+    static final int MOBILE_DEFER_MILLIS = 10000;
+    /** Defer period on other networks, just to coalesce bursts. */
+    static final int DEFAULT_DEFER_MILLIS = 500;
+    /** Time the radio is supposed to stay in high power state after traffic. */
+    static final long RADIO_TAIL_MILLIS = 5000;
+
+    /** True if the current network is a mobile network. */
+    private static volatile boolean sMobileNetwork;
+
+    /** Urgent stanzas and nonzas queued but not yet written. */
+    private final AtomicInteger mPendingUrgent = new AtomicInteger();
+    /** Time of the last traffic in either direction. */
+    private volatile long mLastTraffic;
+    /** The current bundling period, if any. */
+    private BundleAndDefer mCurrent;
+
+    private final long mStartTime;
+    private final AtomicLong mBundles = new AtomicLong();
+    private final AtomicLong mDeferredBundles = new AtomicLong();
+    private final AtomicLong mStanzas = new AtomicLong();
+
+    public AdaptiveBundleAndDeferCallback() {
+        mStartTime = now();
+        mLastTraffic = mStartTime - RADIO_TAIL_MILLIS;
+    }
+
+    /** Sets the type of the current network. */
+    public static void setMobileNetwork(boolean mobile) {
+        sMobileNetwork = mobile;
+    }
+
+    /**
+     * Called before a stanza is queued for writing.
+     * @param urgent true if the stanza must not be deferred
+     */
+    public void onStanzaQueued(boolean urgent) {
+        mStanzas.incrementAndGet();
+        if (urgent) {
+            mPendingUrgent.incrementAndGet();
+            stopCurrent();
+        }
+    }
+
+    /**
+     * Called after a stanza has been written.
+     * @param urgent the value given to {@link #onStanzaQueued} for the stanza
+     */
+    public void onStanzaWritten(boolean urgent) {
+        if (urgent) {
+            // never go below zero, e.g. after a reset
+            int count;
+            do {
+                count = mPendingUrgent.get();
+            } while (count > 0 && !mPendingUrgent.compareAndSet(count, count - 1));
+        }
+    }
+
+    /**
+     * Called when a new connection is started: stanzas still queued from the
+     * previous connection have been discarded or will be queued again.
+     */
+    public void reset() {
+        mPendingUrgent.set(0);
+    }
+
+    /** Called when data is received from the server. */
+    public void onTrafficReceived() {
+        mLastTraffic = now();
+    }
+
+    @Override
+    public int getBundleAndDeferMillis(BundleAndDefer bundleAndDefer) {
+        mBundles.incrementAndGet();
+        int millis = computeDeferMillis();
+        if (millis > 0) {
+            mDeferredBundles.incrementAndGet();
+            synchronized (this) {
+                mCurrent = bundleAndDefer;
+            }
+            // an urgent stanza might have been queued in the meantime
+            if (mPendingUrgent.get() > 0)
+                stopCurrent();
+        }
+        // the bundle will be written now or when the defer period expires
+        mLastTraffic = now() + millis;
+        return millis;
+    }
+
+    /** Returns the defer period for a new bundle. */
+    int computeDeferMillis() {
+        // an urgent stanza is waiting: everything queued will be written with it
+        if (mPendingUrgent.get() > 0)
+            return 0;
+
+        // radio is already awake
+        if (now() - mLastTraffic < RADIO_TAIL_MILLIS)
+            return 0;
+
+        return sMobileNetwork ? MOBILE_DEFER_MILLIS : DEFAULT_DEFER_MILLIS;
+    }
+
+    private synchronized void stopCurrent() {
+        if (mCurrent != null) {
+            mCurrent.stopCurrentBundleAndDefer();
+            mCurrent = null;
+        }
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /** Returns the number of bundles (i.e. socket flushes) per minute. */
+    public float getFlushesPerMinute() {
+        long elapsed = Math.max(now() - mStartTime, 1);
+        return mBundles.get() * 60000f / elapsed;
+    }
+
+    /** Returns the average number of stanzas written in a bundle. */
+    public float getAverageBundleSize() {
+        long bundles = mBundles.get();
+        return bundles > 0 ? (float) mStanzas.get() / bundles : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "bundles=" + mBundles.get() +
+            " deferred=" + mDeferredBundles.get() +
+            " stanzas=" + mStanzas.get() +
+            " flushes/min=" + String.format(Locale.US, "%.2f", getFlushesPerMinute()) +
+            " avg-size=" + String.format(Locale.US, "%.2f", getAverageBundleSize());
+    }
+
+}
@@ -20,7 +20,12 @@ package org.kontalk.client;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.KeyManagementException;
@@ -33,7 +38,16 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,6 +74,8 @@ import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressOutputStreamEntity;
+import org.kontalk.util.StepTimer;
+import org.kontalk.util.SystemUtils;
 
 
 /**
@@ -72,15 +88,27 @@ public class ClientHTTPConnection {
     /** Regex used to parse content-disposition headers */
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
+    /** Regex used to parse Content-Range headers. */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("^bytes\\s+(\\d+)-");
     /** Minimum delay for progress notification updates in milliseconds. */
     private static final int PROGRESS_PUBLISH_DELAY = 1000;
 
+    /** Files bigger than this will be downloaded in parallel segments. */
+    private static final long SEGMENTED_MIN_LENGTH = 8 * 1024 * 1024;
+    /** Number of parallel segments. */
+    private static final int MAX_SEGMENTS = 3;
+
+    private static final int BUFFER_SIZE = 8192;
+
     private final Context mContext;
 
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
 
     private HttpURLConnection currentRequest;
+    private final List<HttpURLConnection> mSegmentRequests = new ArrayList<>();
+    private volatile boolean mAborted;
     private final static int CONNECT_TIMEOUT = 15000;
     private final static int READ_TIMEOUT = 40000;
 
@@ -95,7 +123,9 @@ public class ClientHTTPConnection {
     }
 
     public void abort() {
+        mAborted = true;
         close();
+        closeSegments();
     }
 
     public void close() {
@@ -214,52 +244,720 @@ public class ClientHTTPConnection {
      * determining the file name from the Content-Disposition header.
      */
     public void downloadAutofilename(String url, @NonNull File defaultFile, Date timestamp, DownloadListener listener) throws IOException {
-        _download(url, defaultFile, timestamp, listener);
+        _download(url, defaultFile, timestamp, null, listener);
+    }
+
+    /**
+     * Downloads to a directory represented by a {@link File} object,
+     * determining the file name from the Content-Disposition header.
+     * Data is passed through the given processor while being written.
+     */
+    public void downloadAutofilename(String url, @NonNull File defaultFile, Date timestamp,
+            ProgressOutputStreamEntity.Processor processor, DownloadListener listener) throws IOException {
+        _download(url, defaultFile, timestamp, processor, listener);
     }
 
-    private void _download(String url, @NonNull File defaultFile, Date timestamp, DownloadListener listener) throws IOException {
+    private void _download(String url, @NonNull File defaultFile, Date timestamp,
+            ProgressOutputStreamEntity.Processor processor, DownloadListener listener) throws IOException {
         boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
         currentRequest = prepareURLDownload(url, acceptAnyCertificate);
 
         int code = currentRequest.getResponseCode();
         // HTTP/1.1 200 OK -- other codes should throw Exceptions
         if (code == 200) {
-            // use a more suitable filename, taking only the extension
-            String contentType = currentRequest.getContentType();
-            File destination = null;
-            if (contentType != null) {
-                destination = CompositeMessage.getIncomingFile(contentType,
-                    timestamp != null ? timestamp : new Date());
+            File destination = getDestination(currentRequest, defaultFile, timestamp);
+            writeEntity(url, destination, processor, listener);
+            return;
+        }
+
+        Log.d(TAG, "invalid response: " + code);
+        listener.error(url, null, new IOException("invalid response: " + code));
+    }
+
+    /** Writes the body of the current request to the destination. */
+    private void writeEntity(String url, File destination,
+            ProgressOutputStreamEntity.Processor processor, DownloadListener listener) throws IOException {
+        // we need to wrap the entity to monitor the download progress
+        ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(currentRequest,
+            url, destination, listener, PROGRESS_PUBLISH_DELAY, processor);
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            entity.writeTo(out);
+            out.close();
+        }
+        catch (IOException e) {
+            // do not leave incomplete (or partially decrypted) files around
+            out.close();
+            destination.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Downloads to a directory represented by a {@link File} object, resuming
+     * a previous attempt if possible. Download state is kept in the given
+     * journal, so downloads can be resumed even after process death.
+     * Raw data is kept in a partial file until the download is complete, and
+     * missing data is requested with a range request validated against the
+     * remote file (If-Range). Large files are downloaded in parallel segments.
+     * <p>
+     * If a processor is given, data is passed through it while downloading,
+     * following the contiguous prefix of downloaded data. The state of the
+     * processor (e.g. decryption) can't be saved, so a resumed download is
+     * processed again from the start of the partial file, but only missing
+     * data is downloaded.
+     */
+    public void downloadResumable(String url, long messageId, @NonNull File defaultFile, Date timestamp,
+            DownloadJournal journal, ProgressOutputStreamEntity.Processor processor,
+            DownloadListener listener) throws IOException {
+        downloadResumable(url, messageId, defaultFile, timestamp, journal, processor, listener, true);
+    }
+
+    private void downloadResumable(String url, long messageId, @NonNull File defaultFile, Date timestamp,
+            DownloadJournal journal, ProgressOutputStreamEntity.Processor processor,
+            DownloadListener listener, boolean canRestart) throws IOException {
+        mAborted = false;
+        boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+
+        DownloadJournal.Entry entry = journal.get(messageId);
+        if (entry != null && (!url.equals(entry.url) || !entry.getPartialFile().isFile() ||
+                entry.etag == null || (entry.segments.length > 1 && entry.length <= 0))) {
+            // stale entry, or we can't check that the remote file didn't change
+            journal.discard(messageId);
+            entry = null;
+        }
+
+        try {
+            if (entry != null && entry.segments.length > 1) {
+                // resume segments directly - we already know everything we need
+                downloadSegments(entry, journal, acceptAnyCertificate, processor, listener);
             }
+            else {
+                downloadSequential(url, messageId, defaultFile, timestamp, entry,
+                    journal, acceptAnyCertificate, processor, listener);
+            }
+        }
+        catch (StaleDownloadException e) {
+            // our partial data is not valid anymore
+            journal.discard(messageId);
+            if (!canRestart)
+                throw e;
+
+            Log.d(TAG, "invalid partial download (" + e.getMessage() + "), restarting");
+            downloadResumable(url, messageId, defaultFile, timestamp, journal, processor, listener, false);
+        }
+    }
+
+    private void downloadSequential(String url, long messageId, File defaultFile, Date timestamp,
+            DownloadJournal.Entry entry, DownloadJournal journal, boolean acceptAnyCertificate,
+            ProgressOutputStreamEntity.Processor processor, DownloadListener listener) throws IOException {
+        // partial file length is always accurate for sequential downloads
+        long offset = entry != null ? entry.getPartialFile().length() : 0;
 
-            // still having problems?
-            if (destination == null) {
-                String name = null;
-                String disp = currentRequest.getHeaderField("Content-Disposition");
-                if (disp != null)
-                    name = parseContentDisposition(disp);
+        currentRequest = prepareURLDownload(url, acceptAnyCertificate);
+        if (offset > 0) {
+            currentRequest.setRequestProperty("Range", "bytes=" + offset + "-");
+            currentRequest.setRequestProperty("If-Range", entry.etag);
+        }
 
-                if (name != null) {
-                    // combine default file directory with server-provided filename
-                    destination = new File(defaultFile.getParentFile(), name);
+        int code = currentRequest.getResponseCode();
+        if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+            long start = parseContentRangeStart(currentRequest.getHeaderField("Content-Range"));
+            if (start != offset) {
+                currentRequest.disconnect();
+                throw new StaleDownloadException("unexpected range start: " + start);
+            }
+            Log.d(TAG, "resuming download from " + offset + " bytes");
+        }
+        else if (code == HttpURLConnection.HTTP_OK) {
+            // new download or remote file has changed
+            File destination;
+            if (entry != null) {
+                entry.getPartialFile().delete();
+                destination = entry.destination;
+            }
+            else {
+                destination = getDestination(currentRequest, defaultFile, timestamp);
+            }
+
+            entry = new DownloadJournal.Entry(messageId, url, destination);
+            entry.etag = getValidator(currentRequest.getHeaderField("ETag"),
+                currentRequest.getHeaderField("Last-Modified"));
+            entry.mime = currentRequest.getContentType();
+            entry.length = getContentLength(currentRequest);
+            offset = 0;
+
+            if (entry.length >= SEGMENTED_MIN_LENGTH && entry.etag != null &&
+                    "bytes".equals(currentRequest.getHeaderField("Accept-Ranges"))) {
+                // large file: switch to parallel segments
+                currentRequest.disconnect();
+                entry.segments = createSegments(entry.length, MAX_SEGMENTS);
+                RandomAccessFile file = new RandomAccessFile(entry.getPartialFile(), "rw");
+                try {
+                    file.setLength(entry.length);
                 }
-                else {
-                    // fallback to default filename
-                    destination = defaultFile;
+                finally {
+                    file.close();
                 }
+                journal.put(entry);
+
+                downloadSegments(entry, journal, acceptAnyCertificate, processor, listener);
+                return;
             }
 
-            // we need to wrap the entity to monitor the download progress
-            ProgressOutputStreamEntity entity =
-                new ProgressOutputStreamEntity(currentRequest, url, destination, listener, PROGRESS_PUBLISH_DELAY);
-            FileOutputStream out = new FileOutputStream(destination);
-            entity.writeTo(out);
-            out.close();
+            // journaled even without a validator, so the partial file is cleaned up
+            entry.segments = new DownloadJournal.Segment[] {
+                new DownloadJournal.Segment(0, entry.length, 0)
+            };
+            journal.put(entry);
+        }
+        else if (code == 416) {
+            // requested range not satisfiable
+            currentRequest.disconnect();
+            throw new StaleDownloadException("range not satisfiable");
+        }
+        else {
+            Log.d(TAG, "invalid response: " + code);
+            listener.error(url, null, new IOException("invalid response: " + code));
             return;
         }
 
-        Log.d(TAG, "invalid response: " + code);
-        listener.error(url, null, new IOException("invalid response: " + code));
+        DownloadJournal.Segment segment = entry.segments[0];
+        segment.done = offset;
+        File partial = entry.getPartialFile();
+
+        listener.start(url, entry.destination, entry.length);
+
+        OutputStream partialOut = new FileOutputStream(partial, offset > 0);
+        PrefixInputStream prefix = null;
+        ExecutorService executor = null;
+        Future<Void> processing = null;
+        boolean completed = false;
+        IOException processError = null;
+        try {
+            if (processor != null) {
+                // process again from the start, while downloading the rest
+                prefix = new PrefixInputStream(partial, entry);
+                executor = Executors.newSingleThreadExecutor();
+                processing = startProcessing(executor, processor, prefix, entry.destination);
+            }
+
+            InputStream in = new JournalingInputStream(currentRequest.getInputStream(),
+                partialOut, entry, segment, journal, listener, prefix);
+            try {
+                drain(in);
+            }
+            finally {
+                in.close();
+            }
+
+            if (entry.length >= 0 && segment.done != entry.length)
+                throw new IOException("incomplete download: " + segment.done + "/" + entry.length);
+            completed = true;
+        }
+        finally {
+            partialOut.close();
+            journal.put(entry);
+            if (prefix != null)
+                processError = finishProcessing(prefix, processing, completed);
+            if (executor != null)
+                executor.shutdownNow();
+        }
+
+        if (processError != null)
+            throw processError;
+
+        complete(entry, processor != null, journal, listener);
+    }
+
+    /**
+     * Downloads all incomplete segments in parallel, into the partial file.
+     * If a processor is given, downloaded data is processed at the same time
+     * into the destination file.
+     */
+    private void downloadSegments(final DownloadJournal.Entry entry, DownloadJournal journal,
+            final boolean acceptAnyCertificate, ProgressOutputStreamEntity.Processor processor,
+            DownloadListener listener) throws IOException {
+        final File partial = entry.getPartialFile();
+
+        listener.start(entry.url, entry.destination, entry.length);
+
+        List<DownloadJournal.Segment> pending = new ArrayList<>();
+        for (DownloadJournal.Segment segment : entry.segments) {
+            if (!segment.isComplete())
+                pending.add(segment);
+        }
+
+        final PrefixInputStream prefix = processor != null ?
+            new PrefixInputStream(partial, entry) : null;
+
+        ExecutorService executor = Executors
+            .newFixedThreadPool(pending.size() + (prefix != null ? 1 : 0));
+        Future<Void> processing = null;
+        IOException error = null;
+        IOException processError = null;
+        boolean completed = false;
+        try {
+            List<Future<Void>> downloads = new ArrayList<>(pending.size());
+            for (final DownloadJournal.Segment segment : pending) {
+                downloads.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        downloadSegment(entry, segment, partial, acceptAnyCertificate, prefix);
+                        return null;
+                    }
+                }));
+            }
+
+            if (prefix != null)
+                processing = startProcessing(executor, processor, prefix, entry.destination);
+
+            for (Future<Void> download : downloads) {
+                IOException e = awaitSegment(download, entry, journal, listener);
+                if (e != null && error == null) {
+                    error = e;
+                    // stop the other segments too
+                    closeSegments();
+                }
+            }
+
+            completed = error == null && !mAborted;
+        }
+        finally {
+            journal.put(entry);
+            if (prefix != null)
+                processError = finishProcessing(prefix, processing, completed);
+            executor.shutdownNow();
+        }
+
+        // download errors come first: processing fails too without data
+        if (error != null)
+            throw error;
+        if (mAborted)
+            throw new IOException("download aborted");
+        if (processError != null)
+            throw processError;
+
+        complete(entry, processor != null, journal, listener);
+    }
+
+    /**
+     * Waits for a segment to be downloaded, publishing progress and saving
+     * state meanwhile.
+     * @return the download error, if any
+     */
+    private IOException awaitSegment(Future<Void> download, DownloadJournal.Entry entry,
+            DownloadJournal journal, DownloadListener listener) throws IOException {
+        while (true) {
+            try {
+                download.get(PROGRESS_PUBLISH_DELAY, TimeUnit.MILLISECONDS);
+                return null;
+            }
+            catch (TimeoutException e) {
+                listener.progress(entry.url, entry.destination, entry.getDone());
+                journal.put(entry);
+            }
+            catch (ExecutionException e) {
+                return toIOException(e.getCause());
+            }
+            catch (InterruptedException e) {
+                closeSegments();
+                throw new InterruptedIOException("download interrupted");
+            }
+        }
+    }
+
+    /** Moves the completed download to its destination. */
+    private void complete(DownloadJournal.Entry entry, boolean processed,
+            DownloadJournal journal, DownloadListener listener) throws IOException {
+        listener.progress(entry.url, entry.destination, entry.getDone());
+
+        File partial = entry.getPartialFile();
+        if (processed) {
+            partial.delete();
+        }
+        else if (!partial.renameTo(entry.destination)) {
+            throw new IOException("unable to move partial download");
+        }
+
+        journal.remove(entry.messageId);
+        listener.completed(entry.url, entry.mime, entry.destination);
+    }
+
+    /** Processes the downloaded prefix of the partial file in background. */
+    private static Future<Void> startProcessing(ExecutorService executor,
+            final ProgressOutputStreamEntity.Processor processor,
+            final PrefixInputStream prefix, final File destination) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                process(processor, prefix, destination);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Signals the end of the download to the processor and waits for it.
+     * @return the processing error, if any
+     */
+    private static IOException finishProcessing(PrefixInputStream prefix,
+            Future<Void> processing, boolean completed) {
+        prefix.finish(completed);
+        if (processing == null) {
+            // processing never started
+            SystemUtils.closeStream(prefix);
+            return null;
+        }
+
+        try {
+            processing.get();
+            return null;
+        }
+        catch (ExecutionException e) {
+            return toIOException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new InterruptedIOException("download interrupted");
+        }
+    }
+
+    private static IOException toIOException(Throwable cause) {
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    /** Passes data through the processor into the destination file. */
+    private static void process(ProgressOutputStreamEntity.Processor processor,
+            InputStream in, File destination) throws IOException {
+        OutputStream out = new FileOutputStream(destination);
+        try {
+            processor.process(in, out);
+            out.close();
+        }
+        catch (IOException e) {
+            // partially processed data is useless
+            out.close();
+            destination.delete();
+            throw e;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void downloadSegment(DownloadJournal.Entry entry, DownloadJournal.Segment segment,
+            File partial, boolean acceptAnyCertificate, PrefixInputStream prefix) throws IOException {
+        HttpURLConnection conn = prepareURLDownload(entry.url, acceptAnyCertificate);
+        synchronized (mSegmentRequests) {
+            if (mAborted)
+                throw new IOException("download aborted");
+            mSegmentRequests.add(conn);
+        }
+
+        RandomAccessFile out = null;
+        InputStream in = null;
+        try {
+            long position = segment.start + segment.done;
+            conn.setRequestProperty("Range", "bytes=" + position + "-" + (segment.end - 1));
+            conn.setRequestProperty("If-Range", entry.etag);
+
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK || code == 416)
+                // remote file changed or ranges are not supported anymore
+                throw new StaleDownloadException("range request failed: " + code);
+            if (code != HttpURLConnection.HTTP_PARTIAL)
+                throw new IOException("range request failed: " + code);
+
+            long start = parseContentRangeStart(conn.getHeaderField("Content-Range"));
+            if (start != position)
+                throw new StaleDownloadException("unexpected range start: " + start);
+
+            out = new RandomAccessFile(partial, "rw");
+            out.seek(position);
+            in = conn.getInputStream();
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while (!segment.isComplete() && (read = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, segment.end - segment.start - segment.done))) > 0) {
+                out.write(buffer, 0, read);
+                segment.done += read;
+                if (prefix != null)
+                    prefix.dataAvailable();
+            }
+
+            if (!segment.isComplete())
+                throw new IOException("incomplete segment");
+        }
+        finally {
+            SystemUtils.closeStream(in);
+            if (out != null)
+                out.close();
+            conn.disconnect();
+            synchronized (mSegmentRequests) {
+                mSegmentRequests.remove(conn);
+            }
+        }
+    }
+
+    private void closeSegments() {
+        synchronized (mSegmentRequests) {
+            for (HttpURLConnection conn : mSegmentRequests) {
+                try {
+                    conn.disconnect();
+                }
+                catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    /** Splits the given length in equal segments. */
+    static DownloadJournal.Segment[] createSegments(long length, int count) {
+        if (length < count)
+            throw new IllegalArgumentException("length too small for " + count + " segments: " + length);
+
+        DownloadJournal.Segment[] segments = new DownloadJournal.Segment[count];
+        long size = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = (i == count - 1) ? length : start + size;
+            segments[i] = new DownloadJournal.Segment(start, end, 0);
+        }
+        return segments;
+    }
+
+    /**
+     * Returns the value to be used for If-Range requests: a strong entity
+     * tag, or the last modified date if none. Weak entity tags can't be used
+     * for range requests.
+     */
+    static String getValidator(String etag, String lastModified) {
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return lastModified;
+    }
+
+    /**
+     * Returns the Content-Length of a response as a long, since
+     * {@link HttpURLConnection#getContentLength()} can't handle files bigger
+     * than 2 GB. Returns -1 if unknown.
+     */
+    private static long getContentLength(HttpURLConnection conn) {
+        String length = conn.getHeaderField("Content-Length");
+        if (length != null) {
+            try {
+                return Long.parseLong(length.trim());
+            }
+            catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the start offset of a Content-Range header value
+     * (e.g. "bytes 100-199/200"), or -1 if it can't be parsed.
+     */
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null)
+            return -1;
+
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange);
+        if (m.find()) {
+            try {
+                return Long.parseLong(m.group(1));
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (in.read(buffer) >= 0);
+    }
+
+    private File getDestination(HttpURLConnection conn, File defaultFile, Date timestamp) {
+        // use a more suitable filename, taking only the extension
+        String contentType = conn.getContentType();
+        File destination = null;
+        if (contentType != null) {
+            destination = CompositeMessage.getIncomingFile(contentType,
+                timestamp != null ? timestamp : new Date());
+        }
+
+        // still having problems?
+        if (destination == null) {
+            String name = null;
+            String disp = conn.getHeaderField("Content-Disposition");
+            if (disp != null)
+                name = parseContentDisposition(disp);
+
+            if (name != null) {
+                // combine default file directory with server-provided filename
+                destination = new File(defaultFile.getParentFile(), name);
+            }
+            else {
+                // fallback to default filename
+                destination = defaultFile;
+            }
+        }
+
+        return destination;
+    }
+
+    /**
+     * Stores data read from the network in the partial file, keeping track
+     * of progress in the journal.
+     */
+    private static final class JournalingInputStream extends FilterInputStream {
+        private final OutputStream mPartial;
+        private final DownloadJournal.Entry mEntry;
+        private final DownloadJournal.Segment mSegment;
+        private final DownloadJournal mJournal;
+        private final DownloadListener mListener;
+        private final PrefixInputStream mPrefix;
+        private final StepTimer mPublishTimer;
+
+        JournalingInputStream(InputStream in, OutputStream partial, DownloadJournal.Entry entry,
+                DownloadJournal.Segment segment, DownloadJournal journal, DownloadListener listener,
+                PrefixInputStream prefix) {
+            super(in);
+            mPartial = partial;
+            mEntry = entry;
+            mSegment = segment;
+            mJournal = journal;
+            mListener = listener;
+            mPrefix = prefix;
+            mPublishTimer = new StepTimer(PROGRESS_PUBLISH_DELAY);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? (b[0] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                mPartial.write(b, off, read);
+                mSegment.done += read;
+                if (mPrefix != null)
+                    mPrefix.dataAvailable();
+                if (mPublishTimer.isStep(true)) {
+                    mListener.progress(mEntry.url, mEntry.destination, mSegment.done);
+                    mJournal.put(mEntry);
+                }
+                else if (mSegment.isComplete()) {
+                    mListener.progress(mEntry.url, mEntry.destination, mSegment.done);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped data must be stored too
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return read > 0 ? read : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /** Thrown when partial data doesn't match the remote file anymore. */
+    private static final class StaleDownloadException extends IOException {
+        StaleDownloadException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads the contiguous downloaded prefix of a partial file while its
+     * segments are being downloaded, waiting for more data when needed.
+     */
+    private static final class PrefixInputStream extends InputStream {
+        private final RandomAccessFile mFile;
+        private final DownloadJournal.Entry mEntry;
+        private long mPosition;
+        /** Download state: 0 running, 1 completed, -1 failed. */
+        private int mState;
+
+        PrefixInputStream(File partial, DownloadJournal.Entry entry) throws IOException {
+            mFile = new RandomAccessFile(partial, "r");
+            mEntry = entry;
+        }
+
+        /** Returns the length of contiguous data available from the start. */
+        private long getAvailable() {
+            long available = 0;
+            for (DownloadJournal.Segment segment : mEntry.segments) {
+                available = segment.start + segment.done;
+                if (!segment.isComplete())
+                    break;
+            }
+            return available;
+        }
+
+        synchronized void dataAvailable() {
+            notifyAll();
+        }
+
+        synchronized void finish(boolean completed) {
+            mState = completed ? 1 : -1;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? (b[0] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            long available;
+            synchronized (this) {
+                while ((available = getAvailable() - mPosition) <= 0) {
+                    if (mState < 0)
+                        throw new IOException("download interrupted");
+                    if (mState > 0)
+                        return -1;
+                    try {
+                        // timed wait, just in case a notification is lost
+                        wait(PROGRESS_PUBLISH_DELAY);
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException("download interrupted");
+                    }
+                }
+            }
+
+            mFile.seek(mPosition);
+            int read = mFile.read(b, off, (int) Math.min(len, available));
+            if (read > 0)
+                mPosition += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
     }
 
     /**
@@ -0,0 +1,232 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.kontalk.Kontalk;
+import org.kontalk.Log;
+import org.kontalk.service.msgcenter.SecureConnectionManager;
+import org.kontalk.util.InternalTrustStore;
+import org.kontalk.util.Preferences;
+
+
+/**
+ * Keeps the expensive parts of connection setup around between connections:
+ * resolved server addresses, the SSL context (whose session cache allows
+ * abbreviated TLS handshakes on reconnection) and the merged trust store,
+ * which can be loaded in the background before the first connection.
+ * @author Daniele Ricci
+ */
+public class ConnectionWarmup {
+    private static final String TAG = Kontalk.TAG;
+
+    /** How long a resolved address is considered valid. */
+    private static final long ADDRESS_TTL = 5 * 60 * 1000;
+
+    /** Number of TLS sessions to keep for resumption. */
+    private static final int SESSION_CACHE_SIZE = 10;
+    /** How long a TLS session can be resumed, in seconds. */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static final Map<String, CachedAddress> sAddresses = new HashMap<>();
+
+    private static SSLContext sContext;
+    private static Object[] sContextKey;
+
+    private static final class CachedAddress {
+        final InetAddress address;
+        final long expires;
+
+        CachedAddress(InetAddress address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+
+    private ConnectionWarmup() {
+    }
+
+    /**
+     * Resolves a host name, using a previously resolved address if still valid.
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    public static InetAddress resolve(String host) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sAddresses) {
+            CachedAddress cached = sAddresses.get(host);
+            if (cached != null && cached.expires > now)
+                return cached.address;
+        }
+
+        InetAddress address = InetAddress.getByName(host);
+        synchronized (sAddresses) {
+            sAddresses.put(host, new CachedAddress(address, now + ADDRESS_TTL));
+        }
+        return address;
+    }
+
+    /** Forgets the resolved address of a host, e.g. because it's not reachable. */
+    public static void invalidateAddress(String host) {
+        synchronized (sAddresses) {
+            sAddresses.remove(host);
+        }
+    }
+
+    /**
+     * Returns an SSL context for the given parameters. The same context is
+     * returned as long as the parameters don't change, so TLS sessions can
+     * be resumed.
+     */
+    public static synchronized SSLContext getSSLContext(PrivateKey privateKey,
+            X509Certificate bridgeCert, boolean acceptAnyCertificate, KeyStore trustStore)
+            throws GeneralSecurityException {
+
+        Object[] key = { privateKey, bridgeCert, acceptAnyCertificate, trustStore };
+        if (sContext != null && keyEquals(sContextKey, key))
+            return sContext;
+
+        // wait for secure connection stuff
+        SecureConnectionManager.waitForInit();
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+
+        KeyManager[] km = null;
+        if (privateKey != null && bridgeCert != null) {
+            // in-memory keystore
+            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+            try {
+                keystore.load(null, null);
+            }
+            catch (Exception e) {
+                throw new GeneralSecurityException(e);
+            }
+            keystore.setKeyEntry("private", privateKey, null, new Certificate[] { bridgeCert });
+
+            // key managers
+            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmFactory.init(keystore, null);
+
+            km = kmFactory.getKeyManagers();
+        }
+
+        // trust managers
+        TrustManager[] tm;
+
+        if (acceptAnyCertificate) {
+            tm = new TrustManager[] { new InsecureTrustManager() };
+        }
+
+        else {
+            // builtin keystore
+            TrustManagerFactory tmFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmFactory.init(trustStore);
+
+            tm = tmFactory.getTrustManagers();
+        }
+
+        ctx.init(km, tm, null);
+
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+        }
+
+        sContext = ctx;
+        sContextKey = key;
+        return ctx;
+    }
+
+    private static boolean keyEquals(Object[] a, Object[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == null ? b[i] != null : !a[i].equals(b[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prepares for the first connection in the background: waits for the
+     * security provider, loads the trust store and resolves the server address.
+     */
+    public static void preload(final Context context) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    SecureConnectionManager.waitForInit();
+
+                    if (!Preferences.getAcceptAnyCertificate(context))
+                        InternalTrustStore.getTrustStore(context);
+
+                    EndpointServer server = Preferences.getEndpointServer(context);
+                    if (server != null && server.getHost() != null)
+                        resolve(server.getHost());
+
+                    Log.d(TAG, "connection warm-up completed in " +
+                        (SystemClock.elapsedRealtime() - start) + " ms");
+                }
+                catch (Exception e) {
+                    // not a big deal, it will be tried again while connecting
+                    Log.w(TAG, "connection warm-up failed", e);
+                }
+            }
+        }, "ConnectionWarmup").start();
+    }
+
+    @SuppressLint("TrustAllX509TrustManager")
+    private static final class InsecureTrustManager implements X509TrustManager {
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return null;
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+
+/**
+ * A persistent journal of incomplete downloads, used to resume them even
+ * after the process has been killed. Each download is stored in a small
+ * properties file named after the message database ID.
+ * @author Daniele Ricci
+ */
+public class DownloadJournal {
+
+    /** Journal entries older than this are discarded. */
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_MIME = "mime";
+    private static final String KEY_DESTINATION = "destination";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_SEGMENTS = "segments";
+
+    private final File mDirectory;
+
+    public DownloadJournal(File directory) {
+        mDirectory = directory;
+    }
+
+    private File getFile(long messageId) {
+        return new File(mDirectory, String.valueOf(messageId));
+    }
+
+    /** Returns the journal entry of a download, or null if none. */
+    public synchronized Entry get(long messageId) {
+        File file = getFile(messageId);
+        if (!file.isFile())
+            return null;
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+
+            Entry entry = new Entry(messageId, props.getProperty(KEY_URL),
+                new File(props.getProperty(KEY_DESTINATION)));
+            entry.etag = props.getProperty(KEY_ETAG);
+            entry.mime = props.getProperty(KEY_MIME);
+            entry.length = Long.parseLong(props.getProperty(KEY_LENGTH, "-1"));
+            entry.segments = Segment.parse(props.getProperty(KEY_SEGMENTS, ""));
+            return entry;
+        }
+        catch (Exception e) {
+            // corrupted entry
+            file.delete();
+            return null;
+        }
+        finally {
+            closeStream(in);
+        }
+    }
+
+    /** Stores the current state of a download. */
+    public synchronized void put(Entry entry) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("unable to create journal directory");
+
+        Properties props = new Properties();
+        props.setProperty(KEY_URL, entry.url);
+        props.setProperty(KEY_DESTINATION, entry.destination.getPath());
+        if (entry.etag != null)
+            props.setProperty(KEY_ETAG, entry.etag);
+        if (entry.mime != null)
+            props.setProperty(KEY_MIME, entry.mime);
+        props.setProperty(KEY_LENGTH, String.valueOf(entry.length));
+        props.setProperty(KEY_SEGMENTS, Segment.toString(entry.segments));
+
+        // write to a temporary file first to never leave a broken entry
+        File file = getFile(entry.messageId);
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            props.store(out, null);
+        }
+        finally {
+            closeStream(out);
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("unable to write journal entry");
+    }
+
+    /** Removes the journal entry of a download. Partial data is kept. */
+    public synchronized void remove(long messageId) {
+        getFile(messageId).delete();
+    }
+
+    /** Removes the journal entry of a download, deleting partial data too. */
+    public synchronized void discard(long messageId) {
+        Entry entry = get(messageId);
+        if (entry != null)
+            entry.getPartialFile().delete();
+        remove(messageId);
+    }
+
+    /** Discards entries of downloads not resumed for a long time. */
+    public synchronized void cleanup() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                if (now - file.lastModified() > MAX_AGE) {
+                    try {
+                        discard(Long.parseLong(file.getName()));
+                    }
+                    catch (NumberFormatException e) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void closeStream(Closeable stream) {
+        try {
+            if (stream != null)
+                stream.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /** State of an incomplete download. */
+    public static class Entry {
+        public final long messageId;
+        public final String url;
+        public final File destination;
+        /** Entity tag or last modified date of the remote file, used for If-Range. */
+        public String etag;
+        public String mime;
+        /** Total length, -1 if unknown. */
+        public long length = -1;
+        /** Downloaded ranges (a single one for sequential downloads). */
+        public Segment[] segments = new Segment[0];
+
+        public Entry(long messageId, String url, File destination) {
+            this.messageId = messageId;
+            this.url = url;
+            this.destination = destination;
+        }
+
+        /** The file holding raw downloaded data. */
+        public File getPartialFile() {
+            return new File(destination.getPath() + ".part");
+        }
+
+        /** Returns how many bytes have been downloaded so far. */
+        public long getDone() {
+            long done = 0;
+            for (Segment s : segments)
+                done += s.done;
+            return done;
+        }
+    }
+
+    /** A range of the remote file. */
+    public static class Segment {
+        public final long start;
+        /** End of the range (exclusive), -1 if unknown. */
+        public final long end;
+        /** Downloaded bytes from the start of the range. */
+        public volatile long done;
+
+        public Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        public boolean isComplete() {
+            return end >= 0 && start + done >= end;
+        }
+
+        static Segment[] parse(String data) {
+            if (data.length() == 0)
+                return new Segment[0];
+
+            String[] parts = data.split(",");
+            Segment[] segments = new Segment[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                String[] values = parts[i].split(":");
+                segments[i] = new Segment(Long.parseLong(values[0]),
+                    Long.parseLong(values[1]), Long.parseLong(values[2]));
+            }
+            return segments;
+        }
+
+        static String toString(Segment[] segments) {
+            StringBuilder out = new StringBuilder();
+            for (Segment s : segments) {
+                if (out.length() > 0)
+                    out.append(',');
+                out.append(s.start).append(':').append(s.end).append(':').append(s.done);
+            }
+            return out.toString();
+        }
+    }
+
+}
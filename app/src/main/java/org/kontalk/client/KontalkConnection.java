@@ -18,46 +18,49 @@
 
 package org.kontalk.client;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
 import org.jivesoftware.smack.SASLAuthentication;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.packet.Element;
 import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.sm.StreamManagementException;
 import org.jivesoftware.smack.sm.predicates.ForMatchingPredicateOrAfterXStanzas;
 import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
 import org.jxmpp.stringprep.XmppStringprepException;
 
 import android.annotation.SuppressLint;
+import android.os.SystemClock;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.client.smack.XMPPTCPConnection;
-import org.kontalk.service.msgcenter.SecureConnectionManager;
+import org.kontalk.util.Metrics;
 
 
 public class KontalkConnection extends XMPPTCPConnection {
@@ -66,8 +69,23 @@ public class KontalkConnection extends XMPPTCPConnection {
     /** Packet reply timeout. */
     public static final int DEFAULT_PACKET_TIMEOUT = 15000;
 
+    /** Preferred stream resumption time in seconds. */
+    public static final int RESUMPTION_TIME = 300;
+
+    /** Logins that resumed a previous stream. */
+    private static final AtomicLong sResumedLogins = new AtomicLong();
+    /** Logins that established a new session. */
+    private static final AtomicLong sFullLogins = new AtomicLong();
+
     protected EndpointServer mServer;
 
+    /** Duration of each connection phase of the last attempt. */
+    private final long[] mPhaseTimes = new long[ConnectPhase.values().length];
+    private long mPhaseMark;
+
+    /** Outgoing stanzas bundling policy. */
+    private final AdaptiveBundleAndDeferCallback mBundling = new AdaptiveBundleAndDeferCallback();
+
     /** Actually a copy of the same Smack map, but since we need access to the listeners... */
     private final Map<String, AckMultiListener> mStanzaIdAcknowledgedListeners = new ConcurrentHashMap<>();
 
@@ -87,13 +105,17 @@ public class KontalkConnection extends XMPPTCPConnection {
 
         mServer = server;
 
-        // enable SM without resumption
+        // enable SM with resumption
         setUseStreamManagement(true);
-        setUseStreamManagementResumption(false);
+        setUseStreamManagementResumption(true);
+        setPreferredResumptionTime(RESUMPTION_TIME);
         // set custom ack predicate
         addRequestAckPredicate(AckPredicate.INSTANCE);
         // set custom packet reply timeout
         setReplyTimeout(DEFAULT_PACKET_TIMEOUT);
+        Arrays.fill(mPhaseTimes, -1);
+        // bundle non-urgent stanzas to save radio wakeups
+        setBundleandDeferCallback(mBundling);
     }
 
     private static XMPPTCPConnectionConfiguration buildConfiguration(String resource,
@@ -106,7 +128,7 @@ public class KontalkConnection extends XMPPTCPConnection {
         InetAddress inetAddress = null;
         if (host != null) {
             try {
-                inetAddress = InetAddress.getByName(host);
+                inetAddress = ConnectionWarmup.resolve(host);
             }
             catch (UnknownHostException e) {
                 Log.w(TAG, "unable to resolve host " + host + ", will try again during connect", e);
@@ -152,65 +174,19 @@ public class KontalkConnection extends XMPPTCPConnection {
                                  boolean direct, PrivateKey privateKey, X509Certificate bridgeCert,
                                  boolean acceptAnyCertificate, KeyStore trustStore) {
         try {
-            // wait for secure connection stuff
-            SecureConnectionManager.waitForInit();
+            // shared context, so TLS sessions can be resumed
+            SSLContext ctx = ConnectionWarmup.getSSLContext(privateKey, bridgeCert,
+                acceptAnyCertificate, trustStore);
 
-            SSLContext ctx = SSLContext.getInstance("TLS");
-
-            KeyManager[] km = null;
             if (privateKey != null && bridgeCert != null) {
-                // in-memory keystore
-                KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-                keystore.load(null, null);
-                keystore.setKeyEntry("private", privateKey, null, new Certificate[] { bridgeCert });
-
-                // key managers
-                KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                kmFactory.init(keystore, null);
-
-                km = kmFactory.getKeyManagers();
-
                 // blacklist PLAIN mechanism
                 SASLAuthentication.blacklistSASLMechanism("PLAIN");
             }
 
-            // trust managers
-            TrustManager[] tm;
-
             if (acceptAnyCertificate) {
-                tm = new TrustManager[] {
-                    new X509TrustManager() {
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-
-                        @SuppressLint("TrustAllX509TrustManager")
-                        @Override
-                        public void checkServerTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-
-                        @SuppressLint("TrustAllX509TrustManager")
-                        @Override
-                        public void checkClientTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-                    }
-                };
                 builder.setHostnameVerifier(new AllowAllHostnameVerifier());
             }
 
-            else {
-                // builtin keystore
-                TrustManagerFactory tmFactory = TrustManagerFactory
-                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                tmFactory.init(trustStore);
-
-                tm = tmFactory.getTrustManagers();
-            }
-
-            ctx.init(km, tm, null);
             builder.setCustomSSLContext(ctx);
             if (direct)
                 builder.setSocketFactory(ctx.getSocketFactory());
@@ -246,10 +222,120 @@ public class KontalkConnection extends XMPPTCPConnection {
         }
     }
 
+    @Override
+    protected void connectInternal() throws SmackException, IOException, XMPPException, InterruptedException {
+        // anything still pending was lost or will be queued again
+        mBundling.reset();
+        Arrays.fill(mPhaseTimes, -1);
+        mPhaseMark = SystemClock.elapsedRealtime();
+        super.connectInternal();
+    }
+
+    @Override
+    protected void connectPhaseCompleted(ConnectPhase phase) {
+        long now = SystemClock.elapsedRealtime();
+        long time = now - mPhaseMark;
+        mPhaseTimes[phase.ordinal()] = time;
+        mPhaseMark = now;
+        Metrics.histogram("connect." + phase.name().toLowerCase(Locale.US) + "_ms").record(time);
+    }
+
+    @Override
+    protected void stanzaParsed(long nanos) {
+        Metrics.histogram("stanza.parse_us").record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    @Override
+    protected void elementReceived() {
+        // nonzas (e.g. stream management requests) are traffic too
+        mBundling.onTrafficReceived();
+    }
+
+    @Override
+    protected void nonzaQueued(Element element) {
+        // stream management acks and requests are never deferred
+        mBundling.onStanzaQueued(true);
+    }
+
+    @Override
+    protected void elementWritten(Element element) {
+        mBundling.onStanzaWritten(!(element instanceof Stanza) || isUrgent((Stanza) element));
+    }
+
+    /** Returns the duration of a phase of the last connection attempt, or -1 if not completed. */
+    public long getConnectPhaseTime(ConnectPhase phase) {
+        return mPhaseTimes[phase.ordinal()];
+    }
+
+    /** Returns a debug string with the duration of each phase of the last connection attempt. */
+    public String getConnectTimings() {
+        StringBuilder out = new StringBuilder();
+        for (ConnectPhase phase : ConnectPhase.values()) {
+            if (out.length() > 0)
+                out.append(' ');
+            long time = mPhaseTimes[phase.ordinal()];
+            out.append(phase.name().toLowerCase(Locale.US))
+                .append('=')
+                .append(time >= 0 ? time + "ms" : "-");
+        }
+        return out.toString();
+    }
+
+    @Override
+    protected void sendStanzaInternal(Stanza packet) throws SmackException.NotConnectedException, InterruptedException {
+        mBundling.onStanzaQueued(isUrgent(packet));
+        super.sendStanzaInternal(packet);
+    }
+
+    /**
+     * Returns true if the stanza should be sent immediately. Receipts, chat
+     * states and presence updates can wait, except for the final unavailable
+     * presence sent on disconnect.
+     */
+    static boolean isUrgent(Stanza packet) {
+        if (packet instanceof Message) {
+            Message m = (Message) packet;
+            return m.getBody() != null ||
+                !(DeliveryReceipt.from(m) != null ||
+                    m.hasExtension(ChatStateExtension.NAMESPACE)) ||
+                m.hasExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE) ||
+                m.hasExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
+        }
+        else if (packet instanceof Presence) {
+            Presence.Type type = ((Presence) packet).getType();
+            // the connection is about to be closed
+            if (type == Presence.Type.unavailable && packet.getTo() == null)
+                return true;
+            // subscription requests are user actions
+            return type != Presence.Type.available && type != Presence.Type.unavailable;
+        }
+        // IQs are usually waited for
+        return true;
+    }
+
+    @Override
+    protected void afterSuccessfulLogin(boolean resumed) throws SmackException.NotConnectedException, InterruptedException {
+        if (resumed)
+            sResumedLogins.incrementAndGet();
+        else
+            sFullLogins.incrementAndGet();
+        super.afterSuccessfulLogin(resumed);
+    }
+
     public EndpointServer getServer() {
         return mServer;
     }
 
+    /** Returns a debug string with outgoing stanza bundling statistics. */
+    public String getBundlingStats() {
+        return mBundling.toString();
+    }
+
+    /** Returns a debug string with resumed and full login counts. */
+    public static String getLoginStats() {
+        return "resumed=" + sResumedLogins.get() + " full=" + sFullLogins.get();
+    }
+
     @Override
     public StanzaListener addStanzaIdAcknowledgedListener(String id, StanzaListener listener) throws StreamManagementException.StreamManagementNotEnabledException {
         AckMultiListener multi = mStanzaIdAcknowledgedListeners.get(id);
@@ -57,20 +57,52 @@ public class ServerList extends ArrayList<EndpointServer> {
             get(mSeed.nextInt(size())) : null;
     }
 
-    /** A simple server provider backed by a server list. */
+    /**
+     * A simple server provider backed by a server list. If server scores are
+     * available, servers are provided by score instead of randomly. Callers
+     * running in a background thread can {@link #probe()} the servers first.
+     */
     public static class ServerListProvider implements EndpointServer.EndpointServerProvider {
         private ServerList mList;
         private List<EndpointServer> mUsed;
+        private ServerScores mScores;
+        /** Winner of the last probe, to be returned by the next call to {@link #next()}. */
+        private EndpointServer mProbed;
 
         public ServerListProvider(ServerList list) {
+            this(list, null);
+        }
+
+        public ServerListProvider(ServerList list, ServerScores scores) {
             mList = new ServerList(list.getDate(), list);
             mUsed = new LinkedList<>();
+            mScores = scores;
+        }
+
+        /**
+         * If none of the servers has been used before, probes all of them
+         * and makes the first one to answer the next server returned.
+         * Blocks for a few seconds, so it must not be called from the main thread.
+         */
+        public void probe() {
+            if (mScores != null && mUsed.isEmpty() && mList.size() > 1 && !mScores.hasStats(mList))
+                mProbed = mScores.probe(mList);
         }
 
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                EndpointServer s = null;
+                if (mProbed != null && mList.contains(mProbed)) {
+                    s = mProbed;
+                }
+                else if (mScores != null) {
+                    s = mScores.select(mList, mList.mSeed);
+                }
+                else {
+                    s = mList.random();
+                }
+                mProbed = null;
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
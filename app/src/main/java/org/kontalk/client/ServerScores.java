@@ -0,0 +1,395 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+
+import org.kontalk.util.SystemUtils;
+
+
+/**
+ * Connection history of servers, used to prefer the fastest and most
+ * reachable ones. Each server has a score, which is its average TCP connect
+ * latency plus a penalty for recent failures: the lower the better.
+ * Scores are persisted in a small properties file.
+ * @author Daniele Ricci
+ */
+public class ServerScores {
+
+    private static final String FILENAME = "server_scores";
+
+    /** Assumed latency of servers we never connected to. */
+    static final long DEFAULT_LATENCY = 1000;
+    /** Weight of a new latency sample in the moving average. */
+    static final float LATENCY_WEIGHT = 0.3f;
+    /** Score penalty for each consecutive failure. */
+    static final long FAILURE_PENALTY = 5000;
+    /** Maximum number of failures accounted for in the penalty. */
+    static final int MAX_FAILURES = 5;
+    /** Failures older than this are not accounted for anymore. */
+    static final long FAILURE_MEMORY = 24 * 60 * 60 * 1000;
+    /** Probability of picking a random server instead of the best one. */
+    static final float EXPLORATION = 0.1f;
+
+    /** Delay between starting probes to each server. */
+    static final long PROBE_STAGGER = 250;
+    /** Maximum time to wait for a probe to succeed. */
+    static final int PROBE_TIMEOUT = 5000;
+    /** Maximum number of probes running at the same time. */
+    static final int PROBE_THREADS = 3;
+    /** Idle probe threads are terminated after this many seconds. */
+    private static final long PROBE_KEEP_ALIVE = 10;
+
+    /** Shared by all probes, threads are only kept while probing. */
+    private static ScheduledThreadPoolExecutor sProbeExecutor;
+
+    private static ServerScores sInstance;
+
+    private final File mFile;
+    private Map<String, Stats> mStats;
+
+    static final class Stats {
+        /** Average connect latency, -1 if unknown. */
+        long latency = -1;
+        /** Consecutive failures. */
+        int failures;
+        /** Timestamp of the last failure. */
+        long lastFailure;
+
+        Stats() {
+        }
+
+        Stats(String value) {
+            String[] parts = value.split(",");
+            latency = Long.parseLong(parts[0]);
+            failures = Integer.parseInt(parts[1]);
+            lastFailure = Long.parseLong(parts[2]);
+        }
+
+        @Override
+        public String toString() {
+            return latency + "," + failures + "," + lastFailure;
+        }
+    }
+
+    public ServerScores(File file) {
+        mFile = file;
+    }
+
+    public static synchronized ServerScores getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ServerScores(new File(context
+                .getApplicationContext().getFilesDir(), FILENAME));
+        }
+        return sInstance;
+    }
+
+    /** Records a successful connection to a server. */
+    public synchronized void recordSuccess(EndpointServer server, long latency) {
+        Stats stats = getStats(server, true);
+        if (stats.latency < 0)
+            stats.latency = latency;
+        else
+            stats.latency = Math.round(stats.latency + LATENCY_WEIGHT * (latency - stats.latency));
+        stats.failures = 0;
+        save();
+    }
+
+    /** Records a failed connection to a server. */
+    public synchronized void recordFailure(EndpointServer server) {
+        Stats stats = getStats(server, true);
+        stats.failures++;
+        stats.lastFailure = System.currentTimeMillis();
+        save();
+    }
+
+    /** Returns true if any of the given servers has a connection history. */
+    public synchronized boolean hasStats(List<EndpointServer> servers) {
+        for (EndpointServer server : servers) {
+            if (getStats(server, false) != null)
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns the score of a server. Lower is better. */
+    public synchronized long getScore(EndpointServer server) {
+        Stats stats = getStats(server, false);
+        if (stats == null)
+            return DEFAULT_LATENCY;
+
+        long score = stats.latency >= 0 ? stats.latency : DEFAULT_LATENCY;
+        if (stats.failures > 0 &&
+                System.currentTimeMillis() - stats.lastFailure < FAILURE_MEMORY)
+            score += FAILURE_PENALTY * Math.min(stats.failures, MAX_FAILURES);
+        return score;
+    }
+
+    /**
+     * Selects a server among the given ones: usually the best scoring one,
+     * sometimes a random one so scores of other servers can be updated.
+     */
+    public synchronized EndpointServer select(List<EndpointServer> servers, Random random) {
+        if (servers.isEmpty())
+            return null;
+
+        if (random.nextFloat() < EXPLORATION)
+            return servers.get(random.nextInt(servers.size()));
+
+        EndpointServer best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (EndpointServer server : servers) {
+            long score = getScore(server);
+            if (score < bestScore) {
+                best = server;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Probes the given servers with a TCP connection, starting one probe
+     * after the other with a short delay. Results are recorded for every
+     * completed probe. Probes still running when a winner is found are
+     * canceled. This method blocks until a server answers or all probes fail.
+     * @return the first server which accepted the connection, or null
+     */
+    public EndpointServer probe(List<EndpointServer> servers) {
+        if (servers.isEmpty())
+            return null;
+
+        ProbeRound round = new ProbeRound(servers.size());
+        List<Probe> probes = new ArrayList<>(servers.size());
+        List<Future<?>> futures = new ArrayList<>(servers.size());
+        ScheduledExecutorService executor = getProbeExecutor();
+        for (int i = 0; i < servers.size(); i++) {
+            Probe probe = new Probe(servers.get(i), round);
+            probes.add(probe);
+            futures.add(executor.schedule(probe, i * PROBE_STAGGER, TimeUnit.MILLISECONDS));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS
+            .toNanos(PROBE_TIMEOUT + servers.size() * PROBE_STAGGER);
+        try {
+            return round.await(deadline);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        finally {
+            // stop probes not started yet and close sockets still connecting
+            for (Future<?> future : futures)
+                future.cancel(false);
+            for (Probe probe : probes)
+                probe.cancel();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getProbeExecutor() {
+        if (sProbeExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(PROBE_THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ServerProbe-" + mCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            executor.setKeepAliveTime(PROBE_KEEP_ALIVE, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            sProbeExecutor = executor;
+        }
+        return sProbeExecutor;
+    }
+
+    /** Outcome of a set of probes started together. */
+    private static final class ProbeRound {
+        private EndpointServer mWinner;
+        private int mRemaining;
+
+        ProbeRound(int count) {
+            mRemaining = count;
+        }
+
+        synchronized void completed(EndpointServer server, boolean success) {
+            if (success && mWinner == null)
+                mWinner = server;
+            mRemaining--;
+            notifyAll();
+        }
+
+        synchronized EndpointServer await(long deadline) throws InterruptedException {
+            while (mWinner == null && mRemaining > 0) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0)
+                    break;
+                wait(wait);
+            }
+            return mWinner;
+        }
+    }
+
+    /** A TCP connection attempt to a server, which can be canceled while connecting. */
+    private final class Probe implements Runnable {
+        private final EndpointServer mServer;
+        private final ProbeRound mRound;
+        private Socket mSocket;
+        private boolean mCanceled;
+
+        Probe(EndpointServer server, ProbeRound round) {
+            mServer = server;
+            mRound = round;
+        }
+
+        @Override
+        public void run() {
+            Socket socket;
+            synchronized (this) {
+                if (mCanceled)
+                    return;
+                socket = mSocket = new Socket();
+            }
+
+            String host = mServer.getHost() != null ? mServer.getHost() : mServer.getNetwork();
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                socket.connect(new InetSocketAddress(host, mServer.getPort()), PROBE_TIMEOUT);
+                recordSuccess(mServer, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                success = true;
+            }
+            catch (IOException e) {
+                // closed by cancel(): not the server's fault
+                if (!isCanceled())
+                    recordFailure(mServer);
+            }
+            finally {
+                cancel();
+                mRound.completed(mServer, success);
+            }
+        }
+
+        private synchronized boolean isCanceled() {
+            return mCanceled;
+        }
+
+        synchronized void cancel() {
+            mCanceled = true;
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private Stats getStats(EndpointServer server, boolean create) {
+        if (mStats == null)
+            load();
+
+        String key = server.toString();
+        Stats stats = mStats.get(key);
+        if (stats == null && create) {
+            stats = new Stats();
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    private void load() {
+        mStats = new HashMap<>();
+        if (!mFile.isFile())
+            return;
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            props.load(in);
+            for (String key : props.stringPropertyNames()) {
+                try {
+                    mStats.put(key, new Stats(props.getProperty(key)));
+                }
+                catch (RuntimeException e) {
+                    // corrupted entry
+                }
+            }
+        }
+        catch (IOException e) {
+            // start from scratch
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+    }
+
+    private void save() {
+        Properties props = new Properties();
+        for (Map.Entry<String, Stats> e : mStats.entrySet())
+            props.setProperty(e.getKey(), e.getValue().toString());
+
+        // write to a temporary file first to never leave a broken file
+        File temp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            props.store(out, null);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile))
+                temp.delete();
+        }
+        catch (IOException e) {
+            // scores are not critical
+            temp.delete();
+        }
+        finally {
+            SystemUtils.closeStream(out);
+        }
+    }
+
+}
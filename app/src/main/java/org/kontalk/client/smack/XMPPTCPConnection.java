@@ -415,6 +415,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         // Authenticate using SASL
         SSLSession sslSession = secureSocket != null ? secureSocket.getSession() : null;
         saslAuthentication.authenticate(username, password, config.getAuthzid(), sslSession);
+        connectPhaseCompleted(ConnectPhase.SASL);
 
         // Wait for stream features after the authentication.
         // TODO: The name of this synchronization point "maybeCompressFeaturesReceived" is not perfect. It should be
@@ -429,6 +430,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             smResumedSyncPoint.sendAndWaitForResponse(new Resume(clientHandledStanzasCount, smSessionId));
             if (smResumedSyncPoint.wasSuccessful()) {
                 // We successfully resumed the stream, be done here
+                connectPhaseCompleted(ConnectPhase.BIND);
                 afterSuccessfulLogin(true);
                 return;
             }
@@ -492,6 +494,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             }
         }
 
+        connectPhaseCompleted(ConnectPhase.BIND);
         afterSuccessfulLogin(false);
     }
 
@@ -954,17 +957,57 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         // Establishes the TCP connection to the server and does setup the reader and writer. Throws an exception if
         // there is an error establishing the connection
         connectUsingConfiguration();
+        connectPhaseCompleted(ConnectPhase.TCP);
 
         // We connected successfully to the servers TCP port
         initConnection();
 
         // TLS handled will be successful either if TLS was established, or if it was not mandatory.
         tlsHandled.checkIfSuccessOrWaitOrThrow();
+        connectPhaseCompleted(ConnectPhase.TLS);
 
         // Wait with SASL auth until the SASL mechanisms have been received
         saslFeatureReceived.checkIfSuccessOrWaitOrThrow();
     }
 
+    /** Connection establishment phases. */
+    public enum ConnectPhase {
+        TCP,
+        TLS,
+        SASL,
+        /** Resource binding (or stream resumption). */
+        BIND,
+    }
+
+    /**
+     * Called when a connection establishment phase has been completed, e.g.
+     * for measuring how long each phase takes.
+     */
+    protected void connectPhaseCompleted(ConnectPhase phase) {
+    }
+
+    /**
+     * Called after a top-level stanza has been parsed and handed to listeners.
+     * @param nanos time spent parsing and dispatching the stanza
+     */
+    protected void stanzaParsed(long nanos) {
+    }
+
+    /**
+     * Called when a top-level element (stanza or nonza) starts being read
+     * from the server.
+     */
+    protected void elementReceived() {
+    }
+
+    /** Called before a nonza is queued for writing. */
+    protected void nonzaQueued(Element element) {
+    }
+
+    /** Called by the writer thread after an element has been written. */
+    protected void elementWritten(Element element) {
+    }
+
     /**
      * Sends out a notification that there was an error with the connection
      * and closes the connection. Also prints the stack trace of the given exception
@@ -1120,13 +1163,16 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                 while (!done) {
                     switch (eventType) {
                     case XmlPullParser.START_TAG:
+                        elementReceived();
                         final String name = parser.getName();
                         switch (name) {
                         case Message.ELEMENT:
                         case IQ.IQ_ELEMENT:
                         case Presence.ELEMENT:
+                            long parseStart = System.nanoTime();
                             try {
                                 parseAndProcessStanza(parser);
+                                stanzaParsed(System.nanoTime() - parseStart);
                             } finally {
                                 clientHandledStanzasCount = SMUtils.incrementHeight(clientHandledStanzasCount);
                             }
@@ -1442,6 +1488,9 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
          */
         protected void sendStreamElement(Element element) throws NotConnectedException, InterruptedException {
             throwNotConnectedExceptionIfDoneAndResumptionNotPossible();
+            if (!(element instanceof Stanza)) {
+                nonzaQueued(element);
+            }
             try {
                 queue.put(element);
             }
@@ -1560,6 +1609,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                     if (queue.isEmpty()) {
                         writer.flush();
                     }
+                    elementWritten(element);
                     if (packet != null) {
                         firePacketSendingListeners(packet);
                     }
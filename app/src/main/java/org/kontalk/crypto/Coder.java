@@ -81,6 +81,19 @@ public abstract class Coder {
     /** How much time to consider a message timestamp drifted (and thus compromised). */
     public static final long TIMEDIFF_THRESHOLD = TimeUnit.DAYS.toMillis(1);
 
+    /*
+     * Compression modes for file encryption.
+     */
+
+    /** Data is not compressed before encryption. */
+    public static final int COMPRESSION_NONE = 0;
+    /** ZIP (raw deflate) compression. */
+    public static final int COMPRESSION_ZIP = 1;
+    /** ZLIB compression. */
+    public static final int COMPRESSION_ZLIB = 2;
+    /** Decide by MIME type and by probing the data (see {@link CompressionPolicy}). */
+    public static final int COMPRESSION_AUTO = -1;
+
     /** Encrypts a string. */
     public abstract byte[] encryptText(CharSequence text) throws GeneralSecurityException;
 
@@ -91,8 +104,18 @@ public abstract class Coder {
     public abstract DecryptOutput decryptText(byte[] encrypted, boolean verify)
         throws GeneralSecurityException;
 
-    /** Encrypts a file. */
-    public abstract void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException;
+    /** Encrypts a file, always compressing it. */
+    public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
+        encryptFile(input, output, null, COMPRESSION_ZIP);
+    }
+
+    /**
+     * Encrypts a file using the given compression mode.
+     * @param mime MIME type of the file, used by {@link #COMPRESSION_AUTO} (may be null)
+     * @param compression one of the COMPRESSION_* constants
+     */
+    public abstract void encryptFile(InputStream input, OutputStream output,
+        String mime, int compression) throws GeneralSecurityException;
 
     /** Decrypts a file. */
     public abstract void decryptFile(InputStream input, boolean verify,
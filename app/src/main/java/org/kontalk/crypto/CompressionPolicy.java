@@ -0,0 +1,141 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+
+/**
+ * Decides whether data should be compressed before being encrypted.
+ * Most media formats are already compressed: deflating them again only
+ * wastes CPU time for no size gain.
+ * @author Daniele Ricci
+ */
+public final class CompressionPolicy {
+
+    /** Size of the block used for the entropy probe. */
+    static final int PROBE_SIZE = 4096;
+
+    /** Entropy (in bits per byte) above which data is considered incompressible. */
+    static final double ENTROPY_THRESHOLD = 7.5;
+
+    /** Probes shorter than this are not reliable: compress anyway. */
+    private static final int MIN_PROBE_SIZE = 256;
+
+    /** Already compressed MIME types not matched by the prefixes below. */
+    private static final String[] COMPRESSED_TYPES = {
+        "application/zip",
+        "application/gzip",
+        "application/x-gzip",
+        "application/x-bzip2",
+        "application/x-xz",
+        "application/x-7z-compressed",
+        "application/x-rar-compressed",
+        "application/vnd.android.package-archive",
+        "application/java-archive",
+        "application/pdf",
+        "application/ogg",
+        "image/jpeg",
+        "image/png",
+        "image/gif",
+        "image/webp",
+    };
+
+    private CompressionPolicy() {
+    }
+
+    /**
+     * Resolves the given compression mode to an actual algorithm
+     * ({@link Coder#COMPRESSION_NONE}, {@link Coder#COMPRESSION_ZIP} or
+     * {@link Coder#COMPRESSION_ZLIB}).
+     * If the mode is {@link Coder#COMPRESSION_AUTO} and the MIME type doesn't
+     * tell enough, up to {@link #PROBE_SIZE} bytes are read from the stream,
+     * which is then reset. The stream must support mark/reset in that case.
+     */
+    public static int resolve(int compression, String mime, InputStream in) throws IOException {
+        if (compression != Coder.COMPRESSION_AUTO)
+            return compression;
+
+        if (mime != null) {
+            if (isCompressedType(mime))
+                return Coder.COMPRESSION_NONE;
+            if (mime.toLowerCase(Locale.US).startsWith("text/"))
+                return Coder.COMPRESSION_ZIP;
+        }
+
+        if (in == null || !in.markSupported())
+            return Coder.COMPRESSION_ZIP;
+
+        byte[] probe = new byte[PROBE_SIZE];
+        int length = 0;
+        in.mark(PROBE_SIZE);
+        try {
+            int read;
+            while (length < probe.length &&
+                    (read = in.read(probe, length, probe.length - length)) > 0)
+                length += read;
+        }
+        finally {
+            in.reset();
+        }
+
+        return (length >= MIN_PROBE_SIZE && entropy(probe, length) > ENTROPY_THRESHOLD) ?
+            Coder.COMPRESSION_NONE : Coder.COMPRESSION_ZIP;
+    }
+
+    /** Returns true if the given MIME type is known to be already compressed. */
+    public static boolean isCompressedType(String mime) {
+        String type = mime.toLowerCase(Locale.US);
+        // uncompressed audio and bitmap formats are the exception
+        if (type.equals("audio/wav") || type.equals("audio/x-wav") ||
+                type.equals("image/bmp") || type.equals("image/x-ms-bmp"))
+            return false;
+
+        if (type.startsWith("video/") || type.startsWith("audio/"))
+            return true;
+
+        for (String compressed : COMPRESSED_TYPES) {
+            if (compressed.equals(type))
+                return true;
+        }
+        return false;
+    }
+
+    /** Computes the Shannon entropy of the given data, in bits per byte. */
+    static double entropy(byte[] data, int length) {
+        if (length <= 0)
+            return 0;
+
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++)
+            counts[data[i] & 0xff]++;
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+}
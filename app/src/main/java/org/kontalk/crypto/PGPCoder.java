@@ -18,6 +18,7 @@
 
 package org.kontalk.crypto;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -87,6 +88,8 @@ public class PGPCoder extends Coder {
 
     /** Buffer size. It should always be a power of 2. */
     private static final int BUFFER_SIZE = 1 << 8;
+    /** Buffer size for file data. Bigger to reduce per-write overhead. */
+    private static final int FILE_BUFFER_SIZE = 1 << 13;
 
     private final EndpointServer mServer;
     private final PersonalKey mKey;
@@ -502,8 +505,14 @@ public class PGPCoder extends Coder {
     }
 
     @Override
-    public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
+    public void encryptFile(InputStream input, OutputStream output,
+            String mime, int compression) throws GeneralSecurityException {
         try {
+            if (compression == COMPRESSION_AUTO && !input.markSupported())
+                input = new BufferedInputStream(input, FILE_BUFFER_SIZE);
+            int algorithm = getCompressionAlgorithm(CompressionPolicy
+                .resolve(compression, mime, input));
+
             // setup data encryptor & generator
             BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
             encryptor.setWithIntegrityPacket(true);
@@ -514,11 +523,12 @@ public class PGPCoder extends Coder {
             for (PGPPublicKeyRing rcpt : mRecipients)
                 encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
 
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
+            OutputStream encryptedOut = encGen.open(output, new byte[FILE_BUFFER_SIZE]);
 
             // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+            // an uncompressed packet is still used to keep the message structure
+            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(algorithm);
+            OutputStream compressedOut = compGen.open(encryptedOut, new byte[FILE_BUFFER_SIZE]);
 
             // setup signature generator
             PGPSignatureGenerator sigGen = new PGPSignatureGenerator
@@ -540,12 +550,12 @@ public class PGPCoder extends Coder {
                 PGPLiteralData.BINARY,
                 "",
                 new Date(),
-                new byte[BUFFER_SIZE]);
+                new byte[FILE_BUFFER_SIZE]);
 
             // read the "in" stream, compress, encrypt and write to the "out" stream
             // this must be done if clear data is bigger than the buffer size
             // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
+            byte[] buf = new byte[FILE_BUFFER_SIZE];
             int len;
             while ((len = input.read(buf)) > 0) {
                 literalOut.write(buf, 0, len);
@@ -567,6 +577,19 @@ public class PGPCoder extends Coder {
         }
     }
 
+    private static int getCompressionAlgorithm(int compression) {
+        switch (compression) {
+            case COMPRESSION_NONE:
+                return PGPCompressedData.UNCOMPRESSED;
+            case COMPRESSION_ZLIB:
+                return PGPCompressedData.ZLIB;
+            case COMPRESSION_ZIP:
+                return PGPCompressedData.ZIP;
+            default:
+                throw new IllegalArgumentException("unknown compression mode: " + compression);
+        }
+    }
+
     /** Decrypts a file. */
     @SuppressWarnings("unchecked")
     public void decryptFile(InputStream input, boolean verify,
@@ -0,0 +1,251 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+
+/**
+ * Process-wide cache of decoded avatars, keyed by JID and size.
+ * Cached bitmaps are shared between contacts and views: they must never be
+ * recycled or modified.
+ * @author Daniele Ricci
+ */
+class AvatarCache {
+
+    /** Fraction of the heap the cache is allowed to use. */
+    private static final int HEAP_FRACTION = 16;
+
+    /** Number of threads loading avatars. */
+    private static final int LOADER_THREADS = 2;
+    /** Idle loader threads are terminated after this many seconds. */
+    private static final long LOADER_KEEP_ALIVE = 10;
+
+    private final LruCache<String, Bitmap> mCache;
+
+    /**
+     * Bitmap for decoding avatars which need to be scaled afterwards.
+     * Never handed out, so it can be safely reused with inBitmap.
+     */
+    private final AtomicReference<Bitmap> mScratch = new AtomicReference<>();
+
+    /** Bumped on every invalidation, to discard avatars loaded in the meantime. */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+
+    private final ExecutorService mLoader;
+
+    AvatarCache() {
+        mCache = new LruCache<String, Bitmap>((int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / HEAP_FRACTION)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        ThreadPoolExecutor loader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS,
+            LOADER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "AvatarLoader-" + mCount.getAndIncrement());
+                }
+            });
+        loader.allowCoreThreadTimeOut(true);
+        mLoader = loader;
+    }
+
+    private static String key(String jid, int size) {
+        return jid.toLowerCase(Locale.US) + "|" + size;
+    }
+
+    /** Runs an avatar loading task in the background. */
+    void execute(Runnable task) {
+        mLoader.execute(task);
+    }
+
+    Bitmap get(String jid, int size) {
+        Bitmap bitmap = mCache.get(key(jid, size));
+        if (bitmap != null)
+            mHits.incrementAndGet();
+        else
+            mMisses.incrementAndGet();
+        return bitmap;
+    }
+
+    /** Returns the current generation, to be passed to {@link #put}. */
+    int generation() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Caches an avatar, unless some invalidation happened after
+     * <code>generation</code> was taken.
+     */
+    synchronized void put(String jid, int size, Bitmap bitmap, int generation) {
+        if (generation == mGeneration.get())
+            mCache.put(key(jid, size), bitmap);
+    }
+
+    /** Removes all cached sizes for the given JID. */
+    void invalidate(String jid) {
+        invalidate(Collections.singleton(jid));
+    }
+
+    /** Removes all cached sizes for the given JIDs. */
+    synchronized void invalidate(Collection<String> jids) {
+        mGeneration.incrementAndGet();
+        Set<String> invalidated = new HashSet<>(jids.size());
+        for (String jid : jids)
+            invalidated.add(jid.toLowerCase(Locale.US));
+        for (String key : mCache.snapshot().keySet()) {
+            if (invalidated.contains(key.substring(0, key.lastIndexOf('|'))))
+                mCache.remove(key);
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration.incrementAndGet();
+        mCache.evictAll();
+    }
+
+    /**
+     * Decodes an image into a square bitmap of the given size, cropping the
+     * center of non-square images. The image is subsampled while decoding,
+     * so the full size bitmap is never allocated.
+     * @return the decoded bitmap or null if the data could not be decoded
+     */
+    Bitmap decode(byte[] data, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sampleSize = computeSampleSize(options.outWidth, options.outHeight, size);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        Bitmap decoded = null;
+        Bitmap scratch = mScratch.getAndSet(null);
+        if (scratch != null && canReuse(scratch, width, height, sampleSize)) {
+            options.inBitmap = scratch;
+            try {
+                decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                if (decoded != null)
+                    mReused.incrementAndGet();
+            }
+            catch (IllegalArgumentException e) {
+                // bitmap not reusable after all
+                options.inBitmap = null;
+            }
+        }
+        if (decoded == null) {
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (decoded == null)
+                return null;
+        }
+
+        if (decoded.getWidth() == size && decoded.getHeight() == size)
+            return decoded;
+
+        int[] crop = computeCrop(decoded.getWidth(), decoded.getHeight());
+        Bitmap scaled = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        new Canvas(scaled).drawBitmap(decoded,
+            new Rect(crop[0], crop[1], crop[0] + crop[2], crop[1] + crop[2]),
+            new Rect(0, 0, size, size), new Paint(Paint.FILTER_BITMAP_FLAG));
+        mScratch.compareAndSet(null, decoded);
+        return scaled;
+    }
+
+    /**
+     * Returns the largest centered square of an image.
+     * @return left, top and side of the square
+     */
+    static int[] computeCrop(int width, int height) {
+        int side = Math.min(width, height);
+        return new int[] { (width - side) / 2, (height - side) / 2, side };
+    }
+
+    /** Returns the largest power of 2 that keeps both sides at least <code>size</code>. */
+    static int computeSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private static boolean canReuse(Bitmap bitmap, int width, int height, int sampleSize) {
+        if (!bitmap.isMutable())
+            return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return bitmap.getAllocationByteCount() >= width * height * 4;
+        // older versions require the exact same size and no subsampling
+        return sampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+
+    @Override
+    public String toString() {
+        return "avatars=" + mCache.snapshot().size() +
+            " size=" + mCache.size() / 1024 + "KB" +
+            " hits=" + mHits.get() +
+            " misses=" + mMisses.get() +
+            " reused=" + mReused.get() +
+            " evictions=" + mCache.evictionCount();
+    }
+
+}
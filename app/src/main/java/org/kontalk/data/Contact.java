@@ -20,8 +20,11 @@ package org.kontalk.data;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -42,17 +45,14 @@ import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Handler;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.support.annotation.NonNull;
-import android.support.v4.util.LruCache;
 
 import org.kontalk.Log;
 import org.kontalk.R;
@@ -109,8 +109,7 @@ public class Contact {
 
     private boolean mBlocked;
 
-    private Drawable mAvatar;
-    private byte [] mAvatarData;
+    private volatile Drawable mAvatar;
 
     private String mFingerprint;
     private PGPLazyPublicKeyRingLoader mTrustedKeyRing;
@@ -147,67 +146,13 @@ public class Contact {
 
     private static final Set<ContactChangeListener> sListeners = new HashSet<>();
 
-    /**
-     * Contact cache.
-     * @author Daniele Ricci
-     */
-    private final static class ContactCache extends LruCache<String, Contact> {
-        private static final int MAX_ENTRIES = 20;
-
-        public ContactCache() {
-            super(MAX_ENTRIES);
-        }
-
-        public synchronized Contact get(Context context, String userId, String numberHint) {
-            Contact c = get(userId);
-            if (c == null) {
-                c = _findByUserId(context, userId);
-                if (c != null) {
-                    // put the contact in the cache
-                    put(userId, c);
-                }
-                // try system contacts lookup
-                else if (numberHint != null) {
-                    Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
-                    ContentResolver resolver = context.getContentResolver();
-                    Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
-                    Cursor cur = resolver.query(uri, new String[] {
-                                PhoneLookup.DISPLAY_NAME,
-                                PhoneLookup.LOOKUP_KEY,
-                                PhoneLookup._ID,
-                            }, null, null, null);
-                    if (cur.moveToFirst()) {
-                        String name = cur.getString(0);
-                        String lookupKey = cur.getString(1);
-                        long cid = cur.getLong(2);
-
-                        c = new Contact(cid, lookupKey, name, numberHint, userId, false);
-                        Uri contactUri = c.getUri();
-                        if (contactUri != null) {
-                            c.loadStructuredNameAsync(context);
-                        }
-
-                        put(userId, c);
-
-                        // insert result into users database immediately
-                        ContentValues values = new ContentValues(5);
-                        values.put(Users.NUMBER, numberHint);
-                        values.put(Users.DISPLAY_NAME, name);
-                        values.put(Users.JID, userId);
-                        values.put(Users.LOOKUP_KEY, lookupKey);
-                        values.put(Users.CONTACT_ID, cid);
-                        resolver.insert(Users.CONTENT_URI, values);
-                    }
-                    cur.close();
-                }
-            }
-
-            return c;
-        }
-    }
+    /** Max number of user IDs in a single prefetch query. */
+    private static final int PREFETCH_BATCH_SIZE = 200;
 
     private final static ContactCache cache = new ContactCache();
 
+    private final static AvatarCache sAvatars = new AvatarCache();
+
     /** Stores volatile and connection-time information about a contact. */
     private static final class ContactState {
         private final String mJID;
@@ -501,10 +446,9 @@ public class Contact {
     }
 
     @NonNull
-    private static Drawable generateRandomAvatar(Context context, Contact contact) {
+    private static Drawable generateRandomAvatar(Contact contact, int size) {
         String letter = (contact.mName != null && contact.mName.length() > 0) ?
             contact.mName : contact.mJID;
-        int size = context.getResources().getDimensionPixelSize(R.dimen.avatar_size);
 
         return TextDrawable.builder()
             .beginConfig()
@@ -516,12 +460,23 @@ public class Contact {
     }
 
     public void getAvatarAsync(final Context context, final ContactCallback callback) {
+        if (mAvatar == null) {
+            // already decoded for another contact instance
+            Bitmap cached = sAvatars.get(mJID, getListAvatarSize(context));
+            if (cached != null) {
+                synchronized (this) {
+                    if (mAvatar == null)
+                        mAvatar = new BitmapDrawable(context.getResources(), cached);
+                }
+            }
+        }
+
         if (mAvatar != null) {
             callback.avatarLoaded(this, mAvatar);
         }
         else {
             // start async load
-            new Thread(new Runnable() {
+            sAvatars.execute(new Runnable() {
                 public void run() {
                     try {
                         Drawable avatar = getAvatar(context);
@@ -532,105 +487,131 @@ public class Contact {
                         Log.w(TAG, "error while loading avatar", e);
                     }
                 }
-            }).start();
+            });
         }
     }
 
     public synchronized Drawable getAvatar(Context context) {
         if (mAvatar == null) {
-            Bitmap b = loadAvatarBitmap(context);
-            if (b != null) {
-                mAvatar = new BitmapDrawable(context.getResources(), b);
-            }
+            Bitmap b = loadAvatarBitmap(context, getListAvatarSize(context));
+            mAvatar = new BitmapDrawable(context.getResources(), b);
         }
-
-        if (mAvatar == null)
-            mAvatar = generateRandomAvatar(context, this);
-
         return mAvatar;
     }
 
-    private synchronized Bitmap loadAvatarBitmap(Context context) {
-        if (mAvatarData == null) {
+    private static int getListAvatarSize(Context context) {
+        return context.getResources().getDimensionPixelSize(R.dimen.avatar_size);
+    }
+
+    /**
+     * Returns the avatar scaled to the given size from the avatar cache,
+     * loading it or generating a random one if needed.
+     */
+    @NonNull
+    private Bitmap loadAvatarBitmap(Context context, int size) {
+        Bitmap avatar = sAvatars.get(mJID, size);
+        if (avatar == null) {
+            int generation = sAvatars.generation();
             Uri uri = getUri();
-            if (uri != null)
-                mAvatarData = loadAvatarData(context, uri);
+            byte[] data = uri != null ? loadAvatarData(context, uri) : null;
+            if (data != null)
+                avatar = sAvatars.decode(data, size);
+            if (avatar == null)
+                avatar = MessageUtils.drawableToBitmap(generateRandomAvatar(this, size));
+            sAvatars.put(mJID, size, avatar, generation);
         }
-
-        if (mAvatarData != null)
-            return BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-
-        return null;
+        return avatar;
     }
 
     /**
      * Public version of {@link #loadAvatarBitmap} which includes the random
      * avatar generation.
      * @param context a context
-     * @param resizeForNotification true for resizing the avatar to the large icon size 128x128
-     * @return a newly-allocated {@link Bitmap}
+     * @param resizeForNotification true for resizing the avatar to the large icon size
+     * @return a shared {@link Bitmap}, which must not be recycled or modified
      */
     @NonNull
-    public synchronized Bitmap getAvatarBitmap(Context context, boolean resizeForNotification) {
-        Bitmap avatar = loadAvatarBitmap(context);
-        if (avatar == null) {
-            Drawable d = generateRandomAvatar(context, this);
-            avatar = MessageUtils.drawableToBitmap(d);
-        }
-
-        if (resizeForNotification && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            // Contact bitmaps are 96x96 so we have to scale 'em up to 128x128 to fill the whole notification large icon.
-            // inspired by the AOSP Mms app
-            final Resources res = context.getResources();
-            final int idealIconHeight =
-                res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
-            final int idealIconWidth =
-                res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
-            if (avatar.getHeight() < idealIconHeight) {
-                // Scale this image to fit the intended size
-                Bitmap scaledAvatar = Bitmap.createScaledBitmap(
-                    avatar, idealIconWidth, idealIconHeight, true);
-                if (scaledAvatar != null) {
-                    if (scaledAvatar != avatar)
-                        avatar.recycle();
-                    avatar = scaledAvatar;
-                }
-            }
-        }
-
-        return avatar;
+    public Bitmap getAvatarBitmap(Context context, boolean resizeForNotification) {
+        final Resources res = context.getResources();
+        int size = resizeForNotification ?
+            res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height) :
+            res.getDimensionPixelSize(R.dimen.avatar_size_large);
+        return loadAvatarBitmap(context, size);
     }
 
     /**
      * Public version of {@link #loadAvatarBitmap} which includes the random
      * avatar generation.
-     * @return a newly-allocated {@link Bitmap}
+     * @return a shared {@link Bitmap}, which must not be recycled or modified
      */
     @NonNull
-    public synchronized Bitmap getAvatarBitmap(Context context) {
+    public Bitmap getAvatarBitmap(Context context) {
         return getAvatarBitmap(context, false);
     }
 
+    /**
+     * Loads the list avatars of the given contacts in the background, so
+     * they are ready when their list items are displayed.
+     */
+    public static void prefetchAvatars(Context context, Collection<Contact> contacts) {
+        final Context appContext = context.getApplicationContext();
+        for (final Contact c : contacts) {
+            if (c.mAvatar == null) {
+                sAvatars.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            c.getAvatar(appContext);
+                        }
+                        catch (Exception e) {
+                            Log.w(TAG, "error while loading avatar", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
     private void clear() {
         mLastSeen = 0;
     }
 
+    /** Rough estimate of the memory used by this object, for the contact cache. */
+    int getEstimatedSize() {
+        // object headers, fields and the key ring loader
+        int size = 256;
+        size += stringSize(mNumber) + stringSize(mName) + stringSize(mJID) +
+            stringSize(mLookupKey) + stringSize(mStatus) + stringSize(mFingerprint);
+        return size;
+    }
+
+    private static int stringSize(String s) {
+        return s != null ? 40 + s.length() * 2 : 0;
+    }
+
     public static void invalidate(String userId) {
         cache.remove(userId);
+        sAvatars.invalidate(userId);
         fireContactInvalidated(userId);
     }
 
+    /** Invalidates the given contacts, notifying listeners only once. */
+    public static void invalidate(Collection<String> userIds) {
+        cache.removeAll(userIds);
+        sAvatars.invalidate(userIds);
+        fireContactInvalidated(null);
+    }
+
     public static void invalidate() {
         cache.evictAll();
+        sAvatars.invalidateAll();
         fireContactInvalidated(null);
     }
 
     /** Invalidates cached data for all contacts. Does not delete contact information. */
     public static void invalidateData() {
-        synchronized (cache) {
-            for (Contact c : cache.snapshot().values()) {
-                c.clear();
-            }
+        for (Contact c : cache.snapshot()) {
+            c.clear();
         }
         // invalidate contact state
         sStates.clear();
@@ -666,30 +647,82 @@ public class Contact {
         Contact c = cache.get(jid);
         if (c == null) {
             // don't let the cache fetch contact data again - we'll populate it
-            final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
-            final String key = cursor.getString(COLUMN_LOOKUP_KEY);
-            final String name = cursor.getString(COLUMN_DISPLAY_NAME);
-            final String number = cursor.getString(COLUMN_NUMBER);
-            final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
-            final String status = cursor.getString(COLUMN_STATUS);
-            final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
-
-            c = new Contact(contactId, key, name, number, jid, blocked);
-            c.mRegistered = registered;
-            c.mStatus = status;
-
-            Uri uri = c.getUri();
-            if (uri != null) {
-                c.loadStructuredNameAsync(context);
-            }
+            c = buildFromUsersCursor(context, cursor);
+            cache.put(jid, c);
+        }
+        return c;
+    }
 
-            retrieveKeyInfo(context, c);
+    private static Contact buildFromUsersCursor(Context context, Cursor cursor) {
+        final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
+        final String key = cursor.getString(COLUMN_LOOKUP_KEY);
+        final String name = cursor.getString(COLUMN_DISPLAY_NAME);
+        final String number = cursor.getString(COLUMN_NUMBER);
+        final String jid = cursor.getString(COLUMN_JID);
+        final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
+        final String status = cursor.getString(COLUMN_STATUS);
+        final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
 
-            cache.put(jid, c);
+        Contact c = new Contact(contactId, key, name, number, jid, blocked);
+        c.mRegistered = registered;
+        c.mStatus = status;
+
+        Uri uri = c.getUri();
+        if (uri != null) {
+            c.loadStructuredNameAsync(context);
         }
+
+        retrieveKeyInfo(context, c);
         return c;
     }
 
+    /**
+     * Loads the given contacts into the cache with a few queries, instead of
+     * one query per contact. Useful before displaying a list of users.
+     * Must not be called from the UI thread.
+     */
+    public static void prefetch(Context context, Collection<String> userIds) {
+        List<String> normalized = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            if (userId != null)
+                normalized.add(XmppStringUtils.parseBareJid(userId));
+        }
+
+        List<String> missing = new ArrayList<>(cache.missing(normalized));
+        ContentResolver resolver = context.getContentResolver();
+        for (int i = 0; i < missing.size(); i += PREFETCH_BATCH_SIZE) {
+            List<String> batch = missing.subList(i, Math.min(missing.size(), i + PREFETCH_BATCH_SIZE));
+            StringBuilder selection = new StringBuilder(Users.JID).append(" IN (");
+            for (int j = 0; j < batch.size(); j++) {
+                if (j > 0)
+                    selection.append(',');
+                selection.append('?');
+            }
+            selection.append(')');
+
+            long generation = cache.generation();
+            List<Contact> contacts = new ArrayList<>(batch.size());
+            Cursor c = resolver.query(Users.CONTENT_URI, ALL_CONTACTS_PROJECTION,
+                selection.toString(), batch.toArray(new String[batch.size()]), null);
+            if (c == null)
+                continue;
+            try {
+                while (c.moveToNext()) {
+                    contacts.add(buildFromUsersCursor(context, c));
+                }
+            }
+            finally {
+                c.close();
+            }
+            cache.putAll(contacts, generation);
+        }
+    }
+
+    /** Returns a debug string with contact cache statistics. */
+    public static String getCacheStats() {
+        return cache.toString() + " " + sAvatars.toString();
+    }
+
     public static String numberByUserId(Context context, String userId) {
         Cursor c = null;
         try {
@@ -714,9 +747,14 @@ public class Contact {
     }
 
     @NonNull
-    public static Contact findByUserId(Context context, @NonNull String userId, String numberHint) {
+    public static Contact findByUserId(final Context context, @NonNull String userId, final String numberHint) {
         String normalizedUserId = XmppStringUtils.parseBareJid(userId);
-        Contact c = cache.get(context, normalizedUserId, numberHint);
+        Contact c = cache.get(normalizedUserId, new ContactCache.Loader() {
+            @Override
+            public Contact load(String userId) {
+                return loadContact(context, userId, numberHint);
+            }
+        });
         // build dummy contact if not found
         if (c == null) {
             c = new Contact(-1, null, normalizedUserId, numberHint, userId, false);
@@ -739,6 +777,44 @@ public class Contact {
         }
     }
 
+    /** Loads a contact from the users database or, failing that, from system contacts. */
+    static Contact loadContact(Context context, String userId, String numberHint) {
+        Contact c = _findByUserId(context, userId);
+        // try system contacts lookup
+        if (c == null && numberHint != null) {
+            Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
+            ContentResolver resolver = context.getContentResolver();
+            Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
+            Cursor cur = resolver.query(uri, new String[] {
+                        PhoneLookup.DISPLAY_NAME,
+                        PhoneLookup.LOOKUP_KEY,
+                        PhoneLookup._ID,
+                    }, null, null, null);
+            if (cur.moveToFirst()) {
+                String name = cur.getString(0);
+                String lookupKey = cur.getString(1);
+                long cid = cur.getLong(2);
+
+                c = new Contact(cid, lookupKey, name, numberHint, userId, false);
+                Uri contactUri = c.getUri();
+                if (contactUri != null) {
+                    c.loadStructuredNameAsync(context);
+                }
+
+                // insert result into users database immediately
+                ContentValues values = new ContentValues(5);
+                values.put(Users.NUMBER, numberHint);
+                values.put(Users.DISPLAY_NAME, name);
+                values.put(Users.JID, userId);
+                values.put(Users.LOOKUP_KEY, lookupKey);
+                values.put(Users.CONTACT_ID, cid);
+                resolver.insert(Users.CONTENT_URI, values);
+            }
+            cur.close();
+        }
+        return c;
+    }
+
     static Contact _findByUserId(Context context, String userId) {
         ContentResolver cres = context.getContentResolver();
         Cursor c = cres.query(Uri.withAppendedPath(Users.CONTENT_URI, userId),
@@ -0,0 +1,260 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.support.v4.util.LruCache;
+
+
+/**
+ * Contact cache, bounded by an estimate of the memory used by its entries.
+ * Lookups never wait for each other: a contact missing from the cache is
+ * loaded by the first thread asking for it, while other threads asking for
+ * the same contact wait for that load only.
+ * @author Daniele Ricci
+ */
+class ContactCache {
+
+    /** Loads a contact which is not in the cache. */
+    interface Loader {
+        /** Returns null if the contact was not found. */
+        Contact load(String userId);
+    }
+
+    /** Fraction of the heap the cache is allowed to use. */
+    private static final int HEAP_FRACTION = 64;
+
+    private static final class Entry {
+        final Contact contact;
+        /** Computed once, {@link LruCache} needs a constant size. */
+        final int size;
+
+        Entry(Contact contact) {
+            this.contact = contact;
+            this.size = contact.getEstimatedSize();
+        }
+    }
+
+    private final LruCache<String, Entry> mCache;
+
+    /** Loads in progress. */
+    private final ConcurrentMap<String, FutureTask<Contact>> mLoading = new ConcurrentHashMap<>();
+
+    /**
+     * Bumped on every invalidation. Loads take the current value and their
+     * result is discarded if the contact was invalidated in the meantime.
+     */
+    private final AtomicLong mGeneration = new AtomicLong();
+    /** Generation of the last invalidation of each contact. */
+    private final ConcurrentMap<String, Long> mInvalidated = new ConcurrentHashMap<>();
+    /** Generation of the last invalidation of the whole cache. */
+    private volatile long mInvalidatedAll;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mLoads = new AtomicLong();
+
+    ContactCache() {
+        this((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEAP_FRACTION));
+    }
+
+    /** @param maxSize memory budget in bytes */
+    ContactCache(int maxSize) {
+        mCache = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.size;
+            }
+        };
+    }
+
+    /** Returns a cached contact, without loading it. */
+    Contact get(String userId) {
+        Entry entry = mCache.get(userId);
+        if (entry != null) {
+            mHits.incrementAndGet();
+            return entry.contact;
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns a cached contact, loading it if needed. Only one load per
+     * contact will be running at any time.
+     */
+    Contact get(final String userId, final Loader loader) {
+        Contact c = get(userId);
+        if (c != null)
+            return c;
+
+        final long generation = mGeneration.get();
+        FutureTask<Contact> task = new FutureTask<>(new Callable<Contact>() {
+            @Override
+            public Contact call() {
+                mLoads.incrementAndGet();
+                Contact contact = loader.load(userId);
+                if (contact != null)
+                    put(userId, contact, generation);
+                return contact;
+            }
+        });
+
+        FutureTask<Contact> running = mLoading.putIfAbsent(userId, task);
+        if (running == null) {
+            running = task;
+            try {
+                // load it in this thread
+                task.run();
+            }
+            finally {
+                mLoading.remove(userId, task);
+            }
+        }
+
+        return await(running);
+    }
+
+    private static Contact await(FutureTask<Contact> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                }
+                catch (InterruptedException e) {
+                    // loads are short, don't leave the caller without a result
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    void put(String userId, Contact contact) {
+        mCache.put(userId, new Entry(contact));
+    }
+
+    /**
+     * Caches a contact, unless it was invalidated after
+     * <code>generation</code> was taken.
+     */
+    private synchronized void put(String userId, Contact contact, long generation) {
+        if (isValid(userId, generation))
+            put(userId, contact);
+    }
+
+    private boolean isValid(String userId, long generation) {
+        if (generation < mInvalidatedAll)
+            return false;
+        Long invalidated = mInvalidated.get(userId);
+        return invalidated == null || generation >= invalidated;
+    }
+
+    /** Returns the given user IDs that are neither cached nor being loaded. */
+    Set<String> missing(Collection<String> userIds) {
+        Set<String> missing = new LinkedHashSet<>();
+        for (String userId : userIds) {
+            if (mCache.get(userId) == null && !mLoading.containsKey(userId))
+                missing.add(userId);
+        }
+        return missing;
+    }
+
+    /** Returns the current generation, to be passed to {@link #putAll}. */
+    long generation() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Caches contacts loaded in a batch (e.g. by a prefetch). Contacts
+     * invalidated after <code>generation</code> was taken are skipped.
+     */
+    synchronized void putAll(Collection<Contact> contacts, long generation) {
+        for (Contact c : contacts) {
+            if (isValid(c.getJID(), generation))
+                put(c.getJID(), c);
+        }
+    }
+
+    synchronized void remove(String userId) {
+        mInvalidated.put(userId, mGeneration.incrementAndGet());
+        mCache.remove(userId);
+        mLoading.remove(userId);
+    }
+
+    synchronized void removeAll(Collection<String> userIds) {
+        long generation = mGeneration.incrementAndGet();
+        for (String userId : userIds) {
+            mInvalidated.put(userId, generation);
+            mCache.remove(userId);
+            mLoading.remove(userId);
+        }
+    }
+
+    synchronized void evictAll() {
+        mInvalidatedAll = mGeneration.incrementAndGet();
+        // older than the global invalidation, not needed anymore
+        mInvalidated.clear();
+        mCache.evictAll();
+        mLoading.clear();
+    }
+
+    /** Returns a copy of the cached contacts. */
+    List<Contact> snapshot() {
+        Collection<Entry> entries = mCache.snapshot().values();
+        List<Contact> contacts = new ArrayList<>(entries.size());
+        for (Entry entry : entries)
+            contacts.add(entry.contact);
+        return contacts;
+    }
+
+    @Override
+    public String toString() {
+        return "contacts=" + mCache.snapshot().size() +
+            " size=" + mCache.size() / 1024 + "KB" +
+            " hits=" + mHits.get() +
+            " misses=" + mMisses.get() +
+            " loads=" + mLoads.get() +
+            " evictions=" + mCache.evictionCount();
+    }
+
+}
@@ -18,6 +18,9 @@
 
 package org.kontalk.data;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.AsyncQueryHandler;
 import android.content.ContentUris;
 import android.content.Context;
@@ -198,6 +201,21 @@ public class Conversation {
         deleteInternal(context, cursor.getLong(COLUMN_ID), groupJid, groupPeers, groupType, leaveGroup, encrypted);
     }
 
+    /**
+     * Loads the contacts of the one-to-one conversations in a cursor into
+     * the contact cache, all at once. The cursor is rewound afterwards.
+     */
+    static void prefetchContacts(Context context, Cursor cursor) {
+        List<String> peers = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (cursor.getString(COLUMN_GROUP_JID) == null)
+                peers.add(cursor.getString(COLUMN_PEER));
+        }
+        cursor.moveToPosition(-1);
+        Contact.prefetch(context, peers);
+    }
+
     public static void deleteAll(Context context, boolean leaveGroups, boolean archived) {
         Cursor c = context.getContentResolver().query(Threads.CONTENT_URI,
             PROJECTION, Threads.ARCHIVED + " = " + (archived ? "1" : "0"), null, null);
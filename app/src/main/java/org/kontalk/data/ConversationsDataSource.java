@@ -127,6 +127,7 @@ public class ConversationsDataSource extends PositionalDataSource<Conversation>
 
         List<Conversation> conversations = new ArrayList<>();
         try {
+            Conversation.prefetchContacts(mContext, cursor);
             while (cursor.moveToNext()) {
                 conversations.add(Conversation.createFromCursor(mContext, cursor));
             }
@@ -134,6 +135,13 @@ public class ConversationsDataSource extends PositionalDataSource<Conversation>
         finally {
             cursor.close();
         }
+
+        List<Contact> contacts = new ArrayList<>(conversations.size());
+        for (Conversation conv : conversations) {
+            if (conv.getContact() != null)
+                contacts.add(conv.getContact());
+        }
+        Contact.prefetchAvatars(mContext, contacts);
         return conversations;
     }
 
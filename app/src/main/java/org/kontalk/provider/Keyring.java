@@ -54,6 +54,9 @@ public class Keyring {
     @VisibleForTesting
     static final String VALUE_AUTOTRUST = "<autotrust>";
 
+    /** Parsed public keys, to avoid a query and a parse for every message. */
+    private static final PublicKeyCache sCache = PublicKeyCache.getInstance();
+
     private Keyring() {
     }
 
@@ -175,10 +178,18 @@ public class Keyring {
      * @param trustLevel the minimum trust level to consider
      */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid, int trustLevel) {
+        PGPPublicKeyRing cached = sCache.get(jid, trustLevel);
+        if (cached != null)
+            return cached;
+
+        int generation = sCache.generation();
         TrustedPublicKeyData key = getPublicKeyData(context, jid, trustLevel);
 
         try {
-            return PGP.readPublicKeyring(key.keyData);
+            PGPPublicKeyRing keyRing = PGP.readPublicKeyring(key.keyData);
+            if (keyRing != null)
+                sCache.put(jid, trustLevel, keyRing, generation);
+            return keyRing;
         }
         catch (Exception e) {
             // ignored
@@ -187,6 +198,13 @@ public class Keyring {
         return null;
     }
 
+    /** Returns a debug string with public key cache statistics. */
+    public static String getCacheStats() {
+        long hits = sCache.getHitCount();
+        long misses = sCache.getMissCount();
+        return "keys=" + sCache.size() + " hits=" + hits + " misses=" + misses;
+    }
+
     /**
      * Retrieves the latest public key with the minimum given trust level.
      * @param trustLevel the minimum trust level to consider
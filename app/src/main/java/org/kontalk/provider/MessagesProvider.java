@@ -20,15 +20,23 @@ package org.kontalk.provider;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -37,6 +45,8 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -97,8 +107,11 @@ public class MessagesProvider extends ContentProvider {
     private static final int IMPORT_LOCK = 15;
     private static final int IMPORT_UNLOCK = 16;
     private static final int RELOAD = 17;
+    private static final int REPAIR_COUNTERS = 18;
 
     private DatabaseHelper dbHelper;
+    /** Batch operation state for the current thread. */
+    private final ThreadLocal<BatchState> mBatch = new ThreadLocal<>();
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
@@ -109,7 +122,7 @@ public class MessagesProvider extends ContentProvider {
     @VisibleForTesting
     static class DatabaseHelper extends SQLiteOpenHelper {
         @VisibleForTesting
-        static final int DATABASE_VERSION = 20;
+        static final int DATABASE_VERSION = 22;
         @VisibleForTesting
         static final String DATABASE_NAME = "messages.db";
 
@@ -248,33 +261,47 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        private static final String SCHEMA_MESSAGES_THREAD_ID_IDX =
-            "CREATE INDEX IF NOT EXISTS idx_messages_thread_id ON " + TABLE_MESSAGES +
-            "(" + Messages.THREAD_ID + ")";
-
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread/new count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
+        private static final String SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_timestamp ON " + TABLE_MESSAGES +
+            "(" + Messages.THREAD_ID + ", " + Messages.TIMESTAMP + ")";
+
+        /**
+         * Serves the outbox queries (pending outgoing messages and receipts).
+         * Statuses must be matched with equality or IN for this to be used.
+         */
+        private static final String SCHEMA_MESSAGES_DIRECTION_STATUS_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_direction_status ON " + TABLE_MESSAGES +
+            "(" + Messages.DIRECTION + ", " + Messages.STATUS + ")";
+
+        /** Adds the inserted message to the thread counters. */
+        private static final String UPDATE_COUNTERS_ADD_NEW =
             "UPDATE " + TABLE_THREADS + " SET " +
-                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id AND unread <> 0), " +
-                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id AND \"new\" <> 0) " +
+                "count = count + 1, " +
+                "unread = unread + (new.unread <> 0), " +
+                "\"new\" = \"new\" + (new.\"new\" <> 0) " +
                 "WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
+        /** Removes the deleted message from the thread counters. */
+        private static final String UPDATE_COUNTERS_REMOVE_OLD =
             "UPDATE " + TABLE_THREADS + " SET " +
-                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id AND unread <> 0), " +
-                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id AND \"new\" <> 0) " +
+                "count = count - 1, " +
+                "unread = unread - (old.unread <> 0), " +
+                "\"new\" = \"new\" - (old.\"new\" <> 0) " +
                 "WHERE _id = old.thread_id";
 
-        /** Updates the thread status reflected by the latest message. */
+        /**
+         * Recalculates all thread counters from scratch.
+         * Used only for repairing counters that went out of sync.
+         */
+        private static final String REPAIR_THREADS_COUNTERS =
+            "UPDATE " + TABLE_THREADS + " SET " +
+                "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND unread <> 0), " +
+                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND \"new\" <> 0)";
+
+        /**
+         * Updates the thread status reflected by the latest message.
+         * Served by the (thread_id, timestamp) index.
+         */
         /*
         private static final String UPDATE_STATUS_OLD =
             "UPDATE " + TABLE_THREADS + " SET status = (" +
@@ -290,11 +317,22 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
+            UPDATE_COUNTERS_ADD_NEW   + ";" +
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
+        /** This trigger will move the message between thread counters on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_COUNTERS =
+            "CREATE TRIGGER update_thread_counters_on_update AFTER UPDATE OF " +
+                Messages.THREAD_ID + ", " + Messages.UNREAD + ", \"" + Messages.NEW + "\" ON " + TABLE_MESSAGES +
+            " WHEN old.thread_id <> new.thread_id OR " +
+                "(old.unread <> 0) <> (new.unread <> 0) OR " +
+                "(old.\"new\" <> 0) <> (new.\"new\" <> 0)" +
+            " BEGIN " +
+            UPDATE_COUNTERS_REMOVE_OLD + ";" +
+            UPDATE_COUNTERS_ADD_NEW    + ";" +
+            "END";
+
         /** This trigger will update the threads table counters on UPDATE. */
         private static final String TRIGGER_THREADS_UPDATE_COUNT =
             "CREATE TRIGGER update_thread_on_update AFTER UPDATE OF " +
@@ -311,8 +349,7 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
+            UPDATE_COUNTERS_REMOVE_OLD + ";" +
             // do not call this here -- UPDATE_STATUS_OLD         + ";" +
             "END";
 
@@ -457,6 +494,58 @@ public class MessagesProvider extends ContentProvider {
                 "where EXISTS (SELECT timestamp FROM messages WHERE _id = fulltext.msg_id)",
         };
 
+        // incremental thread counters
+        private static final String[] SCHEMA_UPGRADE_V20 = {
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON messages" +
+                " BEGIN " +
+                "UPDATE threads SET " +
+                    "count = count + 1, " +
+                    "unread = unread + (new.unread <> 0), " +
+                    "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+                    "WHERE _id = new.thread_id;" +
+                "UPDATE threads SET status = (" +
+                    "SELECT status FROM messages WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
+                    " WHERE _id = new.thread_id;" +
+                "END",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON messages" +
+                " BEGIN " +
+                "UPDATE threads SET " +
+                    "count = count - 1, " +
+                    "unread = unread - (old.unread <> 0), " +
+                    "\"new\" = \"new\" - (old.\"new\" <> 0) " +
+                    "WHERE _id = old.thread_id;" +
+                "END",
+            "DROP TRIGGER IF EXISTS update_thread_counters_on_update",
+            "CREATE TRIGGER update_thread_counters_on_update AFTER UPDATE OF " +
+                "thread_id, unread, \"new\" ON messages" +
+                " WHEN old.thread_id <> new.thread_id OR " +
+                "(old.unread <> 0) <> (new.unread <> 0) OR " +
+                "(old.\"new\" <> 0) <> (new.\"new\" <> 0)" +
+                " BEGIN " +
+                "UPDATE threads SET " +
+                    "count = count - 1, " +
+                    "unread = unread - (old.unread <> 0), " +
+                    "\"new\" = \"new\" - (old.\"new\" <> 0) " +
+                    "WHERE _id = old.thread_id;" +
+                "UPDATE threads SET " +
+                    "count = count + 1, " +
+                    "unread = unread + (new.unread <> 0), " +
+                    "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+                    "WHERE _id = new.thread_id;" +
+                "END",
+            "DROP INDEX IF EXISTS idx_messages_thread_id",
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_timestamp ON messages(thread_id, timestamp)",
+            // counters might be out of sync already, fix them once
+            REPAIR_THREADS_COUNTERS,
+        };
+
+        // outbox index
+        private static final String[] SCHEMA_UPGRADE_V21 = {
+            "CREATE INDEX IF NOT EXISTS idx_messages_direction_status ON messages(direction, status)",
+        };
+
         /** If true, fail all operations. */
         private boolean mLocked;
 
@@ -474,9 +563,11 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_FULLTEXT);
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
-            db.execSQL(SCHEMA_MESSAGES_THREAD_ID_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_DIRECTION_STATUS_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
+            db.execSQL(TRIGGER_THREADS_UPDATE_COUNTERS);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
             db.execSQL(TRIGGER_GROUPS_DELETE_MEMBERS);
         }
@@ -547,6 +638,16 @@ public class MessagesProvider extends ContentProvider {
                         db.execSQL(sql);
                     }
                     // fall through
+                case 20:
+                    for (String sql : SCHEMA_UPGRADE_V20) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
+                case 21:
+                    for (String sql : SCHEMA_UPGRADE_V21) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
             }
         }
 
@@ -558,6 +659,23 @@ public class MessagesProvider extends ContentProvider {
             mLocked = false;
         }
 
+        /**
+         * Recalculates thread counters from the messages table.
+         * Counters are maintained incrementally by triggers, this is only
+         * needed if they went out of sync for some reason.
+         */
+        public void repairThreadCounters() {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                db.execSQL(REPAIR_THREADS_COUNTERS);
+                db.setTransactionSuccessful();
+            }
+            finally {
+                db.endTransaction();
+            }
+        }
+
         @Override
         public SQLiteDatabase getReadableDatabase() {
             if (mLocked)
@@ -573,6 +691,18 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
+    /** Collects thread updates and notifications during a batch operation. */
+    private static final class BatchState {
+        /** Change notifications to be fired at the end of the batch. */
+        final Set<Uri> notifications = new LinkedHashSet<>();
+        /** Thread ids by peer (or group JID) already updated in this batch. */
+        final Map<String, Long> threads = new HashMap<>();
+        /** Threads whose metadata needs to be refreshed at the end of the batch. */
+        final Set<Long> dirtyThreads = new LinkedHashSet<>();
+        /** Values of the last message inserted in each thread after the first one. */
+        final Map<Long, ContentValues> lastThreadValues = new HashMap<>();
+    }
+
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
@@ -717,9 +847,6 @@ public class MessagesProvider extends ContentProvider {
         if (match != MESSAGES && match != REQUESTS && match != GROUPS && match != GROUPS_MEMBERS)
             throw new IllegalArgumentException("Unknown URI " + uri);
 
-        // if this column is present, we'll insert the thread only
-        String draft = initialValues.getAsString(Threads.DRAFT);
-
         ContentValues values = new ContentValues(initialValues);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
@@ -744,113 +871,280 @@ public class MessagesProvider extends ContentProvider {
                     return null;
             }
 
-            // we need to know if there previously was a pending request
-            // so we can decide if we have to fire a notification or not
-            boolean requestExists = false;
-            if (match == REQUESTS) {
-                requestExists = isRequestPending(db, initialValues.getAsString(Threads.PEER));
+            Uri result = insertMessage(db, uri, match, values, notifications);
+            db.setTransactionSuccessful();
+            return result;
+        }
+        finally {
+            db.endTransaction();
+            notifyChanges(notifications);
+        }
+    }
+
+    /**
+     * Inserts a message or a request into the database.
+     * Must be called inside a transaction.
+     */
+    private Uri insertMessage(SQLiteDatabase db, Uri uri, int match, ContentValues values, Collection<Uri> notifications) {
+        // if this column is present, we'll insert the thread only
+        String draft = values.getAsString(Threads.DRAFT);
+
+        // we need to know if there previously was a pending request
+        // so we can decide if we have to fire a notification or not
+        boolean requestExists = false;
+        if (match == REQUESTS) {
+            requestExists = isRequestPending(db, values.getAsString(Threads.PEER));
+        }
+
+        // create the thread first
+        BatchState batch = mBatch.get();
+        long threadId;
+        String threadKey = (batch != null && match == MESSAGES && draft == null) ?
+            getThreadKey(values) : null;
+        Long batchThreadId = threadKey != null ? batch.threads.get(threadKey) : null;
+        ContentValues threadValues = null;
+        if (batchThreadId != null && !values.containsKey(Messages.THREAD_ID)) {
+            // thread was already updated during this batch
+            threadId = batchThreadId;
+            // thread state will be taken from the last message of the batch
+            threadValues = new ContentValues(values);
+            threadValues.put(Messages.THREAD_ID, threadId);
+        }
+        else {
+            threadId = updateThreads(db, values, notifications, match == REQUESTS);
+            if (threadKey != null && threadId != Messages.NO_THREAD)
+                batch.threads.put(threadKey, threadId);
+        }
+        values.put(Messages.THREAD_ID, threadId);
+
+        if (threadId != Messages.NO_THREAD && (draft != null || match == REQUESTS)) {
+            // notify thread change
+            notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+            // notify conversation change
+            notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+
+            // draft or request - return conversation
+            return (draft != null || !requestExists) ?
+                ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId) : null;
+        }
+
+        if (threadKey != null && threadId != Messages.NO_THREAD) {
+            // thread metadata will be refreshed once at the end of the batch
+            batch.dirtyThreads.add(threadId);
+        }
+
+        // remove reserved columns
+        values.remove(Groups.GROUP_JID);
+        values.remove(Groups.SUBJECT);
+        values.remove(Groups.GROUP_TYPE);
+        values.remove(Threads.ENCRYPTION);
+
+        // insert the new message now!
+        long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+
+        /*
+         * this will be useful one day perhaps :)
+        long rowId = 0;
+        try {
+            rowId = db.insert(TABLE_MESSAGES, null, values);
+        }
+        catch (SQLiteConstraintException e) {
+            // unique constraint is on msg_id, direction
+            // already stored message, skip it and return uri
+            Cursor c = null;
+            try {
+                c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
+                    Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
+                    new String[] {
+                        values.getAsString(Messages.MESSAGE_ID),
+                        values.getAsString(Messages.DIRECTION)
+                    }, null, null, null, "1");
+                if (c.moveToFirst()) {
+                    rowId = c.getLong(0);
+                    return ContentUris.withAppendedId(uri, rowId);
+                }
+            }
+            finally {
+                try {
+                    c.close();
+                }
+                catch (Exception eClose) {
+                    // ignore exception
+                }
             }
 
-            // create the thread first
-            long threadId = updateThreads(db, values, notifications, match == REQUESTS);
-            values.put(Messages.THREAD_ID, threadId);
+            // message not found (WHAT???)
+            throw e;
+        }
+        */
 
-            if (threadId != Messages.NO_THREAD && (draft != null || match == REQUESTS)) {
+        if (rowId > 0) {
+            if (threadValues != null)
+                batch.lastThreadValues.put(threadId, threadValues);
+
+            if (threadId != Messages.NO_THREAD) {
+                // update fulltext table
+                byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
+                String mime = values.getAsString(Messages.BODY_MIME);
+                Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
+                long timestamp = values.getAsLong(Messages.TIMESTAMP);
+                if (content != null && content.length > 0 && TextComponent.MIME_TYPE.equals(mime) &&
+                        (encrypted == null || !encrypted)) {
+                    updateFulltext(db, rowId, threadId, content, timestamp);
+                }
+            }
+
+            Uri msgUri = ContentUris.withAppendedId(uri, rowId);
+            // batches will notify the whole table once
+            notifications.add(batch != null ? uri : msgUri);
+
+            if (threadId != Messages.NO_THREAD) {
                 // notify thread change
                 notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
                 // notify conversation change
                 notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+            }
 
-                db.setTransactionSuccessful();
+            return msgUri;
+        }
 
-                // draft or request - return conversation
-                return (draft != null || !requestExists) ?
-                    ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId) : null;
-            }
+        throw new SQLException("Failed to insert row into " + uri);
+    }
 
-            // remove reserved columns
-            values.remove(Groups.GROUP_JID);
-            values.remove(Groups.SUBJECT);
-            values.remove(Groups.GROUP_TYPE);
-            values.remove(Threads.ENCRYPTION);
+    /** Returns the key used to group messages by thread in a batch. */
+    private static String getThreadKey(ContentValues values) {
+        String peer = values.getAsString(Groups.GROUP_JID);
+        if (peer == null)
+            peer = values.getAsString(Threads.PEER);
+        return peer != null ? peer.toLowerCase(Locale.US) : null;
+    }
 
-            // insert the new message now!
-            long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        if (sUriMatcher.match(uri) != MESSAGES)
+            return super.bulkInsert(uri, values);
+
+        int count = 0;
+        for (Uri msgUri : insertMessages(values)) {
+            if (msgUri != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Inserts many messages in a single transaction. Threads are updated
+     * once per affected thread and change notifications are fired once
+     * at the end. Duplicate messages are skipped.
+     * @return an array of message URIs, with null for skipped messages
+     */
+    private Uri[] insertMessages(ContentValues[] values) {
+        Uri[] uris = new Uri[values.length];
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        BatchState batch = new BatchState();
+        mBatch.set(batch);
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                // check for duplicates before the thread is created
+                if (isMessageStored(db, values[i].getAsString(Messages.MESSAGE_ID),
+                        values[i].getAsInteger(Messages.DIRECTION)))
+                    continue;
 
-            /*
-             * this will be useful one day perhaps :)
-            long rowId = 0;
-            try {
-                rowId = db.insert(TABLE_MESSAGES, null, values);
-            }
-            catch (SQLiteConstraintException e) {
-                // unique constraint is on msg_id, direction
-                // already stored message, skip it and return uri
-                Cursor c = null;
                 try {
-                    c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
-                        Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
-                        new String[] {
-                            values.getAsString(Messages.MESSAGE_ID),
-                            values.getAsString(Messages.DIRECTION)
-                        }, null, null, null, "1");
-                    if (c.moveToFirst()) {
-                        rowId = c.getLong(0);
-                        return ContentUris.withAppendedId(uri, rowId);
-                    }
+                    uris[i] = insertMessage(db, Messages.CONTENT_URI, MESSAGES,
+                        new ContentValues(values[i]), batch.notifications);
                 }
-                finally {
-                    try {
-                        c.close();
-                    }
-                    catch (Exception eClose) {
-                        // ignore exception
-                    }
+                catch (SQLiteConstraintException e) {
+                    // duplicated message, skip it
                 }
-
-                // message not found (WHAT???)
-                throw e;
             }
-            */
-
-            if (rowId > 0) {
-                if (threadId != Messages.NO_THREAD) {
-                    // update fulltext table
-                    byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
-                    String mime = values.getAsString(Messages.BODY_MIME);
-                    Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
-                    long timestamp = values.getAsLong(Messages.TIMESTAMP);
-                    if (content != null && content.length > 0 && TextComponent.MIME_TYPE.equals(mime) &&
-                            (encrypted == null || !encrypted)) {
-                        updateFulltext(db, rowId, threadId, content, timestamp);
-                    }
-                }
 
-                Uri msgUri = ContentUris.withAppendedId(uri, rowId);
-                notifications.add(msgUri);
+            commitBatch(db, batch);
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+            mBatch.remove();
+            notifyChanges(batch.notifications);
+        }
 
-                if (threadId != Messages.NO_THREAD) {
-                    // notify thread change
-                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                    // notify conversation change
-                    notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
-                }
+        return uris;
+    }
 
-                db.setTransactionSuccessful();
-                return msgUri;
-            }
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // nested batch, run within the outer one
+        if (mBatch.get() != null)
+            return super.applyBatch(operations);
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        BatchState batch = new BatchState();
+        mBatch.set(batch);
 
-            throw new SQLException("Failed to insert row into " + uri);
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            commitBatch(db, batch);
+            db.setTransactionSuccessful();
+            return results;
         }
         finally {
             db.endTransaction();
+            mBatch.remove();
+            notifyChanges(batch.notifications);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (Messages.METHOD_INSERT_MESSAGES.equals(method) && extras != null) {
+            Parcelable[] parcels = extras.getParcelableArray(Messages.EXTRA_VALUES);
+            if (parcels == null)
+                throw new IllegalArgumentException("No data");
+
+            ContentValues[] values = new ContentValues[parcels.length];
+            for (int i = 0; i < parcels.length; i++)
+                values[i] = (ContentValues) parcels[i];
+
+            Bundle result = new Bundle();
+            result.putParcelableArray(Messages.EXTRA_URIS, insertMessages(values));
+            return result;
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    /** Refreshes metadata of threads touched during a batch. */
+    private void commitBatch(SQLiteDatabase db, BatchState batch) {
+        for (ContentValues values : batch.lastThreadValues.values()) {
+            updateThreads(db, values, batch.notifications, false);
+        }
+        for (long threadId : batch.dirtyThreads) {
+            updateThreadInfo(db, threadId, batch.notifications);
+        }
+    }
+
+    /** Fires change notifications, or collects them if a batch is running. */
+    private void notifyChanges(Collection<Uri> notifications) {
+        BatchState batch = mBatch.get();
+        if (batch != null) {
+            if (batch.notifications != notifications)
+                batch.notifications.addAll(notifications);
+        }
+        else {
             ContentResolver cr = getContext().getContentResolver();
             for (Uri nuri : notifications)
                 cr.notifyChange(nuri, null);
         }
     }
 
-    private void insertGroup(SQLiteDatabase db, ContentValues values, List<Uri> notifications) {
+    private void insertGroup(SQLiteDatabase db, ContentValues values, Collection<Uri> notifications) {
         if (notifications != null) {
             long threadId = values.getAsLong(Groups.THREAD_ID);
             // notify thread change
@@ -874,6 +1168,21 @@ public class MessagesProvider extends ContentProvider {
         }
     }
 
+    private boolean isMessageStored(SQLiteDatabase db, String msgId, Integer direction) {
+        if (msgId == null || direction == null)
+            return false;
+
+        Cursor c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
+            Messages.MESSAGE_ID + "=? AND " + Messages.DIRECTION + "=?",
+            new String[] { msgId, String.valueOf(direction) }, null, null, null, "1");
+        try {
+            return c.moveToFirst();
+        }
+        finally {
+            c.close();
+        }
+    }
+
     private boolean isRequestPending(SQLiteDatabase db, String peer) {
         Cursor c = null;
         try {
@@ -934,7 +1243,7 @@ public class MessagesProvider extends ContentProvider {
      * A thread is created for the given message if not found.
      * @return the thread id
      */
-    private long updateThreads(SQLiteDatabase db, ContentValues initialValues, List<Uri> notifications, boolean requestOnly) {
+    private long updateThreads(SQLiteDatabase db, ContentValues initialValues, Collection<Uri> notifications, boolean requestOnly) {
         long threadId = -1;
         if (initialValues.containsKey(Messages.THREAD_ID)) {
             threadId = initialValues.getAsLong(Messages.THREAD_ID);
@@ -1172,6 +1481,12 @@ public class MessagesProvider extends ContentProvider {
                 return 0;
             }
 
+            case REPAIR_COUNTERS: {
+                dbHelper.repairThreadCounters();
+                getContext().getContentResolver().notifyChange(Threads.CONTENT_URI, null);
+                return 0;
+            }
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -1296,11 +1611,8 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
-            if (notifications != null) {
-                ContentResolver cr = getContext().getContentResolver();
-                for (Uri nuri : notifications)
-                    cr.notifyChange(nuri, null);
-            }
+            if (notifications != null)
+                notifyChanges(notifications);
         }
     }
 
@@ -1516,15 +1828,13 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
 
         return rows;
     }
 
-    private void updateThreadAfterDelete(SQLiteDatabase db, long threadId, @Nullable List<Uri> notifications) {
+    private void updateThreadAfterDelete(SQLiteDatabase db, long threadId, @Nullable Collection<Uri> notifications) {
         // check for empty threads
         if (deleteEmptyThreads(db) > 0 && notifications != null)
             notifications.add(Threads.CONTENT_URI);
@@ -1583,7 +1893,7 @@ public class MessagesProvider extends ContentProvider {
     }
 
     /** Updates metadata of a given thread. */
-    private void updateThreadInfo(SQLiteDatabase db, long threadId, @Nullable List<Uri> notifications) {
+    private void updateThreadInfo(SQLiteDatabase db, long threadId, @Nullable Collection<Uri> notifications) {
         Cursor c = db.query(TABLE_MESSAGES_GROUPS, new String[] {
                 Messages.MESSAGE_ID,
                 Messages.DIRECTION,
@@ -1624,17 +1934,7 @@ public class MessagesProvider extends ContentProvider {
             }
             c.close();
 
-            // extract counters now
-            c = db.rawQuery("SELECT SUM(unread), SUM(\"new\") FROM " + TABLE_MESSAGES + " WHERE " +
-                    Messages.THREAD_ID + " = ?",
-                new String[] { String.valueOf(threadId) });
-            if (c != null) {
-                if (c.moveToFirst()) {
-                    v.put(Threads.UNREAD, c.getLong(0));
-                    v.put(Threads.NEW, c.getLong(1));
-                }
-                c.close();
-            }
+            // counters are maintained by triggers
 
             db.update(TABLE_THREADS, v, Threads._ID + "=" + threadId, null);
             if (notifications != null) {
@@ -1679,6 +1979,13 @@ public class MessagesProvider extends ContentProvider {
             null, null, null);
     }
 
+    /** Recalculates all thread counters. Use only if they are known to be wrong. */
+    public static void repairThreadCounters(Context context) {
+        context.getContentResolver().update(Uri
+                .parse("content://" + MessagesProvider.AUTHORITY + "/" + Messages.REPAIR_COUNTERS),
+            null, null, null);
+    }
+
     public static void lockForImport(Context context) {
         context.getContentResolver().update(Uri
                 .parse("content://" + MessagesProvider.AUTHORITY + "/" + Messages.IMPORT_LOCK),
@@ -1710,6 +2017,7 @@ public class MessagesProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, Messages.IMPORT_LOCK, IMPORT_LOCK);
         sUriMatcher.addURI(AUTHORITY, Messages.IMPORT_UNLOCK, IMPORT_UNLOCK);
         sUriMatcher.addURI(AUTHORITY, Messages.RELOAD, RELOAD);
+        sUriMatcher.addURI(AUTHORITY, Messages.REPAIR_COUNTERS, REPAIR_COUNTERS);
 
         messagesProjectionMap = new HashMap<>();
         messagesProjectionMap.put(Messages._ID, Messages._ID);
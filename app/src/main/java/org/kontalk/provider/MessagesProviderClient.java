@@ -31,6 +31,8 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 
 import org.kontalk.Log;
 import org.kontalk.crypto.Coder;
@@ -181,6 +183,25 @@ public class MessagesProviderClient {
         }
     }
 
+    /**
+     * Inserts many incoming messages in a single transaction.
+     * @return the URIs of the new messages, with null for duplicated messages
+     */
+    public static Uri[] newIncomingMessages(Context context, ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(Messages.EXTRA_VALUES, values);
+        Bundle result = context.getContentResolver().call(Messages.CONTENT_URI,
+            Messages.METHOD_INSERT_MESSAGES, null, extras);
+
+        Uri[] uris = new Uri[values.length];
+        Parcelable[] parcels = result != null ? result.getParcelableArray(Messages.EXTRA_URIS) : null;
+        if (parcels != null) {
+            for (int i = 0; i < parcels.length && i < uris.length; i++)
+                uris[i] = (Uri) parcels[i];
+        }
+        return uris;
+    }
+
     public static Uri newChatRequest(Context context, String jid) {
         ContentValues values = new ContentValues(2);
         values.put(Threads.PEER, jid);
@@ -433,6 +454,42 @@ public class MessagesProviderClient {
             .withAppendedId(Messages.CONTENT_URI, msgId), values, null, null);
     }
 
+    /** Returns the preview path of the attachment of a message, if any. */
+    public static String getAttachmentPreviewPath(Context context, long msgId) {
+        Cursor c = context.getContentResolver().query(ContentUris
+                .withAppendedId(Messages.CONTENT_URI, msgId),
+            new String[] { Messages.ATTACHMENT_PREVIEW_PATH }, null, null, null);
+        if (c == null)
+            return null;
+
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /** Adds the given security flags (e.g. errors) to the attachment of a message. */
+    public static void addAttachmentSecurityFlags(Context context, long msgId, int securityFlags) {
+        Uri uri = ContentUris.withAppendedId(Messages.CONTENT_URI, msgId);
+        Cursor c = context.getContentResolver().query(uri,
+            new String[] { Messages.ATTACHMENT_SECURITY_FLAGS }, null, null, null);
+        if (c == null)
+            return;
+
+        try {
+            if (c.moveToFirst()) {
+                ContentValues values = new ContentValues(1);
+                values.put(Messages.ATTACHMENT_SECURITY_FLAGS, c.getInt(0) | securityFlags);
+                context.getContentResolver().update(uri, values, null, null);
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
     public static void deleteMessage(Context context, long id) {
         context.getContentResolver().delete(ContentUris
             .withAppendedId(Messages.CONTENT_URI, id), null, null);
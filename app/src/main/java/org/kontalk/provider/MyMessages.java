@@ -151,6 +151,13 @@ public final class MyMessages {
         public static final String IMPORT_LOCK = "ilock";
         public static final String IMPORT_UNLOCK = "iunlock";
         public static final String RELOAD = "reload";
+        public static final String REPAIR_COUNTERS = "repair_counters";
+
+        // provider call methods and their extras
+        /** Inserts many messages in a single transaction. */
+        public static final String METHOD_INSERT_MESSAGES = "insert_messages";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_URIS = "uris";
 
         // special thread_id value for not creating a new thread
         public static final long NO_THREAD = -1;
@@ -60,7 +60,7 @@ public class MyUsers {
         // only if the database is newly created
         public static final String BOOTSTRAP = "bootstrap";
         // uri parameter for update: used with resync, swap backup users table
-        // with the real one
+        // with the real one; with a selection, copy only the selected rows
         public static final String COMMIT = "commit";
         // uri parameter for select: use offline table
         public static final String OFFLINE = "offline";
@@ -71,6 +71,17 @@ public class MyUsers {
         // results by EXTRA_INDEX
         public static final String EXTRA_INDEX_COUNTS = "org.kontalk.provider.extra.INDEX_COUNTS";
         public static final String EXTRA_INDEX_TITLES = "org.kontalk.provider.extra.INDEX_TITLES";
+
+        // provider call methods and their extras
+        /**
+         * Resyncs the users database like {@link #RESYNC}. If incremental,
+         * the JIDs of changed system contacts are returned in
+         * {@link #EXTRA_CHANGED}; if missing, all users must be matched.
+         */
+        public static final String METHOD_RESYNC = "resync";
+        public static final String EXTRA_INCREMENTAL = "incremental";
+        public static final String EXTRA_COUNT = "count";
+        public static final String EXTRA_CHANGED = "changed";
     }
 
     public static final class Keys implements CommonColumns {
@@ -0,0 +1,168 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.telephony.TelephonyManager;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+import io.requery.android.database.sqlite.SQLiteStatement;
+
+import org.kontalk.Log;
+import org.kontalk.service.registration.RegistrationService;
+import org.kontalk.sync.SyncAdapter;
+import org.kontalk.util.XMPPUtils;
+
+
+/**
+ * Persistent cache of normalized phone numbers and their hashes, used by
+ * the users resync to avoid parsing and hashing every number of the address
+ * book every time. Entries are bound to the region information used for
+ * normalization, i.e. our own number and the SIM country.
+ * @author Daniele Ricci
+ */
+class NormalizedNumberCache {
+
+    static final String TABLE_NUMBERS = "numbers";
+
+    static final String SCHEMA_NUMBERS = "CREATE TABLE " + TABLE_NUMBERS + " (" +
+        "raw TEXT NOT NULL," +
+        "region TEXT NOT NULL," +
+        // null if the number could not be normalized
+        "number TEXT," +
+        "hash TEXT," +
+        "PRIMARY KEY (raw, region)" +
+        ")";
+
+    /** Marks a number that could not be normalized. */
+    private static final String[] INVALID = new String[0];
+
+    private final Context mContext;
+    private final String mMyNumber;
+    private final String mRegion;
+
+    /** Entries loaded from the database. */
+    private final Map<String, String[]> mCached = new HashMap<>();
+    /** Entries used by this resync. */
+    private final Map<String, String[]> mUsed = new HashMap<>();
+
+    private int mMisses;
+
+    NormalizedNumberCache(Context context, String myNumber) {
+        mContext = context;
+        mMyNumber = myNumber;
+
+        TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        String simRegion = tm != null ? tm.getSimCountryIso() : null;
+        mRegion = myNumber + "|" + (simRegion != null ? simRegion.toUpperCase(Locale.US) : "");
+    }
+
+    /** Returns the region information entries are bound to. */
+    String getRegion() {
+        return mRegion;
+    }
+
+    void load(SQLiteDatabase db) {
+        Cursor c = db.query(TABLE_NUMBERS, new String[] { "raw", "number", "hash" },
+            "region = ?", new String[] { mRegion }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String number = c.getString(1);
+                mCached.put(c.getString(0), number != null ?
+                    new String[] { number, c.getString(2) } : INVALID);
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Normalizes a phone number and computes its hash.
+     * @return {normalized number, hash} or null if the number is not valid
+     */
+    String[] normalize(String raw) {
+        String[] entry = mUsed.get(raw);
+        if (entry == null) {
+            entry = mCached.get(raw);
+            if (entry == null) {
+                mMisses++;
+                try {
+                    String number = RegistrationService.fixNumber(mContext, raw, mMyNumber, 0);
+                    entry = new String[] { number, XMPPUtils.createLocalpart(number) };
+                }
+                catch (Exception e) {
+                    Log.e(SyncAdapter.TAG, "unable to normalize number: " + raw + " - skipping", e);
+                    entry = INVALID;
+                }
+            }
+            mUsed.put(raw, entry);
+        }
+        return entry != INVALID ? entry : null;
+    }
+
+    /**
+     * Stores the entries used since {@link #load}.
+     * @param prune true if all numbers in the address book were used, so
+     * numbers no longer in it can be dropped
+     */
+    void save(SQLiteDatabase db, boolean prune) {
+        if (mMisses == 0 && (!prune || mUsed.size() == mCached.size()))
+            return;
+
+        if (prune)
+            db.delete(TABLE_NUMBERS, null, null);
+        SQLiteStatement stm = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NUMBERS +
+            " (raw, region, number, hash) VALUES(?, ?, ?, ?)");
+        try {
+            for (Map.Entry<String, String[]> e : mUsed.entrySet()) {
+                // already stored
+                if (!prune && mCached.containsKey(e.getKey()))
+                    continue;
+
+                String[] entry = e.getValue();
+                stm.clearBindings();
+                stm.bindString(1, e.getKey());
+                stm.bindString(2, mRegion);
+                if (entry != INVALID) {
+                    stm.bindString(3, entry[0]);
+                    stm.bindString(4, entry[1]);
+                }
+                stm.executeInsert();
+            }
+        }
+        finally {
+            stm.close();
+        }
+    }
+
+    int getHitCount() {
+        return mUsed.size() - mMisses;
+    }
+
+    int getMissCount() {
+        return mMisses;
+    }
+
+}
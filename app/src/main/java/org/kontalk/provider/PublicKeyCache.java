@@ -0,0 +1,109 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import android.support.v4.util.LruCache;
+
+
+/**
+ * In-memory cache of parsed public keys, keyed by JID and minimum trust level.
+ * Entries are invalidated by {@link UsersProvider} whenever keys for a JID
+ * are modified.
+ * @author Daniele Ricci
+ */
+class PublicKeyCache {
+
+    /** Max number of cached keys. Enough for a large group chat. */
+    private static final int MAX_ENTRIES = 200;
+
+    private static final PublicKeyCache sInstance = new PublicKeyCache();
+
+    private final LruCache<String, PGPPublicKeyRing> mCache = new LruCache<>(MAX_ENTRIES);
+
+    /** Bumped on every invalidation, to discard keys loaded in the meantime. */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    static PublicKeyCache getInstance() {
+        return sInstance;
+    }
+
+    private static String key(String jid, int trustLevel) {
+        return jid.toLowerCase(Locale.US) + "|" + trustLevel;
+    }
+
+    /** Returns the current generation, to be passed to {@link #put}. */
+    int generation() {
+        return mGeneration.get();
+    }
+
+    PGPPublicKeyRing get(String jid, int trustLevel) {
+        PGPPublicKeyRing keyRing = mCache.get(key(jid, trustLevel));
+        if (keyRing != null)
+            mHits.incrementAndGet();
+        else
+            mMisses.incrementAndGet();
+        return keyRing;
+    }
+
+    /**
+     * Caches a keyring, unless some invalidation happened after
+     * <code>generation</code> was taken.
+     */
+    synchronized void put(String jid, int trustLevel, PGPPublicKeyRing keyRing, int generation) {
+        if (generation == mGeneration.get())
+            mCache.put(key(jid, trustLevel), keyRing);
+    }
+
+    /** Removes all cached keys for the given JID. */
+    synchronized void invalidate(String jid) {
+        mGeneration.incrementAndGet();
+        String prefix = jid.toLowerCase(Locale.US) + "|";
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix))
+                mCache.remove(key);
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration.incrementAndGet();
+        mCache.evictAll();
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    int size() {
+        return mCache.size();
+    }
+
+}
@@ -19,9 +19,11 @@
 package org.kontalk.provider;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.android.providers.contacts.ContactLocaleUtils;
 import com.android.providers.contacts.FastScrollingIndexCache;
@@ -38,13 +40,16 @@ import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.RawContacts;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
 
 import io.requery.android.database.sqlite.SQLiteDatabase;
 import io.requery.android.database.sqlite.SQLiteDatabaseConfiguration;
@@ -56,6 +61,7 @@ import org.kontalk.BuildConfig;
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Keys;
@@ -76,13 +82,17 @@ public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
     @VisibleForTesting
-    static final int DATABASE_VERSION = 13;
+    static final int DATABASE_VERSION = 14;
     @VisibleForTesting
     static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
     private static final String TABLE_KEYS = "keys";
 
+    /** Users table columns copied by a partial commit (all but _id and jid). */
+    private static final String[] USERS_COMMIT_COLUMNS = { "number", "display_name",
+        "lookup_key", "contact_id", "registered", "status", "last_seen", "blocked" };
+
     private static final int USERS = 1;
     private static final int USERS_JID = 2;
     private static final int KEYS = 3;
@@ -91,6 +101,11 @@ public class UsersProvider extends ContentProvider {
 
     private long mLastResync;
 
+    /** Time of the last resync, waiting for commit. */
+    private long mPendingScanTimestamp;
+    /** Settings the last resync was performed with, waiting for commit. */
+    private String mPendingScanKey;
+
     private FastScrollingIndexCache mFastScrollingIndexCache;
     private ContactLocaleUtils mLocaleUtils;
 
@@ -157,6 +172,11 @@ public class UsersProvider extends ContentProvider {
             "UPDATE keys SET trust_level = 2 WHERE jid NOT LIKE '%@%'"
         };
 
+        /** Upgrade: introduce normalized numbers cache */
+        private static final String[] SCHEMA_UPGRADE_V13 = {
+            NormalizedNumberCache.SCHEMA_NUMBERS,
+        };
+
         // any upgrade - just re-create all tables
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
@@ -165,6 +185,8 @@ public class UsersProvider extends ContentProvider {
             SCHEMA_USERS_OFFLINE,
             "DROP TABLE IF EXISTS " + TABLE_KEYS,
             SCHEMA_KEYS,
+            "DROP TABLE IF EXISTS " + NormalizedNumberCache.TABLE_NUMBERS,
+            NormalizedNumberCache.SCHEMA_NUMBERS,
         };
 
         private Context mContext;
@@ -184,6 +206,7 @@ public class UsersProvider extends ContentProvider {
             db.execSQL(SCHEMA_USERS);
             db.execSQL(SCHEMA_USERS_OFFLINE);
             db.execSQL(SCHEMA_KEYS);
+            db.execSQL(NormalizedNumberCache.SCHEMA_NUMBERS);
             mNew = true;
         }
 
@@ -193,6 +216,8 @@ public class UsersProvider extends ContentProvider {
                 case 10:
                     for (String sql : SCHEMA_UPGRADE_V10)
                         db.execSQL(sql);
+                    for (String sql : SCHEMA_UPGRADE_V13)
+                        db.execSQL(sql);
                     mNew = true;
                     break;
                 case 11:
@@ -202,6 +227,10 @@ public class UsersProvider extends ContentProvider {
                 case 12:
                     for (String sql : SCHEMA_UPGRADE_V12)
                         db.execSQL(sql);
+                    // fall through
+                case 13:
+                    for (String sql : SCHEMA_UPGRADE_V13)
+                        db.execSQL(sql);
                     break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
@@ -497,6 +526,11 @@ public class UsersProvider extends ContentProvider {
                 // we keep this synchronized to allow for the initial resync by the
                 // registration activity
                 synchronized (this) {
+                    if (commit && selection != null) {
+                        // partial commit during sync, never skipped
+                        return commit(selection, selectionArgs);
+                    }
+
                     long diff = System.currentTimeMillis() - mLastResync;
                     if (diff > 1000 && (!bootstrap || dbHelper.isNew())) {
                         if (commit) {
@@ -504,7 +538,7 @@ public class UsersProvider extends ContentProvider {
                             return 0;
                         }
                         else {
-                            return resync();
+                            return resync(false).getInt(Users.EXTRA_COUNT);
                         }
                     }
 
@@ -535,6 +569,24 @@ public class UsersProvider extends ContentProvider {
         }
     }
 
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (Users.METHOD_RESYNC.equals(method)) {
+            boolean incremental = extras != null && extras.getBoolean(Users.EXTRA_INCREMENTAL);
+            try {
+                synchronized (this) {
+                    return resync(incremental);
+                }
+            }
+            finally {
+                invalidateFastScrollingIndexCache();
+            }
+        }
+
+        return super.call(method, arg, extras);
+    }
+
     private int updateUser(ContentValues values, boolean offline, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
@@ -574,6 +626,11 @@ public class UsersProvider extends ContentProvider {
             db.execSQL("DELETE FROM " + TABLE_USERS);
             db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
             db.setTransactionSuccessful();
+
+            // users table now reflects the last scan of system contacts
+            if (mPendingScanTimestamp > 0)
+                Preferences.setContactsScanTimestamp(mPendingScanTimestamp, mPendingScanKey);
+            mPendingScanTimestamp = 0;
         }
         catch (SQLException e) {
             // ops :)
@@ -586,16 +643,84 @@ public class UsersProvider extends ContentProvider {
         }
     }
 
-    /** Triggers a complete resync of the users database. */
-    private int resync() {
+    /**
+     * Commits the offline rows matching the given selection to the online
+     * table, so sync results can be shown before the whole sync completes.
+     * Existing users are updated in place, so their row ID doesn't change.
+     * @return the number of rows committed
+     */
+    private int commit(String selection, String[] selectionArgs) {
+        StringBuilder update = new StringBuilder("UPDATE " + TABLE_USERS + " SET ");
+        for (int i = 0; i < USERS_COMMIT_COLUMNS.length; i++) {
+            String column = USERS_COMMIT_COLUMNS[i];
+            if (i > 0)
+                update.append(", ");
+            update.append(column).append(" = (SELECT ").append(column)
+                .append(" FROM " + TABLE_USERS_OFFLINE + " o WHERE o.jid = " +
+                    TABLE_USERS + ".jid)");
+        }
+        update.append(" WHERE jid IN (SELECT jid FROM " + TABLE_USERS_OFFLINE +
+            " WHERE ").append(selection).append(')');
+
+        String columns = "jid, " + TextUtils.join(", ", USERS_COMMIT_COLUMNS);
+        String insert = "INSERT INTO " + TABLE_USERS + " (" + columns + ") SELECT " +
+            columns + " FROM " + TABLE_USERS_OFFLINE + " WHERE (" + selection +
+            ") AND jid NOT IN (SELECT jid FROM " + TABLE_USERS + ")";
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        SQLiteStatement updateStm = null;
+        SQLiteStatement insertStm = null;
+        try {
+            updateStm = db.compileStatement(update.toString());
+            insertStm = db.compileStatement(insert);
+            if (selectionArgs != null) {
+                updateStm.bindAllArgsAsStrings(selectionArgs);
+                insertStm.bindAllArgsAsStrings(selectionArgs);
+            }
+            int count = updateStm.executeUpdateDelete();
+            count += insertStm.executeUpdateDelete();
+            db.setTransactionSuccessful();
+            return count;
+        }
+        catch (SQLException e) {
+            Log.w(SyncAdapter.TAG, "users table partial commit failed", e);
+            return 0;
+        }
+        finally {
+            if (updateStm != null)
+                updateStm.close();
+            if (insertStm != null)
+                insertStm.close();
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Triggers a resync of the users database. Only system contacts changed
+     * since the last committed resync are scanned again, and phone numbers
+     * seen before are not normalized again.
+     * @param incremental true to keep all users from the last sync, so that
+     * only changed contacts need to be matched
+     * @return the number of users in {@link Users#EXTRA_COUNT} and, if the
+     * resync was incremental, the JIDs of changed contacts in
+     * {@link Users#EXTRA_CHANGED}
+     */
+    private Bundle resync(boolean incremental) {
         Context context = getContext();
         ContentResolver cr = context.getContentResolver();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
+        final long scanTimestamp = System.currentTimeMillis();
+        String myNumber = Authenticator.getDefaultAccountName(context);
+        NormalizedNumberCache numbers = new NormalizedNumberCache(context, myNumber);
+
         // begin transaction
         db.beginTransactionNonExclusive();
 
         int count = 0;
+        // JIDs of changed contacts, null if every user must be matched
+        Set<String> changed = null;
 
         try {
             // delete old users content
@@ -623,77 +748,139 @@ public class UsersProvider extends ContentProvider {
             Cursor phones = null;
             String dialPrefix = Preferences.getDialPrefix();
             int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+            boolean syncInvisible = Preferences.getSyncInvisibleContacts(context);
+
+            String scanKey = numbers.getRegion() + "|" + dialPrefix + "|" + syncInvisible;
+            EndpointServer server = Preferences.getEndpointServer(context);
+            if (server != null)
+                scanKey += "|" + server.getNetwork();
 
             try {
-                String where = !Preferences.getSyncInvisibleContacts(context) ?
+                numbers.load(db);
+
+                String where = !syncInvisible ?
                     ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
                     "";
 
-                // query for phone numbers
-                phones = cr.query(Phone.CONTENT_URI,
-                    new String[]{Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE},
-                    where + " (" +
-                        // this will filter out RawContacts from Kontalk
-                        RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
-                        RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
-                    new String[]{
-                        Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
-                    }, null);
-
-                if (phones != null) {
-                    while (phones.moveToNext()) {
-                        String number = phones.getString(0);
-                        String name = phones.getString(1);
-
-                        // buggy provider - skip entry
-                        if (name == null || number == null)
-                            continue;
-
-                        // remove dial prefix first
-                        if (dialPrefix != null && number.startsWith(dialPrefix))
-                            number = number.substring(dialPrefixLen);
-
-                        // a phone number with less than 4 digits???
-                        if (number.length() < 4)
-                            continue;
-
-                        // fix number
-                        try {
-                            number = RegistrationService.fixNumber(context, number,
-                                Authenticator.getDefaultAccountName(context), 0);
-                        }
-                        catch (Exception e) {
-                            Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
-                            // skip number
-                            continue;
-                        }
+                Set<Long> changedContacts = getChangedContacts(cr,
+                    Preferences.getContactsScanTimestamp(scanKey));
+                if (changedContacts == null) {
+                    // no previous scan to start from
+                    incremental = false;
+                }
 
-                        try {
-                            String hash = XMPPUtils.createLocalpart(number);
-                            String lookupKey = phones.getString(2);
-                            long contactId = phones.getLong(3);
-                            String jid = XMPPUtils.createLocalJID(getContext(), hash);
+                if (incremental) {
+                    // keep everything from the last sync, including registration status
+                    SQLiteStatement copy = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
+                        " SELECT * FROM " + TABLE_USERS);
+                    try {
+                        count += copy.executeUpdateDelete();
+                    }
+                    finally {
+                        copy.close();
+                    }
+                    changed = new HashSet<>();
+                }
+                else if (changedContacts != null) {
+                    // reuse the contacts from the last scan
+                    SQLiteStatement copy = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
+                        " (number, jid, display_name, lookup_key, contact_id, registered)" +
+                        " SELECT number, jid, display_name, lookup_key, contact_id, 0 FROM " +
+                        TABLE_USERS + " WHERE lookup_key IS NOT NULL");
+                    try {
+                        count += copy.executeUpdateDelete();
+                    }
+                    finally {
+                        copy.close();
+                    }
+                }
 
-                            addResyncContact(db, stm, onlineUpd, onlineIns,
-                                number, jid, name,
-                                lookupKey, contactId, false);
-                            count++;
-                        }
-                        catch (IllegalArgumentException iae) {
-                            Log.w(SyncAdapter.TAG, "doing sync with no server?");
-                        }
-                        catch (SQLiteConstraintException sqe) {
-                            // skip duplicate number
-                        }
+                String changedWhere = "";
+                if (changedContacts != null && !changedContacts.isEmpty()) {
+                    // changed contacts will be scanned again
+                    String ids = TextUtils.join(",", changedContacts);
+                    SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_USERS_OFFLINE +
+                        " WHERE lookup_key IS NOT NULL AND contact_id IN (" + ids + ")");
+                    try {
+                        count -= delete.executeUpdateDelete();
+                    }
+                    finally {
+                        delete.close();
                     }
+                    changedWhere = Phone.CONTACT_ID + " IN (" + ids + ") AND ";
+                }
 
-                    phones.close();
+                boolean scanned = false;
+                if (changedContacts != null && changedContacts.isEmpty()) {
+                    Log.d(SyncAdapter.TAG, "system contacts not changed, " + count + " contacts reused");
                 }
                 else {
-                    Log.e(SyncAdapter.TAG, "query to contacts failed!");
+                    scanned = true;
+
+                    // query for phone numbers
+                    phones = cr.query(Phone.CONTENT_URI,
+                        new String[]{Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE},
+                        where + changedWhere + " (" +
+                            // this will filter out RawContacts from Kontalk
+                            RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
+                            RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
+                        new String[]{
+                            Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
+                        }, null);
+
+                    if (phones != null) {
+                        while (phones.moveToNext()) {
+                            String number = phones.getString(0);
+                            String name = phones.getString(1);
+
+                            // buggy provider - skip entry
+                            if (name == null || number == null)
+                                continue;
+
+                            // remove dial prefix first
+                            if (dialPrefix != null && number.startsWith(dialPrefix))
+                                number = number.substring(dialPrefixLen);
+
+                            // a phone number with less than 4 digits???
+                            if (number.length() < 4)
+                                continue;
+
+                            // fix number
+                            String[] normalized = numbers.normalize(number);
+                            if (normalized == null)
+                                continue;
+                            number = normalized[0];
+
+                            try {
+                                String hash = normalized[1];
+                                String lookupKey = phones.getString(2);
+                                long contactId = phones.getLong(3);
+                                String jid = XMPPUtils.createLocalJID(getContext(), hash);
+
+                                addResyncContact(db, stm, onlineUpd, onlineIns,
+                                    number, jid, name,
+                                    lookupKey, contactId, false);
+                                if (changed != null)
+                                    changed.add(jid);
+                                count++;
+                            }
+                            catch (IllegalArgumentException iae) {
+                                Log.w(SyncAdapter.TAG, "doing sync with no server?");
+                            }
+                            catch (SQLiteConstraintException sqe) {
+                                // skip duplicate number
+                            }
+                        }
+
+                        phones.close();
+                    }
+                    else {
+                        Log.e(SyncAdapter.TAG, "query to contacts failed!");
+                    }
                 }
 
-                if (Preferences.getSyncSIMContacts(getContext())) {
+                // SIM contacts were kept by an incremental resync
+                if (!incremental && Preferences.getSyncSIMContacts(getContext())) {
                     // query for SIM contacts
                     // column selection doesn't work because of a bug in Android
                     // TODO this is a bit unclear...
@@ -733,18 +920,13 @@ public class UsersProvider extends ContentProvider {
                                 continue;
 
                             // fix number
-                            try {
-                                number = RegistrationService.fixNumber(context, number,
-                                    Authenticator.getDefaultAccountName(context), 0);
-                            }
-                            catch (Exception e) {
-                                Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
-                                // skip number
+                            String[] normalized = numbers.normalize(number);
+                            if (normalized == null)
                                 continue;
-                            }
+                            number = normalized[0];
 
                             try {
-                                String hash = XMPPUtils.createLocalpart(number);
+                                String hash = normalized[1];
                                 String jid = XMPPUtils.createLocalJID(getContext(), hash);
                                 long contactId = phones.getLong(phones.getColumnIndex(BaseColumns._ID));
 
@@ -784,6 +966,18 @@ public class UsersProvider extends ContentProvider {
                         String hash = XMPPUtils.createLocalpart(ownNumber);
                         String jid = XMPPUtils.createLocalJID(getContext(), hash);
 
+                        if (incremental) {
+                            // kept from the last sync, but our name might have changed
+                            SQLiteStatement delete = db.compileStatement("DELETE FROM " +
+                                TABLE_USERS_OFFLINE + " WHERE jid = ?");
+                            try {
+                                delete.bindString(1, jid);
+                                count -= delete.executeUpdateDelete();
+                            }
+                            finally {
+                                delete.close();
+                            }
+                        }
                         addResyncContact(db, stm, onlineUpd, onlineIns,
                             ownNumber, jid, ownName,
                             null, null,
@@ -799,11 +993,24 @@ public class UsersProvider extends ContentProvider {
                     }
                 }
 
+                if (scanned) {
+                    // a full scan sees all numbers: stale ones can be dropped
+                    numbers.save(db, changedContacts == null);
+                    Log.d(SyncAdapter.TAG, "phone numbers normalized: " + numbers.getMissCount() +
+                        ", cached: " + numbers.getHitCount());
+                }
+
                 db.setTransactionSuccessful();
+
+                // will be recorded on commit
+                mPendingScanTimestamp = scanTimestamp;
+                mPendingScanKey = scanKey;
             }
             catch (SecurityException e) {
                 Log.w(SyncAdapter.TAG, "no access to contacts. Did you deny the permission?", e);
                 ReportingManager.logException(e);
+                // nothing was written
+                changed = null;
             }
             finally {
                 if (phones != null)
@@ -821,7 +1028,46 @@ public class UsersProvider extends ContentProvider {
             Contact.invalidate();
         }
 
-        return count;
+        Bundle result = new Bundle();
+        result.putInt(Users.EXTRA_COUNT, count);
+        if (changed != null)
+            result.putStringArray(Users.EXTRA_CHANGED, changed.toArray(new String[changed.size()]));
+        return result;
+    }
+
+    /**
+     * Returns the IDs of system contacts modified or deleted after the given
+     * time. Returns null before Jelly Bean MR2 or if the time is unknown, so
+     * all contacts must be scanned.
+     */
+    @SuppressLint("NewApi")
+    private static Set<Long> getChangedContacts(ContentResolver cr, long timestamp) {
+        if (timestamp <= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2)
+            return null;
+
+        String[] args = { String.valueOf(timestamp) };
+        Set<Long> ids = new HashSet<>();
+        boolean found = addIds(ids, cr.query(ContactsContract.Contacts.CONTENT_URI,
+                new String[] { ContactsContract.Contacts._ID },
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", args, null)) &&
+            addIds(ids, cr.query(ContactsContract.DeletedContacts.CONTENT_URI,
+                new String[] { ContactsContract.DeletedContacts.CONTACT_ID },
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?", args, null));
+        return found ? ids : null;
+    }
+
+    /** Adds the IDs in the first column to the set and closes the cursor. */
+    private static boolean addIds(Set<Long> ids, Cursor c) {
+        if (c == null)
+            return false;
+        try {
+            while (c.moveToNext())
+                ids.add(c.getLong(0));
+            return true;
+        }
+        finally {
+            c.close();
+        }
     }
 
     private void addResyncContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd, SQLiteStatement onlineIns,
@@ -993,6 +1239,9 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (rows > 0)
+            PublicKeyCache.getInstance().invalidate(jid);
+
         if (rows >= 0)
             return Keys.CONTENT_URI.buildUpon()
                     .appendPath(jid)
@@ -1020,6 +1269,7 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        PublicKeyCache.getInstance().invalidateAll();
         return rows;
     }
 
@@ -1040,7 +1290,10 @@ public class UsersProvider extends ContentProvider {
         selection = DatabaseUtils.concatenateWhere(selection, Keys.JID + "=? COLLATE NOCASE");
         selection = DatabaseUtils.concatenateWhere(selection, Keys.FINGERPRINT + "=?");
         selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[] { userId, fingerprint });
-        return db.delete(TABLE_KEYS, selection, selectionArgs);
+        int rows = db.delete(TABLE_KEYS, selection, selectionArgs);
+        if (rows > 0)
+            PublicKeyCache.getInstance().invalidate(userId);
+        return rows;
     }
 
     @Override
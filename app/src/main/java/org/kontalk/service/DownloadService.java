@@ -19,16 +19,16 @@
 package org.kontalk.service;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.greenrobot.eventbus.EventBus;
 
@@ -48,6 +48,7 @@ import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.client.ClientHTTPConnection;
+import org.kontalk.client.DownloadJournal;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.DecryptException;
@@ -62,8 +63,11 @@ import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.util.EventBusIndex;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.Metrics;
 import org.kontalk.util.Permissions;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.ProgressOutputStreamEntity;
+import org.kontalk.util.ThumbnailCache;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_ERROR;
@@ -106,20 +110,29 @@ public class DownloadService extends IntentService implements DownloadListener {
     private static final String EXTRA_MSG_COMPRESS = "org.kontalk.message.download.compress";
     private static final String EXTRA_NOTIFY = "org.kontalk.download.notify";
 
+    /** Directory for the journal of incomplete downloads (inside the files directory). */
+    private static final String JOURNAL_DIRECTORY = "downloads";
+
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
     // data about the download currently being processed
     private Notification mCurrentNotification;
     private long mTotalBytes;
+    /** When data started flowing ({@link System#nanoTime()}), for throughput metrics. */
+    private long mStartTime;
 
     private long mMessageId;
     private String mPeer;
     private String mConversation;
     private boolean mEncrypted;
     private boolean mNotify;
+    /** Decryption errors of the current download (null if not decrypting). */
+    private List<DecryptException> mDecryptErrors;
+    private boolean mDecryptFailed;
 
     private ClientHTTPConnection mDownloadClient;
+    private DownloadJournal mJournal;
     private boolean mCanceled;
 
     public DownloadService() {
@@ -183,6 +196,10 @@ public class DownloadService extends IntentService implements DownloadListener {
         if (mDownloadClient == null) {
             mDownloadClient = new ClientHTTPConnection(this);
         }
+        if (mJournal == null) {
+            mJournal = new DownloadJournal(new File(getFilesDir(), JOURNAL_DIRECTORY));
+            mJournal.cleanup();
+        }
 
         try {
             // check if external storage is available
@@ -224,16 +241,34 @@ public class DownloadService extends IntentService implements DownloadListener {
 
             BUS.post(new DownloadStarted(mMessageId));
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, defaultFile, date, this);
+            // decrypt while downloading if possible
+            ProgressOutputStreamEntity.Processor decryptor = null;
+            mDecryptErrors = null;
+            mDecryptFailed = false;
+            if (mEncrypted) {
+                EndpointServer server = Preferences.getEndpointServer(this);
+                PersonalKey key = Kontalk.get().getPersonalKey();
+                Coder coder = Keyring.getDecryptCoder(this, server, key, mPeer);
+                if (coder != null) {
+                    mDecryptErrors = new LinkedList<>();
+                    decryptor = new Decryptor(coder, mDecryptErrors);
+                }
+            }
+
+            // download content, resuming a previous attempt if any
+            mDownloadClient.downloadResumable(url, mMessageId, defaultFile, date,
+                mJournal, decryptor, this);
         }
         catch (Exception e) {
+            // decryption also fails when data stops arriving: only its own errors count
+            mDecryptFailed = e instanceof DecryptionFailedException;
             error(url, null, e);
         }
         finally {
             sQueue.remove(url);
             mMessageId = 0;
             mPeer = null;
+            mDecryptErrors = null;
         }
     }
 
@@ -300,72 +335,65 @@ public class DownloadService extends IntentService implements DownloadListener {
 
     @Override
     public void start(String url, File destination, long length) {
+        mStartTime = System.nanoTime();
         startForeground(length);
     }
 
+    /**
+     * Stores the network preview received with the message in the thumbnail
+     * cache, so it won't be generated again from the downloaded media.
+     */
+    private void cacheReceivedPreview(Uri media) {
+        String previewPath = MessagesProviderClient.getAttachmentPreviewPath(this, mMessageId);
+        if (previewPath != null && MediaStorage.THUMBNAIL_MIME_NETWORK
+                .equals(MediaStorage.getType(previewPath))) {
+            File preview = new File(previewPath);
+            if (preview.isFile())
+                ThumbnailCache.getInstance(this).putThumbnail(this, media, preview, true);
+        }
+    }
+
     @Override
     public void completed(String url, String mime, File destination) {
+        Metrics.recordTransfer("download", mTotalBytes,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartTime));
+
         Uri uri = Uri.fromFile(destination);
 
         boolean destinationEncrypted = mEncrypted;
         long destinationLength = -1;
 
-        // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
+        // file was decrypted while downloading
+        if (mDecryptErrors != null) {
+            destinationEncrypted = false;
+            destinationLength = destination.length();
 
-            InputStream in = null;
-            OutputStream out = null;
-            try {
-                EndpointServer server = Preferences.getEndpointServer(this);
-                PersonalKey key = Kontalk.get().getPersonalKey();
-                Coder coder = Keyring.getDecryptCoder(this, server, key, mPeer);
-                if (coder != null) {
-                    in = new FileInputStream(destination);
+            if (mDecryptErrors.size() > 0) {
+                int securityFlags = 0;
+                for (DecryptException err : mDecryptErrors) {
+                    Log.w(TAG, "attachment decryption error: " + err.getMessage());
 
-                    File outFile = new File(destination + ".new");
-                    out = new FileOutputStream(outFile);
-                    List<DecryptException> errors = new LinkedList<>();
-                    coder.decryptFile(in, true, out, errors);
+                    switch (err.getCode()) {
+                        case DecryptException.DECRYPT_EXCEPTION_INTEGRITY_CHECK:
+                            securityFlags |= Coder.SECURITY_ERROR_INTEGRITY_CHECK;
+                            break;
 
-                    // TODO process errors
+                        case DecryptException.DECRYPT_EXCEPTION_VERIFICATION_FAILED:
+                            securityFlags |= Coder.SECURITY_ERROR_INVALID_SIGNATURE;
+                            break;
 
-                    // delete old file and rename the decrypted one
-                    destination.delete();
-                    outFile.renameTo(destination);
+                        case DecryptException.DECRYPT_EXCEPTION_INVALID_DATA:
+                            securityFlags |= Coder.SECURITY_ERROR_INVALID_DATA;
+                            break;
 
-                    // save this for later
-                    destinationEncrypted = false;
-                    destinationLength = destination.length();
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "decryption failed!", e);
-                errorNotification(getString(R.string.notify_ticker_download_error),
-                    getString(R.string.notify_text_decryption_error));
-                return;
-            }
-            finally {
-                try {
-                    if (in != null)
-                        in.close();
-                }
-                catch (IOException e) {
-                    // ignored
-                }
-                try {
-                    if (out != null)
-                        out.close();
-                }
-                catch (IOException e) {
-                    // ignored
+                        case DecryptException.DECRYPT_EXCEPTION_INVALID_SENDER:
+                            securityFlags |= Coder.SECURITY_ERROR_INVALID_SENDER;
+                            break;
+                    }
                 }
+
+                if (securityFlags != 0)
+                    MessagesProviderClient.addAttachmentSecurityFlags(this, mMessageId, securityFlags);
             }
         }
 
@@ -373,6 +401,10 @@ public class DownloadService extends IntentService implements DownloadListener {
         MessagesProviderClient.downloaded(this, mMessageId, uri,
             destinationEncrypted, destinationLength);
 
+        // the preview received with the message is a thumbnail of this media
+        if (!destinationEncrypted)
+            cacheReceivedPreview(uri);
+
         // update media store
         MediaStorage.scanFile(this, destination, mime);
 
@@ -414,10 +446,15 @@ public class DownloadService extends IntentService implements DownloadListener {
     public void error(String url, File destination, Throwable exc) {
         Log.e(TAG, "download error", exc);
         stopForeground();
+        if (mCanceled || mDecryptFailed) {
+            // resuming would be useless
+            mJournal.discard(mMessageId);
+        }
         if (!mCanceled) {
             ReportingManager.logException(exc);
             errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
+                getString(mDecryptFailed ? R.string.notify_text_decryption_error :
+                    R.string.notify_text_download_error));
         }
     }
 
@@ -495,6 +532,33 @@ public class DownloadService extends IntentService implements DownloadListener {
         ContextCompat.startForegroundService(context, i);
     }
 
+    /** Decrypts data while it's being downloaded. */
+    private final class Decryptor implements ProgressOutputStreamEntity.Processor {
+        private final Coder mCoder;
+        private final List<DecryptException> mErrors;
+
+        Decryptor(Coder coder, List<DecryptException> errors) {
+            mCoder = coder;
+            mErrors = errors;
+        }
+
+        @Override
+        public void process(InputStream in, OutputStream out) throws IOException {
+            try {
+                mCoder.decryptFile(in, true, out, mErrors);
+            }
+            catch (GeneralSecurityException e) {
+                throw new DecryptionFailedException(e);
+            }
+        }
+    }
+
+    private static final class DecryptionFailedException extends IOException {
+        DecryptionFailedException(Throwable cause) {
+            super("decryption failed", cause);
+        }
+    }
+
     public static class WritePermissionDenied {
     }
 
@@ -33,6 +33,7 @@ import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.provider.MessagesProviderClient.MessageUpdater;
 import org.kontalk.provider.MyMessages;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.util.ImageResizer;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
 
@@ -62,6 +63,17 @@ public class MediaService extends JobIntentService {
     @Deprecated
     public static final String ACTION_MEDIA_READY = "org.kontalk.action.MEDIA_READY";
 
+    /** Shared by all images processed while the service is running. */
+    private final ImageResizer mResizer = new ImageResizer();
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (mResizer) {
+            mResizer.release();
+        }
+    }
+
     @Override
     protected void onHandleWork(@NonNull Intent intent) {
         String action = intent.getAction();
@@ -91,7 +103,10 @@ public class MediaService extends JobIntentService {
             }
 
             if (compress > 0) {
-                File compressed = MediaStorage.resizeImage(this, uri, compress);
+                File compressed;
+                synchronized (mResizer) {
+                    compressed = MediaStorage.resizeImage(this, uri, compress, mResizer);
+                }
                 length = compressed.length();
                 // use the compressed image from now on
                 uri = Uri.fromFile(compressed);
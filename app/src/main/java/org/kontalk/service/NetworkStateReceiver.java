@@ -26,6 +26,7 @@ import android.net.NetworkInfo;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
+import org.kontalk.client.AdaptiveBundleAndDeferCallback;
 import org.kontalk.service.msgcenter.AndroidAdaptiveServerPingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.util.Preferences;
@@ -79,6 +80,8 @@ public class NetworkStateReceiver extends BroadcastReceiver {
             }
             else if (info.isConnected()) {
                 Log.d(TAG, "connected to network!");
+                AdaptiveBundleAndDeferCallback
+                    .setMobileNetwork(info.getType() == ConnectivityManager.TYPE_MOBILE);
 
                 if (info.getType() == ConnectivityManager.TYPE_MOBILE &&
                         !shouldReconnect(context)) {
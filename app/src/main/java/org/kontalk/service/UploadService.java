@@ -26,6 +26,7 @@ package org.kontalk.service;
 import java.io.File;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import android.app.IntentService;
 import android.app.Notification;
@@ -49,6 +50,7 @@ import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.HTPPFileUploadConnection;
 import org.kontalk.upload.UploadConnection;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.Metrics;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOAD_ERROR;
@@ -166,7 +168,10 @@ public class UploadService extends IntentService implements ProgressListener {
             queue.put(filename, mMessageId);
 
             // upload content
+            long startTime = System.nanoTime();
             String mediaUrl = mConn.upload(file, length, mime, this);
+            Metrics.recordTransfer("upload", length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
             if (mediaUrl == null)
                 mediaUrl = fetchUrl;
             Log.d(TAG, "uploaded with media URL: " + mediaUrl);
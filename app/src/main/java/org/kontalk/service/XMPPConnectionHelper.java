@@ -19,6 +19,7 @@
 package org.kontalk.service;
 
 import java.io.IOException;
+import java.net.UnknownHostException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -39,15 +40,20 @@ import org.spongycastle.openpgp.PGPException;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
+import org.kontalk.client.ConnectionWarmup;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerScores;
+import org.kontalk.client.smack.XMPPTCPConnection;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.util.InternalTrustStore;
+import org.kontalk.util.Metrics;
 import org.kontalk.util.Preferences;
 
 
@@ -97,6 +103,9 @@ public class XMPPConnectionHelper extends Thread {
     /** Connecting flag. */
     protected volatile boolean mConnecting;
 
+    /** Time spent resolving the server address in the last attempt. */
+    private long mDnsTime = -1;
+
     /**
      * Creates a new instance.
      * @param context
@@ -158,6 +167,22 @@ public class XMPPConnectionHelper extends Thread {
             }
         }
 
+        long connectStart = System.nanoTime();
+
+        // resolve server address (usually cached)
+        mDnsTime = -1;
+        if (mServer.getHost() != null) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                ConnectionWarmup.resolve(mServer.getHost());
+            }
+            catch (UnknownHostException e) {
+                // connection will try again
+            }
+            mDnsTime = SystemClock.elapsedRealtime() - start;
+            Metrics.histogram("connect.dns_ms").record(mDnsTime);
+        }
+
         // recreate connection if closed
         if (mConn == null) {
 
@@ -191,6 +216,11 @@ public class XMPPConnectionHelper extends Thread {
         // connect
         mConn.connect();
 
+        // TCP connect time is used for server selection
+        long tcpTime = mConn.getConnectPhaseTime(XMPPTCPConnection.ConnectPhase.TCP);
+        if (tcpTime >= 0)
+            ServerScores.getInstance(mContext).recordSuccess(mServer, tcpTime);
+
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
 
@@ -201,6 +231,13 @@ public class XMPPConnectionHelper extends Thread {
         if ((!mLimited || forceLogin) && (key != null))
             mConn.login();
 
+        Metrics.histogram("connect.total_ms").recordMillisSince(connectStart);
+        Log.d(TAG, "connected: " + getConnectTimings());
+    }
+
+    private String getConnectTimings() {
+        return "dns=" + (mDnsTime >= 0 ? mDnsTime + "ms" : "-") +
+            (mConn != null ? " " + mConn.getConnectTimings() : "");
     }
 
     public void connect() {
@@ -235,12 +272,22 @@ public class XMPPConnectionHelper extends Thread {
             catch (Exception ie) {
                 // uncontrolled interrupt - handle errors
                 if (mConnecting) {
-                    Log.e(TAG, "connection error", ie);
+                    Log.e(TAG, "connection error (" + getConnectTimings() + ")", ie);
+                    Metrics.counter("connect.errors").inc();
                     if (mConn != null) {
                         // forcibly close connection, no matter what
                         mConn.instantShutdown();
                     }
 
+                    // server not reachable: resolve it again next time
+                    if (ie instanceof SmackException.ConnectionException) {
+                        ServerScores.getInstance(mContext).recordFailure(mServer);
+                        ConnectionWarmup.invalidateAddress(mServer.getHost());
+                        // recreate the connection if there is no stream to resume
+                        if (mConn != null && !mConn.isDisconnectedButSmResumptionPossible())
+                            mConn = null;
+                    }
+
                     // SASL: not authorized
                     if (ie instanceof SASLErrorException) {
                         SASLError error = ((SASLErrorException) ie).getSASLFailure().getSASLError();
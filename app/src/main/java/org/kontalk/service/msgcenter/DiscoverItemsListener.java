@@ -45,6 +45,10 @@ class DiscoverItemsListener extends MessageCenterPacketListener {
         // we don't need this listener anymore
         conn.removeAsyncStanzaListener(this);
 
+        MessageCenterService service = getInstance();
+        if (service != null)
+            service.recordSinceLogin("session.discovery_ms");
+
         DiscoverItems query = (DiscoverItems) packet;
         List<DiscoverItems.Item> items = query.getItems();
         for (DiscoverItems.Item item : items) {
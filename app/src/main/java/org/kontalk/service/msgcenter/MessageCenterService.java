@@ -33,6 +33,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipInputStream;
 
 import org.greenrobot.eventbus.EventBus;
@@ -106,6 +108,7 @@ import android.os.PowerManager.WakeLock;
 import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.support.v4.app.ServiceCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
@@ -117,6 +120,7 @@ import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.AdaptiveBundleAndDeferCallback;
 import org.kontalk.client.BitsOfBinary;
 import org.kontalk.client.BlockingCommand;
 import org.kontalk.client.E2EEncryption;
@@ -165,12 +169,14 @@ import org.kontalk.service.msgcenter.event.NoPresenceEvent;
 import org.kontalk.service.msgcenter.event.PresenceEvent;
 import org.kontalk.service.msgcenter.event.PresenceRequest;
 import org.kontalk.service.msgcenter.event.PublicKeyRequest;
+import org.kontalk.service.msgcenter.event.RosterLoadedEvent;
 import org.kontalk.service.msgcenter.event.RosterMatchRequest;
 import org.kontalk.service.msgcenter.event.RosterStatusEvent;
 import org.kontalk.service.msgcenter.event.RosterStatusRequest;
 import org.kontalk.service.msgcenter.event.SendChatStateRequest;
 import org.kontalk.service.msgcenter.event.SendDeliveryReceiptRequest;
 import org.kontalk.service.msgcenter.event.SendMessageRequest;
+import org.kontalk.service.msgcenter.event.SendMessagesRequest;
 import org.kontalk.service.msgcenter.event.ServerListEvent;
 import org.kontalk.service.msgcenter.event.ServerListRequest;
 import org.kontalk.service.msgcenter.event.SetUserPrivacyRequest;
@@ -195,6 +201,7 @@ import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.EventBusIndex;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.Metrics;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.SystemUtils;
 import org.kontalk.util.WakefulHashSet;
@@ -306,6 +313,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** How long to retain the wakelock to wait for incoming messages. */
     private static final int WAIT_FOR_MESSAGES_DELAY = 5000;
 
+    /** Number of parallel workers for encrypting outgoing messages. */
+    private static final int SEND_PIPELINE_WORKERS = 2;
+    /** Max number of workers for incoming messages, regardless of the number of cores. */
+    private static final int RECEIVE_PIPELINE_MAX_WORKERS = 4;
+
     static final IPushListener sPushListener = PushServiceManager.getDefaultListener();
 
     /**
@@ -376,6 +388,25 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * Task execution pool. Generally used by packet listeners.
      */
     private ExecutorService mThreadPool;
+    /**
+     * Outgoing messages pipeline.
+     */
+    private SendPipeline mSendPipeline;
+    /**
+     * Incoming messages pipeline.
+     */
+    private ReceivePipeline mReceivePipeline;
+
+    /**
+     * When the current connection was established and authenticated
+     * ({@link System#nanoTime()}), for session metrics.
+     */
+    private long mConnectedTime;
+    private volatile long mLoginTime;
+    /**
+     * True until the first message after login is sent or received.
+     */
+    private final AtomicBoolean mFirstMessagePending = new AtomicBoolean();
 
     /**
      * Idle handler.
@@ -428,14 +459,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
          */
         WeakReference<MessageCenterService> s;
         /**
-         * Reference counter.
+         * Reference counter. Updated from the send pipeline workers too.
          */
-        int mRefCount;
+        final AtomicInteger mRefCount = new AtomicInteger();
 
         public IdleConnectionHandler(MessageCenterService service, int refCount, Looper looper) {
             super(looper);
             s = new WeakReference<>(service);
-            mRefCount = refCount;
+            mRefCount.set(refCount);
 
             // set idle handler for the first idle message
             Looper.myQueue().addIdleHandler(this);
@@ -515,7 +546,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
          * Resets the idle timer.
          */
         public void reset(int refCount) {
-            mRefCount = refCount;
+            mRefCount.set(refCount);
             reset();
         }
 
@@ -526,7 +557,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             removeMessages(MSG_IDLE);
             removeMessages(MSG_INACTIVE);
 
-            if (mRefCount <= 0 && getLooper().getThread().isAlive()) {
+            if (mRefCount.get() <= 0 && getLooper().getThread().isAlive()) {
                 // queue inactive message
                 queueInactive();
             }
@@ -537,8 +568,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
 
         public void hold(boolean activate) {
-            mRefCount++;
-            if (mRefCount > 0) {
+            if (mRefCount.incrementAndGet() > 0) {
                 MessageCenterService service = s.get();
                 if (service != null && service.isInactive() && service.isConnected()) {
                     service.active(activate);
@@ -552,9 +582,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
 
         public void release() {
-            mRefCount--;
-            if (mRefCount <= 0) {
-                mRefCount = 0;
+            // never go below zero
+            int count;
+            do {
+                count = mRefCount.get();
+            } while (!mRefCount.compareAndSet(count, Math.max(count - 1, 0)));
+
+            if (count <= 1) {
                 post(new Runnable() {
                     public void run() {
                         removeMessages(MSG_IDLE);
@@ -594,7 +628,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             post(new Runnable() {
                 public void run() {
                     MessageCenterService service = s.get();
-                    if (service != null && mRefCount <= 0 && !service.isInactive()) {
+                    if (service != null && mRefCount.get() <= 0 && !service.isInactive()) {
                         forceInactive();
                     }
                 }
@@ -619,7 +653,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
 
         public boolean isHeld() {
-            return mRefCount > 0;
+            return mRefCount.get() > 0;
         }
 
         public void test() {
@@ -684,10 +718,82 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create main thread handler
         mHandler = new Handler();
 
+        // outgoing messages pipeline
+        mSendPipeline = new SendPipeline(SEND_PIPELINE_WORKERS);
+        // incoming messages pipeline, shared by all connections
+        mReceivePipeline = new ReceivePipeline(this,
+            OrderedExecutor.availableWorkers(RECEIVE_PIPELINE_MAX_WORKERS));
+
+        registerMetricsSources();
+
         // register screen off listener for manual inactivation
         registerInactivity();
     }
 
+    /** Exposes statistics of our components to the diagnostics dump. */
+    private void registerMetricsSources() {
+        Metrics.registerSource("send", new Metrics.Source() {
+            @Override
+            public String getStats() {
+                return mSendPipeline.toString();
+            }
+        });
+        Metrics.registerSource("receive", new Metrics.Source() {
+            @Override
+            public String getStats() {
+                return mReceivePipeline.toString();
+            }
+        });
+        Metrics.registerSource("login", new Metrics.Source() {
+            @Override
+            public String getStats() {
+                return KontalkConnection.getLoginStats();
+            }
+        });
+        Metrics.registerSource("bundling", new Metrics.Source() {
+            @Override
+            public String getStats() {
+                KontalkConnection conn = mConnection;
+                return conn != null ? conn.getBundlingStats() : "-";
+            }
+        });
+        Metrics.registerSource("keyring", new Metrics.Source() {
+            @Override
+            public String getStats() {
+                return Keyring.getCacheStats();
+            }
+        });
+        Metrics.registerSource("contacts", new Metrics.Source() {
+            @Override
+            public String getStats() {
+                return Contact.getCacheStats();
+            }
+        });
+    }
+
+    private void unregisterMetricsSources() {
+        Metrics.unregisterSource("send");
+        Metrics.unregisterSource("receive");
+        Metrics.unregisterSource("login");
+        Metrics.unregisterSource("bundling");
+        Metrics.unregisterSource("keyring");
+        Metrics.unregisterSource("contacts");
+    }
+
+    /** Records the time elapsed since login into the given histogram. */
+    void recordSinceLogin(String name) {
+        long loginTime = mLoginTime;
+        if (loginTime > 0)
+            Metrics.histogram(name).recordMillisSince(loginTime);
+    }
+
+    /** Must be called whenever a message is sent or received. */
+    void messageProcessed() {
+        if (mFirstMessagePending.compareAndSet(true, false))
+            recordSinceLogin("session.first_message_ms");
+        Metrics.maybeLog();
+    }
+
     void queueTask(Runnable task) {
         if (mThreadPool != null) {
             mThreadPool.execute(task);
@@ -839,6 +945,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         quit(false);
 
+        mSendPipeline.shutdown();
+        mReceivePipeline.shutdown();
+        unregisterMetricsSources();
+
         // deactivate ping manager
         AndroidAdaptiveServerPingManager.onDestroy();
 
@@ -918,6 +1028,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mThreadPool = null;
         }
 
+        // keep the stream management state if we are coming back soon
+        final boolean resumable = restarting && mConnection != null &&
+            mConnection.isSmResumptionPossible();
+
         // disable listeners
         if (mHelper != null)
             mHelper.setListener(null);
@@ -939,6 +1053,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // disconnect from server (if any)
         if (mConnection != null) {
+            Log.d(TAG, "stanza bundling: " + mConnection.getBundlingStats());
+
             // disable ping manager
             AndroidAdaptiveServerPingManager
                 .getInstanceFor(mConnection, this)
@@ -952,7 +1068,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
 
             // this is because of NetworkOnMainThreadException
-            DisconnectThread disconnectThread = new DisconnectThread(mConnection);
+            // a resumable stream is not closed so the server will keep it for us
+            DisconnectThread disconnectThread = new DisconnectThread(mConnection, resumable);
             disconnectThread.start();
             disconnectThread.joinTimeout(500);
 
@@ -964,7 +1081,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
         }
 
-        if (mUploadServices != null) {
+        // upload services will not be discovered again after resuming
+        if (mUploadServices != null && !resumable) {
             mUploadServices.clear();
             mUploadServices = null;
         }
@@ -1005,15 +1123,24 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     private static final class DisconnectThread extends Thread {
         private final KontalkConnection mConn;
+        private final boolean mInstant;
 
-        public DisconnectThread(KontalkConnection conn) {
+        public DisconnectThread(KontalkConnection conn, boolean instant) {
             mConn = conn;
+            mInstant = instant;
         }
 
         @Override
         public void run() {
             try {
-                mConn.disconnect();
+                if (mInstant) {
+                    // don't close the stream so it can be resumed
+                    if (!mConn.isDisconnectedButSmResumptionPossible())
+                        mConn.instantShutdown();
+                }
+                else {
+                    mConn.disconnect();
+                }
             }
             catch (Exception e) {
                 mConn.instantShutdown();
@@ -1323,7 +1450,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         }
 
                         File encrypted = MessageUtils.encryptFile(this, in,
-                            SystemUtils.toString(encryptTo));
+                            attachment.getMime(), SystemUtils.toString(encryptTo));
                         fileLength = encrypted.length();
                         preMediaUri = Uri.fromFile(encrypted);
                     }
@@ -1379,6 +1506,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
+    @Subscribe(threadMode = ThreadMode.BACKGROUND)
+    public void handleSendMessages(SendMessagesRequest request) {
+        if (isConnected()) {
+            sendMessages(request);
+        }
+    }
+
     @Subscribe(threadMode = ThreadMode.BACKGROUND)
     public void handleSendChatState(SendChatStateRequest request) {
         if (isConnected()) {
@@ -1632,8 +1766,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // reset push notification variable
             mPushNotifications = Preferences.getPushNotificationsEnabled(this) &&
                 mPushService != null && mPushService.isServiceAvailable();
-            // reset waiting messages
-            mWaitingReceipt.clear();
+            // reset waiting messages (they will be acked if the stream is resumed)
+            if (mConnection == null || !mConnection.isDisconnectedButSmResumptionPossible())
+                mWaitingReceipt.clear();
 
             // setup task execution pool
             mThreadPool = Executors.newCachedThreadPool();
@@ -1719,7 +1854,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         connection.addAsyncStanzaListener(presenceListener, filter);
 
         filter = new StanzaTypeFilter(org.jivesoftware.smack.packet.Message.class);
-        connection.addSyncStanzaListener(new MessageListener(this), filter);
+        connection.addSyncStanzaListener(new MessageListener(this, mReceivePipeline), filter);
 
         // this is used as a reply callback
         mLastActivityListener = new LastActivityListener();
@@ -1730,6 +1865,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public void connected(final XMPPConnection connection) {
+        mConnectedTime = System.nanoTime();
+
         // enable ping manager
         AndroidAdaptiveServerPingManager
             .getInstanceFor(connection, this)
@@ -1737,6 +1874,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // save the network we connected through
         mCurrentNetwork = SystemUtils.getCurrentNetworkName(this);
+        AdaptiveBundleAndDeferCallback.setMobileNetwork(SystemUtils.isOnMobileNetwork(this));
 
         synchronized (connection) {
             if (mPingFailedListener == null) {
@@ -1759,27 +1897,45 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public void authenticated(XMPPConnection connection, boolean resumed) {
-        Log.v(TAG, "authenticated!");
+        Log.v(TAG, "authenticated! (resumed=" + resumed + ", " +
+            KontalkConnection.getLoginStats() + ")");
 
-        // add message ack listener
-        if (mConnection.isSmEnabled()) {
-            mConnection.removeAllStanzaIdAcknowledgedListeners();
-        }
-        else {
-            Log.w(TAG, "stream management not available - disabling delivery receipts");
-        }
+        if (mConnectedTime > 0)
+            Metrics.histogram("session.login_ms").recordMillisSince(mConnectedTime);
+        mLoginTime = System.nanoTime();
+        mFirstMessagePending.set(true);
 
         // we can release the message center now
         // this must be done before sending the presence since it's based on isHeld()
         mIdleHandler.release();
 
-        // send presence
-        sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
-        // clear upload service
-        if (mUploadServices != null)
-            mUploadServices.clear();
-        // discovery
-        discovery();
+        if (resumed) {
+            /*
+             * The server kept our session: roster, presence and discovered
+             * services are still valid and unacknowledged stanzas have been
+             * sent again by Smack, so their ack listeners must be kept.
+             * Just update our presence mode if it changed in the meantime.
+             */
+            if (mIdleHandler.isHeld())
+                sendPresence(Presence.Mode.available);
+        }
+        else {
+            // add message ack listener
+            if (mConnection.isSmEnabled()) {
+                mConnection.removeAllStanzaIdAcknowledgedListeners();
+            }
+            else {
+                Log.w(TAG, "stream management not available - disabling delivery receipts");
+            }
+
+            // send presence
+            sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
+            // clear upload service
+            if (mUploadServices != null)
+                mUploadServices.clear();
+            // discovery
+            discovery();
+        }
 
         // helper is not needed any more
         mHelper = null;
@@ -1787,6 +1943,15 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         BUS.removeStickyEvent(ConnectedEvent.class);
         BUS.postSticky(new ConnectedEvent());
 
+        if (resumed) {
+            // the roster won't be loaded again and sticky events were
+            // removed on disconnect: tell listeners we are ready again
+            BUS.postSticky(new RosterLoadedEvent());
+            // upload services discovered before are still valid
+            if (mUploadServices != null && mUploadServices.size() > 0)
+                BUS.post(new UploadServiceFoundEvent());
+        }
+
         // we can now release any pending push notification
         Preferences.setLastPushNotification(-1);
 
@@ -1799,18 +1964,20 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             .onConnectionCompleted();
 
         // request server key if needed
-        Async.go(new Runnable() {
-            @Override
-            public void run() {
-                final XMPPConnection conn = mConnection;
-                if (conn != null && conn.isConnected()) {
-                    Jid jid = conn.getXMPPServiceDomain();
-                    if (Keyring.getPublicKey(MessageCenterService.this, jid.toString(), MyUsers.Keys.TRUST_UNKNOWN) == null) {
-                        BUS.post(new PublicKeyRequest(jid));
+        if (!resumed) {
+            Async.go(new Runnable() {
+                @Override
+                public void run() {
+                    final XMPPConnection conn = mConnection;
+                    if (conn != null && conn.isConnected()) {
+                        Jid jid = conn.getXMPPServiceDomain();
+                        if (Keyring.getPublicKey(MessageCenterService.this, jid.toString(), MyUsers.Keys.TRUST_UNKNOWN) == null) {
+                            BUS.post(new PublicKeyRequest(jid));
+                        }
                     }
                 }
-            }
-        });
+            });
+        }
 
         // re-acquire the wakelock for a limited time to allow for messages to come
         // it will then be released automatically
@@ -2165,80 +2332,184 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         sendPacket(packet);
     }
 
-    private void sendMessage(SendMessageRequest request) {
+    /** Conversation data shared by all messages of a send batch. */
+    private static final class SendContext {
+        /** Recipient for one-to-one chats, null for groups. */
+        Jid to;
+        /** Used for verifying {@link MessagingNotification#isPaused}. */
+        Jid convJid;
+        Jid[] toGroup;
+        GroupController groupController;
+        PersonalKey key;
+        /** Created on first encrypted message. */
+        Coder coder;
+    }
+
+    private void sendMessage(final SendMessageRequest request) {
         if (!isRosterLoaded()) {
             Log.d(TAG, "roster not loaded yet, not sending message");
             return;
         }
 
-        CompositeMessage message = CompositeMessage.loadMessage(this, request.databaseId);
+        // needed to find out the conversation
+        final CompositeMessage message = CompositeMessage.loadMessage(this, request.databaseId);
         if (message == null) {
             Log.w(TAG, "message not found: " + request.databaseId);
             return;
         }
 
+        final boolean receipt = request instanceof SendDeliveryReceiptRequest;
+        mSendPipeline.submit(message.getPeer(), 1, new Runnable() {
+            @Override
+            public void run() {
+                sendMessageBatch(new long[] { request.databaseId }, message, receipt);
+            }
+        });
+    }
+
+    private void sendMessages(final SendMessagesRequest request) {
+        if (!isRosterLoaded()) {
+            Log.d(TAG, "roster not loaded yet, not sending messages");
+            return;
+        }
+
+        mSendPipeline.submit(request.peer, request.databaseIds.length, new Runnable() {
+            @Override
+            public void run() {
+                sendMessageBatch(request.databaseIds, null, false);
+            }
+        });
+    }
+
+    /**
+     * Sends a batch of messages from the same conversation, in order.
+     * Runs on a {@link SendPipeline} worker.
+     * @param first the already loaded first message, if any
+     */
+    @WorkerThread
+    void sendMessageBatch(long[] databaseIds, CompositeMessage first, boolean receipt) {
+        SendContext ctx = null;
+        int i = 0;
+        try {
+            for (; i < databaseIds.length; i++) {
+                if (!isConnected()) {
+                    Log.d(TAG, "not connected, stopping send batch");
+                    break;
+                }
+
+                long startTime = System.nanoTime();
+                CompositeMessage message = (i == 0 && first != null) ? first :
+                    CompositeMessage.loadMessage(this, databaseIds[i]);
+                if (message == null) {
+                    Log.w(TAG, "message not found: " + databaseIds[i]);
+                    mSendPipeline.done(1);
+                    continue;
+                }
+
+                if (ctx == null) {
+                    ctx = loadSendContext(message);
+                    if (ctx == null) {
+                        // same failure for the whole conversation
+                        break;
+                    }
+                }
+                mSendPipeline.record(SendPipeline.Stage.LOAD, startTime);
+
+                if (!sendMessage(ctx, message, receipt)) {
+                    // reload conversation data for the next message
+                    ctx = null;
+                }
+                mSendPipeline.done(1);
+            }
+        }
+        finally {
+            if (i < databaseIds.length)
+                mSendPipeline.done(databaseIds.length - i);
+        }
+
+        if (Log.isDebug())
+            Log.v(TAG, "send pipeline: " + mSendPipeline);
+    }
+
+    /** Loads conversation data for sending messages to the peer of the given message. */
+    private SendContext loadSendContext(CompositeMessage message) {
         Conversation conv = Conversation.loadFromUserId(this, message.getPeer());
         if (conv == null) {
             // this is actually a bug
             ReportingManager.logException(new IllegalArgumentException("no conversation for message!"));
-            Log.w(TAG, "unable to load conversation for encrypting message " + request.databaseId);
-            return;
+            Log.w(TAG, "unable to load conversation for encrypting message " + message.getDatabaseId());
+            return null;
         }
 
-        Jid to;
-        // used for verifying isPaused()
-        Jid convJid;
-        Jid[] toGroup;
-        GroupController groupController = null;
-        GroupInfo groupInfo = null;
+        SendContext ctx = new SendContext();
 
         final GroupComponent group = message.getComponent(GroupComponent.class);
         if (group != null) {
-            groupInfo = group.getContent();
+            GroupInfo groupInfo = group.getContent();
 
-            toGroup = XMPPUtils.parseJids(conv.getGroupPeersForSending());
-            convJid = groupInfo.getJid();
+            ctx.toGroup = XMPPUtils.parseJids(conv.getGroupPeersForSending());
+            ctx.convJid = groupInfo.getJid();
 
-            groupController = GroupControllerFactory
+            ctx.groupController = GroupControllerFactory
                 .createController(groupInfo.getType(), mConnection, this);
             // the to field will be filled by the group controller
-            to = null;
+            ctx.to = null;
 
             // check if we can send messages even with some members with no subscriptipn
-            if (!groupController.canSendWithNoSubscription()) {
-                for (Jid jid : toGroup) {
+            if (!ctx.groupController.canSendWithNoSubscription()) {
+                for (Jid jid : ctx.toGroup) {
                     if (!isAuthorized(jid.asBareJid())) {
                         Log.i(TAG, "not subscribed to " + jid + ", not sending group message");
-                        return;
+                        return null;
                     }
                 }
             }
         }
         else {
-            to = JidCreate.fromOrThrowUnchecked(message.getPeer());
-            toGroup = new Jid[]{to};
-            convJid = to;
+            ctx.to = JidCreate.fromOrThrowUnchecked(message.getPeer());
+            ctx.toGroup = new Jid[]{ctx.to};
+            ctx.convJid = ctx.to;
         }
 
-        PersonalKey key;
         try {
-            key = Kontalk.get().getPersonalKey();
+            ctx.key = Kontalk.get().getPersonalKey();
         }
         catch (Exception pgpe) {
             Log.w(TAG, "no personal key available - not allowed to send messages");
             // warn user: message will not be sent
-            if (MessagingNotification.isPaused(convJid)) {
-                Toast.makeText(this, R.string.warn_no_personal_key,
-                    Toast.LENGTH_LONG).show();
-            }
-            return;
+            warnSendFailure(ctx.convJid, R.string.warn_no_personal_key);
+            return null;
+        }
+
+        return ctx;
+    }
+
+    /** Shows a warning toast if the conversation is not being watched. */
+    private void warnSendFailure(final Jid convJid, final int textId) {
+        final Handler handler = mHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (MessagingNotification.isPaused(convJid)) {
+                        Toast.makeText(MessageCenterService.this, textId,
+                            Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
         }
+    }
 
+    /**
+     * Builds, encrypts and sends a single message.
+     * @return false if conversation data must be reloaded for the next message
+     */
+    private boolean sendMessage(SendContext ctx, CompositeMessage message, boolean receipt) {
         // check if message is already pending
-        final long msgId = request.databaseId;
+        final long msgId = message.getDatabaseId();
         if (mWaitingReceipt.contains(msgId)) {
             Log.v(TAG, "message already queued and waiting - dropping");
-            return;
+            return true;
         }
 
         final String id = message.getId();
@@ -2248,6 +2519,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         Stanza m, originalStanza;
 
+        final Jid to = ctx.to;
+        final Jid[] toGroup = ctx.toGroup;
+        final GroupController groupController = ctx.groupController;
+        final GroupComponent group = message.getComponent(GroupComponent.class);
+        final GroupInfo groupInfo = group != null ? group.getContent() : null;
+
+        long startTime = System.nanoTime();
+
         // pre-process message for group delivery
         GroupCommand groupCommand = null;
         if (groupController != null) {
@@ -2309,7 +2588,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             org.jivesoftware.smack.packet.Message msg = (org.jivesoftware.smack.packet.Message) m;
             msg.setType(org.jivesoftware.smack.packet.Message.Type.chat);
 
-            if (!(request instanceof SendDeliveryReceiptRequest)) {
+            if (!receipt) {
                 TextComponent body = message.getComponent(TextComponent.class);
                 if (body != null) {
                     msg.setBody(body.getContent());
@@ -2386,12 +2665,15 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 byte[] toMessage = null;
                 boolean encryptError = false;
                 try {
-                    Coder coder = Keyring.getEncryptCoder(this, mServer, key, SystemUtils.toString(toGroup));
+                    // recipients are the same for the whole batch
+                    if (ctx.coder == null)
+                        ctx.coder = Keyring.getEncryptCoder(this, mServer, ctx.key, SystemUtils.toString(toGroup));
+                    Coder coder = ctx.coder;
                     if (coder != null) {
 
                         // no extensions, create a simple text version to save space
                         if (msg.getExtensions().size() == 0) {
-                            if (!(request instanceof SendDeliveryReceiptRequest)) {
+                            if (!receipt) {
                                 // a special case for delivery receipts whom doesn't have a body
                                 // but we want to encrypt it for groups (extensions.size() > 0)
                                 toMessage = coder.encryptText(msg.getBody());
@@ -2423,18 +2705,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
                 catch (IllegalArgumentException noPublicKey) {
                     // warn user: message will be not sent
-                    if (MessagingNotification.isPaused(convJid)) {
-                        Toast.makeText(this, R.string.warn_no_public_key,
-                            Toast.LENGTH_LONG).show();
-                    }
+                    warnSendFailure(ctx.convJid, R.string.warn_no_public_key);
                     encryptError = true;
                 }
                 catch (GeneralSecurityException e) {
                     // warn user: message will not be sent
-                    if (MessagingNotification.isPaused(convJid)) {
-                        Toast.makeText(this, R.string.warn_encryption_failed,
-                            Toast.LENGTH_LONG).show();
-                    }
+                    warnSendFailure(ctx.convJid, R.string.warn_encryption_failed);
                     encryptError = true;
                 }
 
@@ -2445,7 +2721,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         .commit();
 
                     mIdleHandler.release();
-                    return;
+                    return true;
                 }
             }
         }
@@ -2455,9 +2731,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             m = groupController.afterEncryption(groupCommand, m, originalStanza);
         }
 
+        mSendPipeline.record(SendPipeline.Stage.ENCRYPT, startTime);
+        startTime = System.nanoTime();
+
         if (isMessage) {
             // received receipt
-            if (request instanceof SendDeliveryReceiptRequest) {
+            if (receipt) {
                 m.addExtension(new DeliveryReceipt(message.getId()));
             }
             else {
@@ -2476,8 +2755,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             sendPacket(m);
         }
 
+        mSendPipeline.record(SendPipeline.Stage.SEND, startTime);
+        messageProcessed();
+
         // the real sendMessage has its own hold/release pair
         mIdleHandler.release();
+
+        // group membership might change after a command
+        return group == null || message.getComponent(GroupCommandComponent.class) == null;
     }
 
     /*
@@ -2586,7 +2871,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         InputStream in = null;
                         try {
                             in = getContentResolver().openInputStream(preMediaUri);
-                            File encrypted = MessageUtils.encryptFile(this, in, toGroup);
+                            File encrypted = MessageUtils.encryptFile(this, in, mime, toGroup);
                             fileLength = encrypted.length();
                             preMediaUri = Uri.fromFile(encrypted);
                         }
@@ -20,7 +20,9 @@ package org.kontalk.service.msgcenter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -38,11 +40,13 @@ import org.jxmpp.stringprep.XmppStringprepException;
 import android.content.ContentUris;
 import android.content.Context;
 import android.net.Uri;
+import android.os.PowerManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
+import org.kontalk.MessagesController;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.BitsOfBinary;
 import org.kontalk.client.E2EEncryption;
@@ -81,7 +85,9 @@ import org.kontalk.service.msgcenter.event.ChatStateEvent;
 import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.Metrics;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
 import org.kontalk.util.XMPPUtils;
 
 import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INVALID_TIMESTAMP;
@@ -93,8 +99,52 @@ import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INVALID_TIME
  */
 class MessageListener extends WakefulMessageCenterPacketListener {
 
-    public MessageListener(MessageCenterService instance) {
+    /** How much time to wait for more offline messages before storing them. */
+    private static final long OFFLINE_BATCH_WINDOW = 500;
+    /** Max number of offline messages stored in a single transaction. */
+    private static final int OFFLINE_BATCH_MAX_SIZE = 50;
+
+    /** Offline messages waiting to be stored. */
+    private final List<PendingMessage> mOfflineBatch = new ArrayList<>();
+
+    private final PowerManager.WakeLock mBatchWakeLock;
+
+    private final Runnable mFlushOfflineBatch = new Runnable() {
+        @Override
+        public void run() {
+            flushOfflineMessages();
+        }
+    };
+
+    /** Decrypts and stores incoming messages. One worker per sender. */
+    private final ReceivePipeline mReceivePipeline;
+
+    /**
+     * @param receivePipeline workers for decrypting messages from different
+     *                        senders in parallel
+     */
+    public MessageListener(MessageCenterService instance, ReceivePipeline receivePipeline) {
         super(instance, "RECV");
+        mBatchWakeLock = SystemUtils.createPartialWakeLock(instance,
+            Kontalk.TAG + "-RECV-BATCH", false);
+        mReceivePipeline = receivePipeline;
+    }
+
+    /** An incoming message waiting to be stored. */
+    private static final class PendingMessage {
+        final CompositeMessage message;
+        /** Message id to acknowledge, null if no receipt was requested. */
+        final String ackId;
+        final Jid from;
+        /** When the stanza was handed to us ({@link System#nanoTime()}). */
+        final long receivedTime;
+
+        PendingMessage(CompositeMessage message, String ackId, Jid from, long receivedTime) {
+            this.message = message;
+            this.ackId = ackId;
+            this.from = from;
+            this.receivedTime = receivedTime;
+        }
     }
 
     private static final class GroupMessageProcessingResult {
@@ -174,7 +224,8 @@ class MessageListener extends WakefulMessageCenterPacketListener {
     }
 
     @Override
-    protected void processWakefulStanza(Stanza packet) throws SmackException.NotConnectedException {
+    protected void processWakefulStanza(Stanza packet)
+            throws SmackException.NotConnectedException, InterruptedException {
         org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
 
         if (m.getType() == org.jivesoftware.smack.packet.Message.Type.chat) {
@@ -184,7 +235,13 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
             // non-active chat states are not to be processed as messages
             if (chatStateEvent == null || chatStateEvent.chatState == ChatState.active) {
-                chatStateEvent = processChatMessage(m, chatStateEvent);
+                if (DeliveryReceipt.from(m) == null && m.getFrom() != null) {
+                    // incoming message: decrypt and store it off the listener thread
+                    queueChatMessage(m, chatStateEvent);
+                    return;
+                }
+
+                chatStateEvent = processChatMessage(m, chatStateEvent, System.nanoTime(), -1);
             }
 
             if (chatStateEvent != null) {
@@ -195,10 +252,50 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
         // error message
         else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
+            // error might refer to a message still waiting to be stored
+            flushOfflineMessages();
             processErrorMessage(m);
         }
     }
 
+    /**
+     * Queues an incoming message for processing by the decrypt workers.
+     * Messages from the same sender are processed in order, so they will
+     * also be stored in order.
+     */
+    private void queueChatMessage(final Message m, final ChatStateEvent chatStateEvent)
+            throws InterruptedException {
+        // block the listener thread if we are too much behind
+        final long ticket = mReceivePipeline.acquire();
+
+        final long queuedTime = System.nanoTime();
+        mReceivePipeline.submit(m.getFrom().asBareJid().toString(), new Runnable() {
+            @Override
+            public void run() {
+                mReceivePipeline.recordQueueWait(System.nanoTime() - queuedTime);
+                boolean drained = false;
+                try {
+                    ChatStateEvent event = processChatMessage(m, chatStateEvent, queuedTime, ticket);
+                    if (event != null) {
+                        // we can send the chat state event now
+                        MessageCenterService.bus().post(event);
+                    }
+                }
+                catch (SmackException.NotConnectedException e) {
+                    // receipt will be sent again on reconnection
+                    Log.w(TAG, "not connected, unable to send receipt", e);
+                }
+                finally {
+                    drained = mReceivePipeline.done(ticket);
+                }
+
+                if (Log.isDebug() && drained) {
+                    Log.v(TAG, "decrypt queue: " + mReceivePipeline);
+                }
+            }
+        });
+    }
+
     /**
      * Retrieve the group JID from a message. Must not be encrypted.
      * Used mainly for chat states.
@@ -246,9 +343,12 @@ class MessageListener extends WakefulMessageCenterPacketListener {
      * Process an incoming message packet.
      * @param m the message
      * @param chatStateEvent a chat state event that will be returned with missing information (e.g. group info in encrypted message)
+     * @param receivedTime when the stanza was handed to us ({@link System#nanoTime()})
+     * @param ticket the {@link ReceivePipeline} ticket, -1 if not queued
      * @return a chat state event to be posted, or null
      */
-    private ChatStateEvent processChatMessage(Message m, @Nullable ChatStateEvent chatStateEvent)
+    private ChatStateEvent processChatMessage(Message m, @Nullable ChatStateEvent chatStateEvent,
+            long receivedTime, long ticket)
             throws SmackException.NotConnectedException {
         // delayed deliver extension is the first the be processed
         // because it's used also in delivery receipts
@@ -312,6 +412,7 @@ class MessageListener extends WakefulMessageCenterPacketListener {
                 if (encryptedData != null) {
 
                     // decrypt message
+                    long startTime = System.nanoTime();
                     try {
                         Message innerStanza = decryptMessage(msg, encryptedData);
                         if (innerStanza != null) {
@@ -336,6 +437,9 @@ class MessageListener extends WakefulMessageCenterPacketListener {
                         msg.clearComponents();
                         msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
                     }
+                    finally {
+                        mReceivePipeline.recordDecrypt(System.nanoTime() - startTime);
+                    }
 
                 }
             }
@@ -481,6 +585,8 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
                 Stanza fwdMsg = fwd.getForwardedStanza();
                 if (fwdMsg != null && fwdMsg.getStanzaId() != null) {
+                    // referenced message might still be waiting to be stored
+                    flushOfflineMessages();
                     ReferencedMessage referencedMsg = ReferencedMessage
                         .load(getContext(), fwdMsg.getStanzaId());
                     if (referencedMsg != null)
@@ -502,6 +608,18 @@ class MessageListener extends WakefulMessageCenterPacketListener {
             }
 
             if (group != null) {
+                if (ticket >= 0) {
+                    // group commands depend on what was received before, from any member
+                    try {
+                        mReceivePipeline.awaitPrevious(ticket);
+                    }
+                    catch (InterruptedException e) {
+                        // shutting down, message won't be acknowledged
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+
                 GroupMessageProcessingResult result = processGroupMessage(group, m, msg, chatStateEvent);
                 if (!result.accept) {
                     // invalid group command
@@ -526,17 +644,115 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
             msg.setStatus(needAck ? Messages.STATUS_INCOMING : Messages.STATUS_CONFIRMED);
 
-            Uri msgUri = Kontalk.get().getMessagesController().incoming(msg);
+            if (stamp != null && !msg.hasComponent(GroupComponent.class)) {
+                // offline message: store it together with the ones coming right after
+                queueOfflineMessage(new PendingMessage(msg, needAck ? msgId : null, from, receivedTime));
+            }
+            else {
+                // keep storage order
+                flushOfflineMessages();
+
+                long storeStart = System.nanoTime();
+                Uri msgUri = Kontalk.get().getMessagesController().incoming(msg);
+                Metrics.histogram("receive.store_us").recordMicrosSince(storeStart);
+                messageStored(receivedTime);
 
-            if (needAck) {
-                // send ack :)
-                sendReceipt(msgUri, msgId, from);
+                if (needAck) {
+                    // send ack :)
+                    sendReceipt(msgUri, msgId, from);
+                }
             }
         }
 
         return chatStateEvent;
     }
 
+    private void queueOfflineMessage(PendingMessage pending) {
+        boolean flush;
+        synchronized (mOfflineBatch) {
+            if (mOfflineBatch.isEmpty()) {
+                // keep the device awake until the batch is stored
+                mBatchWakeLock.acquire(OFFLINE_BATCH_WINDOW * 10);
+            }
+            mOfflineBatch.add(pending);
+            flush = mOfflineBatch.size() >= OFFLINE_BATCH_MAX_SIZE;
+        }
+
+        MessageCenterService.IdleConnectionHandler handler = getIdleHandler();
+        if (flush || handler == null) {
+            flushOfflineMessages();
+        }
+        else {
+            // restart the accumulation window
+            handler.removeCallbacks(mFlushOfflineBatch);
+            handler.postDelayed(mFlushOfflineBatch, OFFLINE_BATCH_WINDOW);
+        }
+    }
+
+    /** Stores all pending offline messages in a single transaction and sends receipts. */
+    private void flushOfflineMessages() {
+        synchronized (mOfflineBatch) {
+            if (mOfflineBatch.isEmpty())
+                return;
+
+            try {
+                MessagesController controller = Kontalk.get().getMessagesController();
+                List<CompositeMessage> messages = new ArrayList<>(mOfflineBatch.size());
+                for (PendingMessage pending : mOfflineBatch)
+                    messages.add(pending.message);
+
+                Uri[] msgUris;
+                boolean[] failed = new boolean[messages.size()];
+                long storeStart = System.nanoTime();
+                try {
+                    msgUris = controller.incoming(messages);
+                    Metrics.histogram("receive.batch_store_us").recordMicrosSince(storeStart);
+                }
+                catch (RuntimeException e) {
+                    Log.w(TAG, "unable to store offline messages in batch, storing them one by one", e);
+                    msgUris = new Uri[messages.size()];
+                    for (int i = 0; i < msgUris.length; i++) {
+                        try {
+                            msgUris[i] = controller.incoming(messages.get(i));
+                        }
+                        catch (RuntimeException e1) {
+                            // not acknowledged, server will send it again
+                            Log.e(TAG, "unable to store offline message", e1);
+                            failed[i] = true;
+                        }
+                    }
+                }
+
+                for (int i = 0; i < msgUris.length; i++) {
+                    PendingMessage pending = mOfflineBatch.get(i);
+                    if (failed[i])
+                        continue;
+
+                    messageStored(pending.receivedTime);
+                    if (pending.ackId != null) {
+                        // send ack :)
+                        sendReceipt(msgUris[i], pending.ackId, pending.from);
+                    }
+                }
+            }
+            finally {
+                mOfflineBatch.clear();
+                if (mBatchWakeLock.isHeld())
+                    mBatchWakeLock.release();
+            }
+        }
+    }
+
+    /** Accounts for an incoming message committed to the database. */
+    private void messageStored(long receivedTime) {
+        // from stanza listener to database commit
+        Metrics.histogram("receive.total_us").recordMicrosSince(receivedTime);
+
+        MessageCenterService service = getInstance();
+        if (service != null)
+            service.messageProcessed();
+    }
+
     private void processErrorMessage(Message m) {
         DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
 
@@ -0,0 +1,89 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+
+/**
+ * A pool of single-threaded workers. Tasks submitted with the same key are
+ * always executed by the same worker, in submission order; tasks with
+ * different keys may run in parallel.
+ * @author Daniele Ricci
+ */
+class OrderedExecutor {
+
+    /** Idle worker threads are terminated after this many seconds. */
+    private static final long WORKER_KEEP_ALIVE = 30;
+
+    private final ExecutorService[] mWorkers;
+
+    OrderedExecutor(String name, int workers) {
+        mWorkers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            final String threadName = name + "-" + i;
+            ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1,
+                WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, threadName);
+                    }
+                });
+            // don't keep idle threads around
+            worker.allowCoreThreadTimeOut(true);
+            mWorkers[i] = worker;
+        }
+    }
+
+    /** Returns a worker count suitable for CPU-bound tasks on this device. */
+    static int availableWorkers(int max) {
+        // leave a core for the UI
+        int cores = Runtime.getRuntime().availableProcessors() - 1;
+        return Math.max(1, Math.min(max, cores));
+    }
+
+    void execute(String key, Runnable task) {
+        int index = (key.toLowerCase(Locale.US).hashCode() & Integer.MAX_VALUE) % mWorkers.length;
+        mWorkers[index].execute(task);
+    }
+
+    int size() {
+        return mWorkers.length;
+    }
+
+    void shutdown() {
+        for (ExecutorService worker : mWorkers)
+            worker.shutdownNow();
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.PowerManager;
+
+import org.kontalk.Kontalk;
+import org.kontalk.util.Metrics;
+import org.kontalk.util.SystemUtils;
+
+
+/**
+ * Worker pool for incoming messages. Messages from the same sender are
+ * always decrypted and stored by the same worker, in order, while different
+ * senders are processed in parallel. Every message gets a ticket in arrival
+ * order, so messages depending on the ones before them (e.g. group commands
+ * from different members) can wait for them to be processed.
+ * One instance is shared by all connections of the message center.
+ * @author Daniele Ricci
+ */
+class ReceivePipeline {
+
+    /** Max number of incoming messages waiting to be decrypted and stored. */
+    private static final int QUEUE_MAX_SIZE = 50;
+
+    private final OrderedExecutor mWorkers;
+    /** Bounds the queue: the stanza listener will block when it's full. */
+    private final Semaphore mSlots = new Semaphore(QUEUE_MAX_SIZE);
+    /** Held for every message in the queue. */
+    private final PowerManager.WakeLock mWakeLock;
+
+    /** Next ticket to be handed out. */
+    private long mNextTicket;
+    /** All tickets below this have been processed. */
+    private long mDoneBelow;
+    /** Processed tickets above {@link #mDoneBelow}. */
+    private final Set<Long> mDone = new HashSet<>();
+
+    private final AtomicLong mDecryptCount = new AtomicLong();
+    private final AtomicLong mDecryptTime = new AtomicLong();
+    private final AtomicLong mQueueCount = new AtomicLong();
+    private final AtomicLong mQueueWaitTime = new AtomicLong();
+
+    ReceivePipeline(Context context, int workers) {
+        mWorkers = new OrderedExecutor("MessageDecrypt", workers);
+        mWakeLock = SystemUtils.createPartialWakeLock(context,
+            Kontalk.TAG + "-RECV-DECRYPT", true);
+    }
+
+    /**
+     * Reserves a place in the queue for a message, blocking if we are too
+     * much behind. Must be called by the stanza listener thread only.
+     * @return the message ticket, to be given to {@link #done(long)}
+     */
+    @SuppressLint("WakelockTimeout")
+    long acquire() throws InterruptedException {
+        mSlots.acquire();
+        mWakeLock.acquire();
+        synchronized (this) {
+            return mNextTicket++;
+        }
+    }
+
+    /** Queues a task for the given sender. */
+    void submit(String sender, Runnable task) {
+        mWorkers.execute(sender, task);
+    }
+
+    /**
+     * Must be called by tasks for every message processed (or dropped).
+     * @return true if the queue has been drained
+     */
+    boolean done(long ticket) {
+        synchronized (this) {
+            if (ticket == mDoneBelow) {
+                mDoneBelow++;
+                while (mDone.remove(mDoneBelow))
+                    mDoneBelow++;
+                notifyAll();
+            }
+            else {
+                mDone.add(ticket);
+            }
+        }
+        mSlots.release();
+        // the lock might have been released by shutdown()
+        if (mWakeLock.isHeld())
+            mWakeLock.release();
+        return mSlots.availablePermits() == QUEUE_MAX_SIZE;
+    }
+
+    /**
+     * Waits for all messages received before the given ticket to be processed.
+     * Tasks are executed in ticket order by each worker, so this can't deadlock.
+     */
+    synchronized void awaitPrevious(long ticket) throws InterruptedException {
+        while (mDoneBelow < ticket)
+            wait();
+    }
+
+    void recordQueueWait(long nanos) {
+        mQueueWaitTime.addAndGet(nanos);
+        mQueueCount.incrementAndGet();
+        Metrics.histogram("receive.queue_us").record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    void recordDecrypt(long nanos) {
+        mDecryptTime.addAndGet(nanos);
+        mDecryptCount.incrementAndGet();
+        Metrics.histogram("receive.decrypt_us").record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /** Stops all workers. Queued messages are dropped. */
+    void shutdown() {
+        mWorkers.shutdown();
+        // dropped tasks will never release their wake lock
+        while (mWakeLock.isHeld())
+            mWakeLock.release();
+    }
+
+    /** Average queue wait and decrypt time, for diagnostics. */
+    @Override
+    public String toString() {
+        long queued = mQueueCount.get();
+        long decrypted = mDecryptCount.get();
+        return "workers=" + mWorkers.size() +
+            " messages=" + queued +
+            " wait=" + (queued > 0 ? mQueueWaitTime.get() / queued / 1000 : 0) + "us" +
+            " decrypted=" + decrypted +
+            " decrypt=" + (decrypted > 0 ? mDecryptTime.get() / decrypted / 1000 : 0) + "us";
+    }
+
+}
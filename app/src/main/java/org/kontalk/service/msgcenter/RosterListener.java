@@ -56,6 +56,8 @@ public class RosterListener implements RosterLoadedListener, org.jivesoftware.sm
         if (service == null)
             return;
 
+        service.recordSinceLogin("session.roster_ms");
+
         final Handler handler = service.mHandler;
         if (handler != null) {
             handler.post(new Runnable() {
@@ -0,0 +1,131 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kontalk.util.Metrics;
+
+
+/**
+ * Worker pool for outgoing messages. Tasks for the same conversation are
+ * always executed by the same worker, so stanzas are handed to the
+ * connection in order while different conversations are encrypted in
+ * parallel.
+ * @author Daniele Ricci
+ */
+class SendPipeline {
+
+    /** Pipeline stages for latency accounting. */
+    enum Stage {
+        /** Loading message and conversation data. */
+        LOAD,
+        /** Building and encrypting the stanza. */
+        ENCRYPT,
+        /** Handing the stanza to the connection. */
+        SEND,
+    }
+
+    private final OrderedExecutor mWorkers;
+
+    /** Messages submitted but not yet processed. */
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    private final AtomicLong[] mStageTime = new AtomicLong[Stage.values().length];
+    private final AtomicLong[] mStageCount = new AtomicLong[Stage.values().length];
+    private final Metrics.Histogram[] mStageHistograms = new Metrics.Histogram[Stage.values().length];
+
+    SendPipeline(int workers) {
+        mWorkers = new OrderedExecutor("SendPipeline", workers);
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            mStageTime[i] = new AtomicLong();
+            mStageCount[i] = new AtomicLong();
+            mStageHistograms[i] = Metrics.histogram("send." +
+                stage.name().toLowerCase(Locale.US) + "_us");
+        }
+    }
+
+    /**
+     * Queues a task for the given conversation.
+     * @param conversation the conversation key (peer JID)
+     * @param messageCount how many messages the task will send
+     */
+    void submit(String conversation, int messageCount, Runnable task) {
+        int depth = mQueueDepth.addAndGet(messageCount);
+        int max;
+        do {
+            max = mMaxQueueDepth.get();
+        } while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth));
+
+        mWorkers.execute(conversation, task);
+    }
+
+    /** Must be called by tasks for every message processed (or dropped). */
+    void done(int messageCount) {
+        mQueueDepth.addAndGet(-messageCount);
+    }
+
+    /** Records the latency of a stage, started at <code>startNanos</code>. */
+    void record(Stage stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        mStageTime[stage.ordinal()].addAndGet(elapsed);
+        mStageCount[stage.ordinal()].incrementAndGet();
+        mStageHistograms[stage.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+    }
+
+    int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /** Average latency of a stage in microseconds. */
+    long getAverageLatency(Stage stage) {
+        long count = mStageCount[stage.ordinal()].get();
+        return count > 0 ? mStageTime[stage.ordinal()].get() / count / 1000 : 0;
+    }
+
+    void shutdown() {
+        mWorkers.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("queue=")
+            .append(getQueueDepth())
+            .append(" max=")
+            .append(getMaxQueueDepth());
+        for (Stage stage : Stage.values()) {
+            out.append(' ')
+                .append(stage.name().toLowerCase(Locale.US))
+                .append('=')
+                .append(getAverageLatency(stage))
+                .append("us");
+        }
+        return out.toString();
+    }
+
+}
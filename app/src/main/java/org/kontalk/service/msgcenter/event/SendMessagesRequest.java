@@ -0,0 +1,39 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter.event;
+
+
+/**
+ * For requesting the message center to send a batch of messages from the
+ * outbox. All messages must belong to the same conversation and will be
+ * sent in the given order.
+ * @author Daniele Ricci
+ */
+public class SendMessagesRequest {
+
+    /** Peer of the conversation (user or group JID). */
+    public final String peer;
+    public final long[] databaseIds;
+
+    public SendMessagesRequest(String peer, long[] databaseIds) {
+        this.peer = peer;
+        this.databaseIds = databaseIds;
+    }
+
+}
@@ -93,6 +93,7 @@ import org.kontalk.Log;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.Account;
 import org.kontalk.client.EndpointServer;
+import org.kontalk.client.ServerList;
 import org.kontalk.client.SmackInitializer;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPUidMismatchException;
@@ -623,6 +624,10 @@ public class RegistrationService extends Service implements XMPPConnectionHelper
             }
         }
 
+        // we are in a background thread: pick the fastest server on cold start
+        if (request.serverProvider instanceof ServerList.ServerListProvider)
+            ((ServerList.ServerListProvider) request.serverProvider).probe();
+
         CurrentState cstate = updateState(State.CONNECTING, Workflow.REGISTRATION,
             request.serverProvider.next());
         cstate.serverProvider = request.serverProvider;
@@ -112,8 +112,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 MessageCenterService.hold(mContext, true);
                 // start sync
                 mSyncer = new Syncer(mContext);
+                // automatic syncs follow contact changes: match only changed contacts
                 mSyncer.performSync(mContext, account, authority,
-                    provider, usersProvider, syncResult);
+                    provider, usersProvider, !force, syncResult);
             }
             catch (OperationCanceledException e) {
                 Log.w(TAG, "sync canceled!", e);
@@ -20,9 +20,15 @@ package org.kontalk.sync;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
@@ -53,6 +59,11 @@ import org.kontalk.service.msgcenter.event.UnsubscribeRequest;
 
 /**
  * The sync procedure.
+ * Roster match requests are pipelined: a window of slices is kept in flight
+ * and slice size adapts to the measured round-trip time. Matched items are
+ * handed out slice by slice through {@link #takeMatched(long)}, while
+ * presence data, public keys and the blocklist are requested for the whole
+ * roster once all slices have been matched.
  * @author Daniele Ricci
  */
 public class SyncProcedure {
@@ -68,15 +79,37 @@ public class SyncProcedure {
 
     /** Max number of items in a roster match request. */
     private static final int MAX_ROSTER_MATCH_SIZE = 500;
+    /** Min number of items in a roster match request. */
+    private static final int MIN_ROSTER_MATCH_SIZE = 50;
+    /** Number of items in the first roster match request. */
+    private static final int INITIAL_ROSTER_MATCH_SIZE = 100;
+    /** Slices are shrunk if a roster match takes longer than this (ms). */
+    private static final long TARGET_ROSTER_MATCH_TIME = 2000;
 
+    /** Default number of roster match requests in flight. */
+    static final int DEFAULT_WINDOW = 3;
+
+    /** Marks the end of the matched items queue. */
+    private static final List<PresenceItem> END = Collections.emptyList();
+
+    /** Response items, in the order they were received. */
     private List<PresenceItem> mResponse;
+    /** Response items by JID, for lookup. */
+    private Map<BareJid, PresenceItem> mResponseIndex;
     private final WeakReference<Object> mNotifyTo;
 
     private final List<String> mJidList;
-    private int mRosterParts = -1;
-    private String[] mIqIds;
+    private final int mWindow;
+    /** Index of the first JID not yet sent for roster match. */
+    private int mRosterNext;
+    private int mRosterSliceSize = INITIAL_ROSTER_MATCH_SIZE;
+    /** Roster match requests in flight, with the time they were sent. */
+    private final Map<String, Long> mRosterRequests = new HashMap<>();
     private String mPresenceId;
 
+    /** Matched items, a list for every roster match response. */
+    private final BlockingQueue<List<PresenceItem>> mMatched = new LinkedBlockingQueue<>();
+
     private int mPresenceCount;
     private int mPubkeyCount;
     private int mRosterCount;
@@ -116,33 +149,52 @@ public class SyncProcedure {
     }
 
     SyncProcedure(List<String> jidList, Object notifyTo) {
+        this(jidList, notifyTo, DEFAULT_WINDOW);
+    }
+
+    /** @param window max number of roster match requests in flight */
+    SyncProcedure(List<String> jidList, Object notifyTo, int window) {
         mNotifyTo = new WeakReference<>(notifyTo);
         mJidList = jidList;
+        mWindow = Math.max(1, window);
     }
 
     @Subscribe(sticky = true, threadMode = ThreadMode.BACKGROUND)
     public synchronized void onConnected(ConnectedEvent event) {
         Object w = mNotifyTo.get();
         if (w != null) {
-            // request a roster match
-            mRosterParts = getRosterParts(mJidList);
-            mIqIds = new String[mRosterParts];
-            for (int i = 0; i < mRosterParts; i++) {
-                int end = (i+1)*MAX_ROSTER_MATCH_SIZE;
-                if (end >= mJidList.size())
-                    end = mJidList.size();
-                List<String> slice = mJidList.subList(i*MAX_ROSTER_MATCH_SIZE, end);
-
-                mIqIds[i] = StringUtils.randomString(6);
-
-                mServiceBus.post(new RosterMatchRequest(mIqIds[i], slice.toArray(new String[0])));
-            }
+            // (re)start roster match from the beginning
+            mRosterNext = 0;
+            mRosterRequests.clear();
+            requestRosterMatch();
+        }
+    }
+
+    /** Sends roster match requests until the window is full. */
+    private void requestRosterMatch() {
+        while (mRosterRequests.size() < mWindow && mRosterNext < mJidList.size()) {
+            int end = Math.min(mRosterNext + mRosterSliceSize, mJidList.size());
+            List<String> slice = mJidList.subList(mRosterNext, end);
+            mRosterNext = end;
+
+            String id = StringUtils.randomString(6);
+            mRosterRequests.put(id, System.currentTimeMillis());
+            mServiceBus.post(new RosterMatchRequest(id, slice.toArray(new String[0])));
         }
     }
 
+    /** Adapts the size of the next slices to the round-trip time of the last one. */
+    private void updateRosterSliceSize(long roundTrip) {
+        if (roundTrip > TARGET_ROSTER_MATCH_TIME)
+            mRosterSliceSize = Math.max(MIN_ROSTER_MATCH_SIZE, mRosterSliceSize / 2);
+        else if (roundTrip < TARGET_ROSTER_MATCH_TIME / 2)
+            mRosterSliceSize = Math.min(MAX_ROSTER_MATCH_SIZE, mRosterSliceSize * 2);
+    }
+
     @Subscribe(sticky = true, threadMode = ThreadMode.BACKGROUND)
     public synchronized void onDisconnected(DisconnectedEvent event) {
         mResponse = null;
+        mResponseIndex = null;
         finish();
     }
 
@@ -176,48 +228,52 @@ public class SyncProcedure {
     @Subscribe(threadMode = ThreadMode.BACKGROUND)
     public synchronized void onRosterMatch(RosterMatchEvent event) {
         // TODO handle errors
-        for (String iqId : mIqIds) {
-            if (iqId.equals(event.id)) {
-                // decrease roster parts counter
-                mRosterParts--;
-
-                if (event.jids != null) {
-                    mRosterCount += event.jids.length;
-                    if (mResponse == null) {
-                        // prepare list to be filled in with presence data
-                        mResponse = new ArrayList<>(mRosterCount);
-                    }
-                    for (Jid jid : event.jids) {
-                        PresenceItem p = new PresenceItem();
-                        p.from = jid.asBareJid();
-                        p.matched = true;
-                        mResponse.add(p);
-                    }
+        Long sent = mRosterRequests.remove(event.id);
+        if (sent == null)
+            return;
+
+        updateRosterSliceSize(System.currentTimeMillis() - sent);
+
+        if (event.jids != null) {
+            mRosterCount += event.jids.length;
+            if (mResponse == null) {
+                // prepare list to be filled in with presence data
+                mResponse = new ArrayList<>(mJidList.size());
+                mResponseIndex = createResponseIndex(mJidList.size() * 2);
+            }
+            List<PresenceItem> matched = new ArrayList<>(event.jids.length);
+            for (Jid jid : event.jids) {
+                PresenceItem item = getPresenceItem(jid.asBareJid());
+                if (!item.matched) {
+                    item.matched = true;
+                    matched.add(item);
                 }
+            }
+            if (matched.size() > 0)
+                mMatched.add(matched);
+        }
 
-                if (mRosterParts <= 0) {
-                    // all roster parts received
+        // keep the pipeline full
+        requestRosterMatch();
 
-                    if (mRosterCount == 0 && mNlocklistReceived) {
-                        // no roster elements
-                        finish();
-                    }
-                    else {
-                        Object w = mNotifyTo.get();
-                        if (w != null) {
-                            // request presence data for the whole roster
-                            mPresenceId = StringUtils.randomString(6);
-                            requestPresenceData(mPresenceId);
-                            // request public keys for the whole roster
-                            requestPublicKeys(IQ_KEYS_PACKET_ID);
-                            // request block list
-                            requestBlocklist(IQ_BLOCKLIST_PACKET_ID);
-                        }
-                    }
-                }
+        if (mRosterRequests.isEmpty() && mRosterNext >= mJidList.size()) {
+            // all roster parts received
 
-                // no need to continue
-                break;
+            if (mRosterCount == 0 && mNlocklistReceived) {
+                // no roster elements
+                finish();
+            }
+            else {
+                Object w = mNotifyTo.get();
+                if (w != null) {
+                    // request presence data for the whole roster
+                    mPresenceId = StringUtils.randomString(6);
+                    requestPresenceData(mPresenceId);
+                    // request public keys for the whole roster
+                    requestPublicKeys(IQ_KEYS_PACKET_ID);
+                    // request block list
+                    requestBlocklist(IQ_BLOCKLIST_PACKET_ID);
+                }
             }
         }
     }
@@ -227,16 +283,12 @@ public class SyncProcedure {
         if (IQ_BLOCKLIST_PACKET_ID.equals(event.id)) {
             mNlocklistReceived = true;
 
-            if (event.jids != null) {
+            if (event.jids != null && mResponseIndex != null) {
                 for (Jid jid : event.jids) {
                     // see if bare JID is present in roster response
-                    BareJid compare = jid.asBareJid();
-                    for (PresenceItem item : mResponse) {
-                        if (item.from.equals(compare)) {
-                            item.blocked = true;
-                            break;
-                        }
-                    }
+                    PresenceItem item = mResponseIndex.get(jid.asBareJid());
+                    if (item != null)
+                        item.blocked = true;
                 }
             }
 
@@ -271,15 +323,12 @@ public class SyncProcedure {
         if (mResponse != null) {
             if (IQ_KEYS_PACKET_ID.equals(event.id)) {
                 // see if bare JID is present in roster response
-                BareJid compare = event.jid.asBareJid();
-                for (PresenceItem item : mResponse) {
-                    if (item.from.equals(compare)) {
-                        item.publicKey = event.publicKey;
-
-                        // increment vcard count
-                        mPubkeyCount++;
-                        break;
-                    }
+                PresenceItem item = mResponseIndex.get(event.jid.asBareJid());
+                if (item != null) {
+                    item.publicKey = event.publicKey;
+
+                    // increment vcard count
+                    mPubkeyCount++;
                 }
 
                 // done with presence data and blocklist
@@ -289,25 +338,28 @@ public class SyncProcedure {
         }
     }
 
+    /** Creates the response lookup index. Overridden by tests to count lookups. */
+    Map<BareJid, PresenceItem> createResponseIndex(int capacity) {
+        return new HashMap<>(capacity);
+    }
+
     private void discardPresenceItem(BareJid jid) {
-        for (PresenceItem item : mResponse) {
-            if (item.from.equals(jid)) {
-                item.discarded = true;
-                return;
-            }
-        }
+        if (mResponseIndex == null)
+            return;
+        PresenceItem item = mResponseIndex.get(jid);
+        if (item != null)
+            item.discarded = true;
     }
 
     private PresenceItem getPresenceItem(BareJid jid) {
-        for (PresenceItem item : mResponse) {
-            if (item.from.equals(jid))
-                return item;
+        PresenceItem item = mResponseIndex.get(jid);
+        if (item == null) {
+            // add item if not found
+            item = new PresenceItem();
+            item.from = jid;
+            mResponse.add(item);
+            mResponseIndex.put(jid, item);
         }
-
-        // add item if not found
-        PresenceItem item = new PresenceItem();
-        item.from = jid;
-        mResponse.add(item);
         return item;
     }
 
@@ -331,15 +383,27 @@ public class SyncProcedure {
         mServiceBus.post(new UnsubscribeRequest(jid));
     }
 
-    private int getRosterParts(List<String> jidList) {
-        return (int) Math.ceil((double) jidList.size() / MAX_ROSTER_MATCH_SIZE);
-    }
-
     public List<PresenceItem> getResponse() {
         return (mRosterCount >= 0) ? mResponse : null;
     }
 
+    /**
+     * Waits for the items matched by the next roster match response.
+     * Items are returned only once.
+     * @return the matched items, an empty list if the procedure has finished
+     * or null if nothing was received within the timeout
+     */
+    List<PresenceItem> takeMatched(long timeout) throws InterruptedException {
+        List<PresenceItem> items = mMatched.poll(timeout, TimeUnit.MILLISECONDS);
+        if (items == END) {
+            // leave the marker for any further call
+            mMatched.add(END);
+        }
+        return items;
+    }
+
     private void finish() {
+        mMatched.add(END);
         Object w = mNotifyTo.get();
         if (w != null) {
             synchronized (w) {
@@ -19,11 +19,15 @@
 package org.kontalk.sync;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.greenrobot.eventbus.EventBus;
+import org.jxmpp.jid.BareJid;
 import org.jxmpp.util.XmppStringUtils;
 import org.spongycastle.openpgp.PGPPublicKey;
 
@@ -32,14 +36,17 @@ import android.accounts.OperationCanceledException;
 import android.annotation.TargetApi;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
@@ -69,6 +76,9 @@ public class Syncer {
     // max time to wait for network response
     private static final int MAX_WAIT_TIME = 60000;
 
+    /** Operations needed to insert a contact (raw contact and two data rows). */
+    private static final int OPERATIONS_PER_CONTACT = 3;
+
     /** {@link Data} column for the display name. */
     public static final String DATA_COLUMN_DISPLAY_NAME = Data.DATA1;
     /** {@link Data} column for the account name. */
@@ -104,24 +114,42 @@ public class Syncer {
         public final String number;
         public final String jid;
         public final String lookupKey;
+        public final String displayName;
 
-        public RawPhoneNumberEntry(String lookupKey, String number, String jid) {
+        public RawPhoneNumberEntry(String lookupKey, String number, String jid, String displayName) {
             this.lookupKey = lookupKey;
             this.number = number;
             this.jid = jid;
+            this.displayName = displayName;
+        }
+    }
+
+    /** A raw contact created by us during a previous sync. */
+    private static final class RawContactEntry {
+        public final long id;
+        public final String displayName;
+        public final String number;
+
+        public RawContactEntry(long id, String displayName, String number) {
+            this.id = id;
+            this.displayName = displayName;
+            this.number = number;
         }
     }
 
     /**
      * The actual sync procedure.
-     * This one uses the slowest method ever: it first checks for every phone
-     * number in all contacts and it sends them to the server. Once a response
-     * is received, it deletes all the raw contacts created by us and then
-     * recreates only the ones the server has found a match for.
+     * It first checks for every phone number in all contacts and it sends
+     * them to the server. As roster match responses are received, it compares
+     * the matches with the raw contacts created by us, deleting and creating
+     * only the ones that changed, and commits them to the users table. Status,
+     * public keys and blocklist are written once the whole roster is known.
+     * @param incremental true to match only contacts changed since the last
+     * sync, keeping everything else as it is
      */
     void performSync(Context context, Account account, String authority,
         ContentProviderClient provider, ContentProviderClient usersProvider,
-        SyncResult syncResult)
+        boolean incremental, SyncResult syncResult)
             throws OperationCanceledException {
 
         final Map<String, RawPhoneNumberEntry> lookupNumbers = new HashMap<>();
@@ -132,12 +160,18 @@ public class Syncer {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         // update users database
-        Uri uri = Users.CONTENT_URI.buildUpon()
-            .appendQueryParameter(Users.RESYNC, "true")
-            .build();
+        // JIDs to be matched, null for all of them
+        Set<String> changed = null;
+        Bundle extras = new Bundle();
+        extras.putBoolean(Users.EXTRA_INCREMENTAL, incremental);
         try {
-            int count = usersProvider.update(uri, new ContentValues(), null, null);
-            Log.d(TAG, "users database resynced (" + count + ")");
+            Bundle result = context.getContentResolver()
+                .call(Users.CONTENT_URI, Users.METHOD_RESYNC, null, extras);
+            String[] changedJids = result.getStringArray(Users.EXTRA_CHANGED);
+            if (changedJids != null)
+                changed = new HashSet<>(Arrays.asList(changedJids));
+            Log.d(TAG, "users database resynced (" + result.getInt(Users.EXTRA_COUNT) +
+                (changed != null ? ", " + changed.size() + " changed" : "") + ")");
         }
         catch (Exception e) {
             Log.e(TAG, "error resyncing users database - aborting sync", e);
@@ -149,7 +183,7 @@ public class Syncer {
         Cursor cursor;
         try {
             cursor = usersProvider.query(Users.CONTENT_URI_OFFLINE,
-                new String[] { Users.JID, Users.NUMBER, Users.LOOKUP_KEY },
+                new String[] { Users.JID, Users.NUMBER, Users.LOOKUP_KEY, Users.DISPLAY_NAME },
                 null, null, null);
         }
         catch (Exception e) {
@@ -167,10 +201,12 @@ public class Syncer {
             String jid = cursor.getString(0);
             String number = cursor.getString(1);
             String lookupKey = cursor.getString(2);
+            String displayName = cursor.getString(3);
 
             // avoid to send duplicates to the server
             if (lookupNumbers.put(XmppStringUtils.parseLocalpart(jid),
-                    new RawPhoneNumberEntry(lookupKey, number, jid)) == null)
+                    new RawPhoneNumberEntry(lookupKey, number, jid, displayName)) == null &&
+                    (changed == null || changed.contains(jid)))
                 jidList.add(jid);
         }
         cursor.close();
@@ -178,7 +214,7 @@ public class Syncer {
         if (mCanceled) throw new OperationCanceledException();
 
         // empty contacts :-|
-        if (jidList.size() == 0) {
+        if (lookupNumbers.isEmpty()) {
             // delete all Kontalk raw contacts
             try {
                 syncResult.stats.numDeletes += deleteAll(account, provider);
@@ -198,55 +234,95 @@ public class Syncer {
             commit(usersProvider, syncResult);
         }
 
+        // no changed contacts: just drop raw contacts of deleted ones
+        else if (jidList.isEmpty()) {
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            try {
+                Map<String, RawContactEntry> rawContacts = queryRawContacts(account, provider, operations);
+                deleteStaleContacts(account, rawContacts, lookupNumbers, changed, operations);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "contact query error", e);
+                syncResult.databaseError = true;
+                return;
+            }
+            applyOperations(provider, operations, 0, syncResult);
+
+            commit(usersProvider, syncResult);
+        }
+
         else {
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+            // raw contacts from the last sync - unchanged ones will be kept
+            Map<String, RawContactEntry> rawContacts;
+            try {
+                rawContacts = queryRawContacts(account, provider, operations);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "contact query error", e);
+                syncResult.databaseError = true;
+                return;
+            }
+            try {
+                syncResult.stats.numDeletes += deleteProfile(account, provider);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "profile delete error", e);
+                syncResult.databaseError = true;
+            }
+
             // register to events
             // registering will request current connection status and proceed
             SyncProcedure receiver = new SyncProcedure(jidList, this);
             mServiceBus.register(receiver);
 
-            // wait for the service to complete its job
-            synchronized (this) {
-                // wait for connection
-                try {
-                    wait(MAX_WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    // simulate canceled operation
-                    mCanceled = true;
+            // users already written by a roster match slice
+            Set<BareJid> committed = new HashSet<>();
+            try {
+                // commit roster match results as they arrive
+                long deadline = SystemClock.elapsedRealtime() + MAX_WAIT_TIME;
+                while (!mCanceled) {
+                    long timeout = deadline - SystemClock.elapsedRealtime();
+                    List<SyncProcedure.PresenceItem> matched = timeout > 0 ?
+                        receiver.takeMatched(timeout) : null;
+                    if (matched == null || matched.isEmpty()) {
+                        // timed out or sync procedure finished
+                        break;
+                    }
+
+                    int inserts = syncContacts(account, matched, lookupNumbers, rawContacts,
+                        operations, usersProvider, syncResult);
+                    applyOperations(provider, operations, inserts, syncResult);
+                    commit(usersProvider, matched);
+
+                    for (SyncProcedure.PresenceItem entry : matched)
+                        committed.add(entry.from);
                 }
             }
-
-            mServiceBus.unregister(receiver);
+            catch (InterruptedException e) {
+                // simulate canceled operation
+                mCanceled = true;
+            }
+            finally {
+                mServiceBus.unregister(receiver);
+            }
 
             // last chance to quit
             if (mCanceled) throw new OperationCanceledException();
 
             List<SyncProcedure.PresenceItem> res = receiver.getResponse();
             if (res != null) {
-                ArrayList<ContentProviderOperation> operations =
-                    new ArrayList<>();
-                // TODO operations.size() could be used instead (?)
-                int op = 0;
-
-                // this is the time - delete all Kontalk raw contacts
-                try {
-                    syncResult.stats.numDeletes += deleteAll(account, provider);
-                }
-                catch (Exception e) {
-                    Log.e(TAG, "contact delete error", e);
-                    syncResult.databaseError = true;
-                    return;
-                }
-                try {
-                    syncResult.stats.numDeletes += deleteProfile(account, provider);
-                }
-                catch (Exception e) {
-                    Log.e(TAG, "profile delete error", e);
-                    syncResult.databaseError = true;
+                // entries not matched by roster match (e.g. from roster presence)
+                List<SyncProcedure.PresenceItem> pending = new ArrayList<>();
+                for (SyncProcedure.PresenceItem entry : res) {
+                    if (!entry.discarded && !committed.contains(entry.from))
+                        pending.add(entry);
                 }
+                int inserts = syncContacts(account, pending, lookupNumbers, rawContacts,
+                    operations, usersProvider, syncResult);
 
                 ContentValues registeredValues = new ContentValues();
-                registeredValues.put(Users.REGISTERED, 1);
                 for (int i = 0; i < res.size(); i++) {
                     SyncProcedure.PresenceItem entry = res.get(i);
                     if (entry.discarded)
@@ -254,15 +330,6 @@ public class Syncer {
 
                     final RawPhoneNumberEntry data = lookupNumbers
                         .get(entry.from.getLocalpartOrThrow().toString());
-                    if (data != null && data.lookupKey != null) {
-                        // add contact
-                        addContact(account,
-                                getDisplayName(provider, data.lookupKey, data.number),
-                                data.number, data.jid, operations, op++);
-                    }
-                    else {
-                        syncResult.stats.numSkippedEntries++;
-                    }
 
                     // update fields
                     try {
@@ -308,24 +375,10 @@ public class Syncer {
 
                         // blocked status
                         registeredValues.put(Users.BLOCKED, entry.blocked);
-                        // user JID as reported by the server
-                        registeredValues.put(Users.JID, entry.from.toString());
-
-                        /*
-                         * Since UsersProvider.resync inserted the user row
-                         * using our server name, it might have changed because
-                         * of what the server reported. We already put into the
-                         * values the new JID, but we need to use the old one
-                         * in the where condition so we will have a match.
-                         */
-                        String origJid;
-                        if (data != null)
-                            origJid = XMPPUtils.createLocalJID(mContext,
-                                XmppStringUtils.parseLocalpart(entry.from.toString()));
-                        else
-                            origJid = entry.from.toString();
+
+                        // user row has the JID reported by the server by now (see syncContacts)
                         usersProvider.update(Users.CONTENT_URI_OFFLINE, registeredValues,
-                            Users.JID + " = ?", new String[] { origJid });
+                            Users.JID + " = ?", new String[] { entry.from.toString() });
 
                         // clear data
                         registeredValues.remove(Users.DISPLAY_NAME);
@@ -337,7 +390,8 @@ public class Syncer {
                                 // add contact
                                 addProfile(account,
                                     Authenticator.getDefaultDisplayName(mContext),
-                                    data.number, data.jid, operations, op++);
+                                    data.number, data.jid, operations);
+                                inserts++;
                             }
                         }
                     }
@@ -347,22 +401,9 @@ public class Syncer {
                     }
                 }
 
-                try {
-                    if (operations.size() > 0)
-                        provider.applyBatch(operations);
-                    syncResult.stats.numInserts += op;
-                    syncResult.stats.numEntries += op;
-                }
-                catch (Exception e) {
-                    Log.w(TAG, "contact write error", e);
-                    syncResult.stats.numSkippedEntries += op;
-                    /*
-                     * We do not consider system contacts failure a fatal error.
-                     * This is actually a workaround for systems with disabled permissions or
-                     * exotic firmwares. It can also protect against security 3rd party apps or
-                     * non-Android platforms, such as Jolla/Alien Dalvik.
-                     */
-                }
+                deleteStaleContacts(account, rawContacts, lookupNumbers, changed, operations);
+
+                applyOperations(provider, operations, inserts, syncResult);
 
                 commit(usersProvider, syncResult);
             }
@@ -376,6 +417,137 @@ public class Syncer {
         }
     }
 
+    /**
+     * Marks the given entries as registered in the offline users table and
+     * adds operations for creating or updating their raw contacts.
+     * Raw contacts found are removed from <code>rawContacts</code>.
+     * @return the number of raw contacts to be inserted
+     */
+    private int syncContacts(Account account, List<SyncProcedure.PresenceItem> entries,
+            Map<String, RawPhoneNumberEntry> lookupNumbers, Map<String, RawContactEntry> rawContacts,
+            List<ContentProviderOperation> operations, ContentProviderClient usersProvider,
+            SyncResult syncResult) {
+        int inserts = 0;
+
+        ContentValues registeredValues = new ContentValues();
+        registeredValues.put(Users.REGISTERED, 1);
+        for (SyncProcedure.PresenceItem entry : entries) {
+            final RawPhoneNumberEntry data = lookupNumbers
+                .get(entry.from.getLocalpartOrThrow().toString());
+            if (data != null && data.lookupKey != null) {
+                String displayName = data.displayName != null ?
+                    data.displayName : data.number;
+                RawContactEntry rawContact = rawContacts.remove(data.jid);
+                if (rawContact == null || !displayName.equals(rawContact.displayName) ||
+                        !data.number.equals(rawContact.number)) {
+                    if (rawContact != null)
+                        deleteContact(account, rawContact.id, operations);
+                    // add contact
+                    addContact(account, displayName,
+                        data.number, data.jid, operations);
+                    inserts++;
+                }
+            }
+            else {
+                syncResult.stats.numSkippedEntries++;
+            }
+
+            try {
+                // user JID as reported by the server
+                registeredValues.put(Users.JID, entry.from.toString());
+
+                /*
+                 * Since UsersProvider.resync inserted the user row
+                 * using our server name, it might have changed because
+                 * of what the server reported. We already put into the
+                 * values the new JID, but we need to use the old one
+                 * in the where condition so we will have a match.
+                 */
+                String origJid;
+                if (data != null)
+                    origJid = XMPPUtils.createLocalJID(mContext,
+                        XmppStringUtils.parseLocalpart(entry.from.toString()));
+                else
+                    origJid = entry.from.toString();
+                usersProvider.update(Users.CONTENT_URI_OFFLINE, registeredValues,
+                    Users.JID + " = ?", new String[] { origJid });
+            }
+            catch (Exception e) {
+                Log.e(TAG, "error updating users database", e);
+                // we shall continue here...
+            }
+        }
+
+        return inserts;
+    }
+
+    /**
+     * Adds operations for deleting raw contacts not matched anymore. If only
+     * changed contacts were matched, raw contacts of the other users are kept
+     * if they still are in the users table.
+     */
+    private void deleteStaleContacts(Account account, Map<String, RawContactEntry> rawContacts,
+            Map<String, RawPhoneNumberEntry> lookupNumbers, Set<String> changed,
+            List<ContentProviderOperation> operations) {
+        for (Map.Entry<String, RawContactEntry> e : rawContacts.entrySet()) {
+            String jid = e.getKey();
+            if (changed == null || changed.contains(jid) ||
+                    !lookupNumbers.containsKey(XmppStringUtils.parseLocalpart(jid)))
+                deleteContact(account, e.getValue().id, operations);
+        }
+    }
+
+    /** Applies and clears the given contact operations. */
+    private void applyOperations(ContentProviderClient provider,
+            ArrayList<ContentProviderOperation> operations, int inserts, SyncResult syncResult) {
+        int deletes = operations.size() - inserts * OPERATIONS_PER_CONTACT;
+        try {
+            if (operations.size() > 0)
+                provider.applyBatch(operations);
+            syncResult.stats.numDeletes += deletes;
+            syncResult.stats.numInserts += inserts;
+            syncResult.stats.numEntries += inserts;
+        }
+        catch (Exception e) {
+            Log.w(TAG, "contact write error", e);
+            syncResult.stats.numSkippedEntries += inserts;
+            /*
+             * We do not consider system contacts failure a fatal error.
+             * This is actually a workaround for systems with disabled permissions or
+             * exotic firmwares. It can also protect against security 3rd party apps or
+             * non-Android platforms, such as Jolla/Alien Dalvik.
+             */
+        }
+        operations.clear();
+    }
+
+    /**
+     * Commits the given entries to the online users table, so they become
+     * visible before the sync completes.
+     */
+    private void commit(ContentProviderClient usersProvider, List<SyncProcedure.PresenceItem> entries) {
+        StringBuilder where = new StringBuilder(Users.JID + " IN (");
+        String[] args = new String[entries.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = entries.get(i).from.toString();
+            where.append(i > 0 ? ",?" : "?");
+        }
+        where.append(')');
+
+        Uri uri = Users.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Users.RESYNC, "true")
+            .appendQueryParameter(Users.COMMIT, "true")
+            .build();
+        try {
+            int count = usersProvider.update(uri, null, where.toString(), args);
+            Log.v(TAG, count + " users committed");
+            Contact.invalidate(Arrays.asList(args));
+        }
+        catch (Exception e) {
+            Log.w(TAG, "error committing users", e);
+        }
+    }
+
     private void commit(ContentProviderClient usersProvider, SyncResult syncResult) {
         // commit users table
         Uri uri = Users.CONTENT_URI.buildUpon()
@@ -393,31 +565,39 @@ public class Syncer {
         }
     }
 
-    private String getDisplayName(ContentProviderClient client, String lookupKey, String defaultValue) {
-        String displayName = null;
-        Cursor nameQuery = null;
+    /**
+     * Returns the raw contacts created by us, by JID. Raw contacts deleted
+     * by the user and duplicates are added to the operations for removal.
+     */
+    private Map<String, RawContactEntry> queryRawContacts(Account account,
+            ContentProviderClient provider, List<ContentProviderOperation> operations)
+            throws RemoteException {
+        Map<String, RawContactEntry> entries = new HashMap<>();
+        Cursor c = provider.query(RawContacts.CONTENT_URI, new String[] {
+                RawContacts._ID,
+                RAW_COLUMN_USERID,
+                RAW_COLUMN_DISPLAY_NAME,
+                RAW_COLUMN_PHONE,
+                RawContacts.DELETED,
+            }, RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?",
+            new String[] { account.name, account.type }, null);
+        if (c == null)
+            throw new RemoteException();
+
         try {
-            nameQuery = client.query(
-                    Uri.withAppendedPath(ContactsContract.Contacts
-                            .CONTENT_LOOKUP_URI, lookupKey),
-                            new String[] { ContactsContract.Contacts.DISPLAY_NAME },
-                            null, null, null);
-            if (nameQuery.moveToFirst())
-                displayName = nameQuery.getString(0);
-        }
-        catch (Exception e) {
-            // ignored
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                String jid = c.getString(1);
+                if (jid == null || c.getInt(4) != 0 || entries.containsKey(jid))
+                    deleteContact(account, id, operations);
+                else
+                    entries.put(jid, new RawContactEntry(id, c.getString(2), c.getString(3)));
+            }
         }
         finally {
-            // close cursor
-            try {
-                nameQuery.close();
-            }
-            catch (Exception ignored) {
-            }
+            c.close();
         }
-
-        return (displayName != null) ? displayName : defaultValue;
+        return entries;
     }
 
     private int deleteAll(Account account, ContentProviderClient provider)
@@ -439,36 +619,27 @@ public class Syncer {
             .build(), null, null);
     }
 
-    /*
-    private int deleteContact(Account account, long rawContactId) {
-        Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId)
+    private void deleteContact(Account account, long rawContactId,
+            List<ContentProviderOperation> operations) {
+        operations.add(ContentProviderOperation.newDelete(ContentUris
+            .withAppendedId(RawContacts.CONTENT_URI, rawContactId)
             .buildUpon()
             .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
             .appendQueryParameter(RawContacts.ACCOUNT_NAME, account.name)
             .appendQueryParameter(RawContacts.ACCOUNT_TYPE, account.type)
-            .build();
-        ContentProviderClient client = mContext.getContentResolver().acquireContentProviderClient(ContactsContract.AUTHORITY_URI);
-        try {
-            return client.delete(uri, null, null);
-        }
-        catch (RemoteException e) {
-            Log.e(TAG, "delete error", e);
-        }
-        finally {
-            client.release();
-        }
-
-        return -1;
+            .build())
+            .withYieldAllowed(true)
+            .build());
     }
-    */
 
     private void addContact(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
+            List<ContentProviderOperation> operations) {
         if (Log.isDebug()) {
             Log.d(TAG, "adding contact \"" + username + "\" <" + phone + ">");
         }
 
         // create our RawContact
+        int index = operations.size();
         operations.add(insertRawContact(account, username, phone, jid,
             RawContacts.CONTENT_URI).build());
 
@@ -478,12 +649,13 @@ public class Syncer {
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     private void addProfile(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
+            List<ContentProviderOperation> operations) {
         if (Log.isDebug()) {
             Log.d(TAG, "adding profile \"" + username + "\" <" + phone + ">");
         }
 
         // create our RawContact
+        int index = operations.size();
         operations.add(insertRawContact(account, username, phone, jid,
             ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI).build());
 
@@ -501,9 +673,9 @@ public class Syncer {
             .withValue(RAW_COLUMN_USERID, jid);
     }
 
-    private void addContactData(String username, String phone, List<ContentProviderOperation> operations, int index) {
+    /** @param opIndex index of the raw contact insert operation */
+    private void addContactData(String username, String phone, List<ContentProviderOperation> operations, int opIndex) {
         ContentProviderOperation.Builder builder;
-        final int opIndex = index * 3;
 
         // create a Data record of common type 'StructuredName' for our RawContact
         builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
@@ -20,6 +20,9 @@ package org.kontalk.ui.adapter;
 
 import com.android.contacts.common.list.ContactsSectionIndexer;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Bundle;
@@ -45,7 +48,12 @@ import org.kontalk.ui.view.ContactsListItem;
 public class ContactsListAdapter extends SearchablePinnedHeaderCursorListViewAdapter {
     private static final String TAG = ContactsListActivity.TAG;
 
+    /** Number of rows after the bound one whose avatars are loaded in advance. */
+    private static final int AVATAR_PREFETCH_ROWS = 20;
+
     private final LayoutInflater mFactory;
+    /** Rows before this position have already been prefetched. */
+    private int mPrefetchedUntil;
     private OnContentChangedListener mOnContentChangedListener;
 
     public ContactsListAdapter(Context context, ListView list) {
@@ -99,6 +107,26 @@ public class ContactsListAdapter extends SearchablePinnedHeaderCursorListViewAda
         ContactsListItem headerView = (ContactsListItem) view;
         Contact contact = Contact.fromUsersCursor(context, cursor);
         headerView.bind(context, contact);
+
+        prefetchAvatars(context, cursor);
+    }
+
+    /** Queues the avatars of the rows following the current one. */
+    private void prefetchAvatars(Context context, Cursor cursor) {
+        int position = cursor.getPosition();
+        int start = Math.max(position + 1, mPrefetchedUntil);
+        int end = Math.min(position + 1 + AVATAR_PREFETCH_ROWS, cursor.getCount());
+        // prefetch in chunks, not on every bound row
+        if (end - start < AVATAR_PREFETCH_ROWS / 2)
+            return;
+
+        List<Contact> contacts = new ArrayList<>(end - start);
+        for (int i = start; i < end && cursor.moveToPosition(i); i++)
+            contacts.add(Contact.fromUsersCursor(context, cursor));
+        cursor.moveToPosition(position);
+
+        mPrefetchedUntil = end;
+        Contact.prefetchAvatars(context, contacts);
     }
 
     @Override
@@ -114,6 +142,7 @@ public class ContactsListAdapter extends SearchablePinnedHeaderCursorListViewAda
     @Override
     public void changeCursor(Cursor cursor) {
         super.changeCursor(cursor);
+        mPrefetchedUntil = 0;
         // create indexer
         updateIndexer(cursor);
     }
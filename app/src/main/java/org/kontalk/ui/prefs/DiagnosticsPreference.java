@@ -0,0 +1,71 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.prefs;
+
+import com.afollestad.materialdialogs.MaterialDialog;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.preference.Preference;
+import android.util.AttributeSet;
+
+import org.kontalk.R;
+import org.kontalk.util.Metrics;
+
+
+/**
+ * Preference for showing collected performance metrics.
+ * @author Daniele Ricci
+ */
+public class DiagnosticsPreference extends Preference {
+
+    public DiagnosticsPreference(Context context) {
+        super(context);
+    }
+
+    public DiagnosticsPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public DiagnosticsPreference(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public DiagnosticsPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    @Override
+    protected void onClick() {
+        super.onClick();
+        showDiagnostics(getContext());
+    }
+
+    private void showDiagnostics(Context context) {
+        String dump = Metrics.dump();
+        new MaterialDialog.Builder(context)
+            .title(R.string.pref_diagnostics)
+            .content(dump.length() > 0 ? dump : context.getString(R.string.diagnostics_empty))
+            .positiveText(android.R.string.ok)
+            .show();
+    }
+
+}
@@ -19,6 +19,9 @@
 package org.kontalk.ui.prefs;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -28,9 +31,12 @@ import android.os.Build;
 import android.preference.Preference;
 import android.util.AttributeSet;
 
+import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.Metrics;
+import org.kontalk.util.SystemUtils;
 
 
 /**
@@ -63,8 +69,10 @@ public class SendDebugLogPreference extends Preference {
     }
 
     private void sendDebugLog(Context context) {
-        File file = Log.getLogFile();
+        File file = Log.exportLogFile();
         if (file != null && file.isFile()) {
+            appendMetrics(file);
+
             Intent i = new Intent(Intent.ACTION_SEND);
             i.setType("text/plain");
             i.putExtra(Intent.EXTRA_EMAIL, new String[] { context.getString(R.string.mailto) });
@@ -76,4 +84,20 @@ public class SendDebugLogPreference extends Preference {
         }
     }
 
+    /** Appends a dump of collected metrics to the exported log. */
+    private void appendMetrics(File file) {
+        Writer out = null;
+        try {
+            out = new FileWriter(file, true);
+            out.write("\n--- metrics ---\n");
+            out.write(Metrics.dump());
+        }
+        catch (IOException e) {
+            Log.w(Kontalk.TAG, "unable to write metrics to log file", e);
+        }
+        finally {
+            SystemUtils.closeStream(out);
+        }
+    }
+
 }
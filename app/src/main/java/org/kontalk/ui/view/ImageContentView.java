@@ -19,9 +19,7 @@
 package org.kontalk.ui.view;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.regex.Pattern;
 
@@ -42,6 +40,7 @@ import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.ImageComponent;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.ThumbnailCache;
 
 
 /**
@@ -105,10 +104,8 @@ public class ImageContentView extends FrameLayout
     }
 
     Bitmap loadPreview(File previewFile) throws IOException {
-        InputStream in = new FileInputStream(previewFile);
-        Bitmap bitmap = MediaStorage.loadBitmapSimple(in);
-        in.close();
-        return bitmap;
+        // decoded previews are shared through the thumbnail cache
+        return ThumbnailCache.getInstance(getContext()).getBitmap(previewFile);
     }
 
     private Bitmap getBitmap() {
@@ -0,0 +1,259 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Writes lines to a {@link RotatingFileWriter} from a background thread.
+ * Callers only enqueue lines into a bounded lock-free ring buffer and never
+ * block; when the buffer is full, lines are dropped according to the
+ * configured {@link OverflowPolicy}.
+ * @author Daniele Ricci
+ */
+public class AsyncLogWriter implements Closeable {
+
+    /** What to do when the buffer is full. */
+    public enum OverflowPolicy {
+        /** Overwrite the oldest lines not yet written. */
+        DROP_OLDEST,
+        /** Discard the line being enqueued. */
+        DROP_NEWEST,
+    }
+
+    /** Max number of lines written before flushing. */
+    private static final int BATCH_SIZE = 256;
+    /** Max time the writer thread will sleep without checking the buffer. */
+    private static final long IDLE_WAIT = TimeUnit.SECONDS.toNanos(1);
+    /** Max time the writer thread will wait for a line being published. */
+    private static final long PUBLISH_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RotatingFileWriter mWriter;
+    private final Ring mRing;
+    private final Thread mThread;
+
+    private volatile boolean mRunning = true;
+    private volatile boolean mSleeping;
+    private volatile IOException mError;
+
+    public AsyncLogWriter(RotatingFileWriter writer, int capacity, OverflowPolicy policy) {
+        mWriter = writer;
+        mRing = new Ring(capacity, policy);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "AsyncLogWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Enqueues a line for writing. Never blocks.
+     * @return false if the line was dropped or the writer is closed
+     */
+    public boolean println(String line) {
+        if (!mRunning || !mRing.offer(line))
+            return false;
+
+        if (mSleeping)
+            LockSupport.unpark(mThread);
+        return true;
+    }
+
+    /** Number of lines dropped because the buffer was full. */
+    public long getDroppedCount() {
+        return mRing.getDroppedCount();
+    }
+
+    /** Returns the last write error, if the writer stopped because of it. */
+    public IOException getError() {
+        return mError;
+    }
+
+    private void writeLoop() {
+        String[] batch = new String[BATCH_SIZE];
+        long reportedDrops = 0;
+        try {
+            while (true) {
+                int count = mRing.drain(batch);
+                if (count > 0) {
+                    long drops = mRing.getDroppedCount();
+                    if (drops > reportedDrops) {
+                        mWriter.println("--- " + (drops - reportedDrops) + " log lines dropped ---");
+                        reportedDrops = drops;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        mWriter.println(batch[i]);
+                        batch[i] = null;
+                    }
+                    mWriter.flush();
+                }
+                else if (mRunning) {
+                    mSleeping = true;
+                    // check again to avoid missing a wakeup
+                    // a non-empty buffer means a line is being published:
+                    // its producer will wake us up, the short timeout covers
+                    // the case it checked before we went to sleep
+                    LockSupport.parkNanos(this, mRing.isEmpty() ? IDLE_WAIT : PUBLISH_WAIT);
+                    mSleeping = false;
+                }
+                else {
+                    // closed and drained
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            mError = e;
+            mRunning = false;
+        }
+    }
+
+    private void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Writes all pending lines and closes the file. */
+    @Override
+    public void close() throws IOException {
+        stop();
+        mWriter.close();
+    }
+
+    /** Discards pending lines and deletes the file. */
+    public void abort() throws IOException {
+        stop();
+        mWriter.abort();
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring buffer. Every slot holds
+     * the sequence number it was written for, so the consumer can tell an
+     * unpublished slot from an overwritten one.
+     */
+    static final class Ring {
+        private final AtomicReferenceArray<Entry> mSlots;
+        private final int mMask;
+        private final OverflowPolicy mPolicy;
+
+        /** Next sequence to be claimed by producers. */
+        private final AtomicLong mHead = new AtomicLong();
+        /** Next sequence to be read by the consumer. */
+        private final AtomicLong mTail = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+
+        private static final class Entry {
+            final long seq;
+            final String line;
+
+            Entry(long seq, String line) {
+                this.seq = seq;
+                this.line = line;
+            }
+        }
+
+        Ring(int capacity, OverflowPolicy policy) {
+            // round up to a power of two
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            mSlots = new AtomicReferenceArray<>(size);
+            mMask = size - 1;
+            mPolicy = policy;
+        }
+
+        int capacity() {
+            return mMask + 1;
+        }
+
+        boolean offer(String line) {
+            long seq;
+            if (mPolicy == OverflowPolicy.DROP_NEWEST) {
+                do {
+                    seq = mHead.get();
+                    if (seq - mTail.get() >= capacity()) {
+                        mDropped.incrementAndGet();
+                        return false;
+                    }
+                } while (!mHead.compareAndSet(seq, seq + 1));
+            }
+            else {
+                // the consumer will notice overwritten slots
+                seq = mHead.getAndIncrement();
+            }
+
+            mSlots.set((int) seq & mMask, new Entry(seq, line));
+            return true;
+        }
+
+        boolean isEmpty() {
+            return mTail.get() >= mHead.get();
+        }
+
+        /** Must be called by the consumer thread only. */
+        int drain(String[] out) {
+            long tail = mTail.get();
+            long head = mHead.get();
+
+            // producers lapped us: skip overwritten lines
+            if (head - tail > capacity()) {
+                mDropped.addAndGet(head - capacity() - tail);
+                tail = head - capacity();
+            }
+
+            int count = 0;
+            while (count < out.length && tail < head) {
+                Entry entry = mSlots.get((int) tail & mMask);
+                if (entry == null || entry.seq < tail) {
+                    // claimed but not published yet
+                    break;
+                }
+                else if (entry.seq > tail) {
+                    // overwritten while we were reading
+                    mDropped.incrementAndGet();
+                }
+                else {
+                    out[count++] = entry.line;
+                }
+                tail++;
+            }
+
+            mTail.set(tail);
+            return count;
+        }
+
+        long getDroppedCount() {
+            return mDropped.get();
+        }
+    }
+
+}
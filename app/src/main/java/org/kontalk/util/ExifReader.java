@@ -0,0 +1,188 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Minimal JPEG EXIF reader. Only the segments before the image data are
+ * read, so the orientation of a large picture can be found without reading
+ * (or copying) the whole file.
+ * @author Daniele Ricci
+ */
+public class ExifReader {
+
+    /** Orientation tag not found (same value as ExifInterface). */
+    public static final int ORIENTATION_UNDEFINED = 0;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_TEM = 0x01;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    private ExifReader() {}
+
+    /**
+     * Reads the EXIF orientation of a JPEG image. The stream is read up to
+     * the first EXIF segment or the start of the image data.
+     * @return one of the ExifInterface orientation constants, or
+     * {@link #ORIENTATION_UNDEFINED} if not available (e.g. not a JPEG)
+     */
+    public static int getOrientation(InputStream in) throws IOException {
+        if (in.read() != 0xFF || in.read() != MARKER_SOI)
+            return ORIENTATION_UNDEFINED;
+
+        while (true) {
+            int b = in.read();
+            if (b < 0)
+                return ORIENTATION_UNDEFINED;
+            if (b != 0xFF)
+                // not a marker, corrupted file
+                return ORIENTATION_UNDEFINED;
+
+            // skip fill bytes
+            int marker;
+            do {
+                marker = in.read();
+            } while (marker == 0xFF);
+            if (marker < 0 || marker == MARKER_SOS || marker == MARKER_EOI)
+                return ORIENTATION_UNDEFINED;
+
+            // standalone markers
+            if (marker == MARKER_TEM || (marker >= MARKER_RST0 && marker <= MARKER_RST7))
+                continue;
+
+            int length = readUnsignedShort(in) - 2;
+            if (length < 0)
+                return ORIENTATION_UNDEFINED;
+
+            if (marker == MARKER_APP1 && length >= EXIF_HEADER.length) {
+                byte[] segment = new byte[length];
+                readFully(in, segment);
+                if (startsWith(segment, EXIF_HEADER)) {
+                    return parseOrientation(segment, EXIF_HEADER.length);
+                }
+                // XMP or other APP1 data
+            }
+            else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    /** Looks for the orientation tag in IFD0 of the TIFF data at the given offset. */
+    private static int parseOrientation(byte[] data, int tiff) {
+        if (data.length < tiff + 8)
+            return ORIENTATION_UNDEFINED;
+
+        boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I')
+            littleEndian = true;
+        else if (data[tiff] == 'M' && data[tiff + 1] == 'M')
+            littleEndian = false;
+        else
+            return ORIENTATION_UNDEFINED;
+
+        if (getShort(data, tiff + 2, littleEndian) != 42)
+            return ORIENTATION_UNDEFINED;
+
+        long ifd = tiff + getInt(data, tiff + 4, littleEndian);
+        if (ifd < tiff + 8 || ifd + 2 > data.length)
+            return ORIENTATION_UNDEFINED;
+
+        int count = getShort(data, (int) ifd, littleEndian);
+        int entry = (int) ifd + 2;
+        for (int i = 0; i < count && entry + 12 <= data.length; i++, entry += 12) {
+            if (getShort(data, entry, littleEndian) == TAG_ORIENTATION) {
+                if (getShort(data, entry + 2, littleEndian) != TYPE_SHORT)
+                    return ORIENTATION_UNDEFINED;
+                // a single short fits in the value field
+                return getShort(data, entry + 8, littleEndian);
+            }
+        }
+
+        return ORIENTATION_UNDEFINED;
+    }
+
+    private static int getShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long getInt(byte[] data, int offset, boolean littleEndian) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = data[offset + (littleEndian ? 3 - i : i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(InputStream in) throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        if ((b0 | b1) < 0)
+            throw new EOFException();
+        return (b0 << 8) | b1;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip() might not be able to tell the end of the stream
+                if (in.read() < 0)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.kontalk.Kontalk;
+import org.kontalk.Log;
+
+
+/**
+ * Image resizing pipeline. The image is subsampled while decoding and then
+ * scaled and rotated in a single pass, so at most two bitmaps (the
+ * subsampled image and the output) are allocated, none of them full size.
+ * An instance can be used for a batch of images: the decoding bitmap is
+ * reused between images when possible. Not thread safe.
+ * @author Daniele Ricci
+ */
+public class ImageResizer {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Bitmap of the last decoded image, available for reuse. */
+    private Bitmap mReusable;
+
+    /** Resizes an image keeping its aspect ratio and compresses it to a stream. */
+    public void resize(Context context, Uri uri, int maxWidth, int maxHeight,
+            Bitmap.CompressFormat format, int quality, OutputStream output)
+            throws IOException {
+
+        long startTime = SystemClock.elapsedRealtime();
+        ContentResolver cr = context.getContentResolver();
+
+        // step 1: decode bounds
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = cr.openInputStream(uri);
+        if (in == null)
+            throw new IOException("unable to open " + uri);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+
+        int photoW = options.outWidth;
+        int photoH = options.outHeight;
+        if (photoW <= 0 || photoH <= 0) {
+            return;
+        }
+        float scaleFactor = Math.max((float) photoW / maxWidth, (float) photoH / maxHeight);
+        int w = (int) (photoW / scaleFactor);
+        int h = (int) (photoH / scaleFactor);
+        if (h == 0 || w == 0) {
+            return;
+        }
+
+        // step 2: decode subsampled image
+        int sampleSize = computeSampleSize(photoW, photoH, w, h);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        // JPEG has no alpha channel
+        options.inPreferredConfig = "image/jpeg".equals(options.outMimeType) ?
+            Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        int sampledW = (photoW + sampleSize - 1) / sampleSize;
+        int sampledH = (photoH + sampleSize - 1) / sampleSize;
+        Bitmap bitmap = decode(cr, uri, options, sampledW, sampledH);
+        if (bitmap == null) {
+            return;
+        }
+        boolean reused = bitmap == options.inBitmap;
+        long decodedBytes = getAllocationSize(bitmap);
+
+        // step 3: scale and rotate in a single pass
+        int rotation = MediaStorage.getRotationDegrees(context, uri);
+        Bitmap result = bitmap;
+        if (rotation != 0 || bitmap.getWidth() != w || bitmap.getHeight() != h) {
+            Matrix m = new Matrix();
+            m.postScale((float) w / bitmap.getWidth(), (float) h / bitmap.getHeight());
+            if (rotation != 0)
+                m.postRotate(rotation);
+            result = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+        }
+        long resultBytes = result != bitmap ? getAllocationSize(result) : 0;
+
+        // step 4: compress
+        try {
+            result.compress(format, quality, output);
+        }
+        finally {
+            if (result != bitmap)
+                result.recycle();
+            // keep the decoding bitmap for the next image
+            if (bitmap.isMutable())
+                mReusable = bitmap;
+            else
+                bitmap.recycle();
+        }
+
+        if (Log.isDebug()) {
+            Log.d(TAG, "resized " + photoW + "x" + photoH + " to " + w + "x" + h +
+                " (sample size " + sampleSize + ", rotation " + rotation + ")" +
+                " decoded: " + decodedBytes / 1024 + "KB" + (reused ? " (reused)" : "") +
+                ", scaled: " + resultBytes / 1024 + "KB" +
+                ", peak: " + (decodedBytes + resultBytes) / 1024 + "KB" +
+                ", full size would be: " + (long) photoW * photoH * 4 / 1024 + "KB" +
+                " in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+    }
+
+    private Bitmap decode(ContentResolver cr, Uri uri, BitmapFactory.Options options,
+            int width, int height) throws IOException {
+        Bitmap reusable = mReusable;
+        mReusable = null;
+        if (reusable != null) {
+            if (canReuse(reusable, options, width, height)) {
+                options.inBitmap = reusable;
+                try {
+                    Bitmap bitmap = decodeStream(cr, uri, options);
+                    if (bitmap != null)
+                        return bitmap;
+                }
+                catch (IllegalArgumentException e) {
+                    // bitmap not reusable after all
+                }
+                options.inBitmap = null;
+            }
+            reusable.recycle();
+        }
+        return decodeStream(cr, uri, options);
+    }
+
+    private static Bitmap decodeStream(ContentResolver cr, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = cr.openInputStream(uri);
+        if (in == null)
+            throw new IOException("unable to open " + uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+    }
+
+    /** Returns the largest power of 2 that keeps the image at least as big as the given size. */
+    static int computeSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private static boolean canReuse(Bitmap bitmap, BitmapFactory.Options options, int width, int height) {
+        if (!bitmap.isMutable() || bitmap.getConfig() != options.inPreferredConfig)
+            return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int bytesPerPixel = options.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+            return bitmap.getAllocationByteCount() >= width * height * bytesPerPixel;
+        }
+        // older versions require the exact same size and no subsampling
+        return options.inSampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+
+    private static long getAllocationSize(Bitmap bitmap) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ?
+            bitmap.getAllocationByteCount() : bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /** Releases the bitmap kept for reuse. */
+    public void release() {
+        if (mReusable != null) {
+            mReusable.recycle();
+            mReusable = null;
+        }
+    }
+
+}
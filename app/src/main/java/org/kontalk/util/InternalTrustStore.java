@@ -72,7 +72,7 @@ public class InternalTrustStore {
      * Returns a trust store merged from the internal keystore and system
      * keystore.
      */
-    public static KeyStore getTrustStore(Context context)
+    public static synchronized KeyStore getTrustStore(Context context)
             throws KeyStoreException,
             NoSuchAlgorithmException,
             CertificateException,
@@ -18,6 +18,7 @@
 
 package org.kontalk.util;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -49,6 +50,7 @@ import android.support.annotation.RawRes;
 import android.support.media.ExifInterface;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.FileProvider;
+import android.support.v4.util.LruCache;
 import android.webkit.MimeTypeMap;
 
 import org.kontalk.BuildConfig;
@@ -91,6 +93,15 @@ public abstract class MediaStorage {
     private static final DateFormat sDateFormat =
         new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.US);
 
+    /** Number of images whose rotation is remembered. */
+    private static final int ROTATION_CACHE_SIZE = 50;
+    /** Buffer size for reading image headers. */
+    private static final int EXIF_BUFFER_SIZE = 8192;
+
+    /** Image rotation in degrees, by Uri. */
+    private static final LruCache<String, Integer> sRotationCache =
+        new LruCache<>(ROTATION_CACHE_SIZE);
+
     private static final int THUMBNAIL_WIDTH = 512;
     private static final int THUMBNAIL_HEIGHT = 512;
     public static final String THUMBNAIL_MIME = "image/png";
@@ -167,6 +178,9 @@ public abstract class MediaStorage {
     /** Writes a media to the internal cache. */
     public static File writeInternalMedia(Context context, String filename, byte[] contents) throws IOException {
         File file = getInternalMediaFile(context, filename);
+        // might be linked to the thumbnail cache, don't rewrite it in place
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
         FileOutputStream fout = new FileOutputStream(file);
         fout.write(contents);
         fout.close();
@@ -221,8 +235,22 @@ public abstract class MediaStorage {
         return file;
     }
 
-    /** Writes a thumbnail of a media to a {@link File}. */
+    /**
+     * Writes a thumbnail of a media to a {@link File}. Thumbnails generated
+     * before for the same media are reused.
+     */
     public static void cacheThumbnail(Context context, Uri media, File destination, boolean forNetwork) throws IOException {
+        ThumbnailCache cache = ThumbnailCache.getInstance(context);
+        // destination is going to be rewritten
+        cache.invalidate(destination);
+
+        String key = cache.getKey(context, media, forNetwork);
+        if (key != null && cache.get(key, destination))
+            return;
+
+        // might be linked to the thumbnail cache, don't rewrite it in place
+        //noinspection ResultOfMethodCallIgnored
+        destination.delete();
         FileOutputStream fout = new FileOutputStream(destination);
         try {
             cacheThumbnail(context, media, fout, forNetwork);
@@ -230,6 +258,9 @@ public abstract class MediaStorage {
         finally {
             fout.close();
         }
+
+        if (key != null)
+            cache.put(key, destination);
     }
 
     private static void cacheThumbnail(Context context, Uri media, FileOutputStream fout, boolean forNetwork) throws IOException {
@@ -243,7 +274,18 @@ public abstract class MediaStorage {
      * Tries various methods for obtaining the rotation of the image.
      * @return a matrix to rotate the image (if any)
      */
-    private static Matrix getRotation(Context context, Uri media) throws IOException {
+    private static Matrix getRotation(Context context, Uri media) {
+        int rotation = getRotationDegrees(context, media);
+        if (rotation != 0) {
+            Matrix m = new Matrix();
+            m.postRotate(rotation);
+            return m;
+        }
+        return null;
+    }
+
+    /** Returns the rotation of the image in degrees. */
+    private static int readRotation(Context context, Uri media) throws IOException {
         // method 1: query the media storage
         Cursor cursor = context.getContentResolver().query(media,
             new String[] { MediaStore.Images.ImageColumns.ORIENTATION }, null, null, null);
@@ -254,10 +296,7 @@ public abstract class MediaStorage {
                     int orientation = cursor.getInt(0);
 
                     if (orientation != 0) {
-                        Matrix m = new Matrix();
-                        m.postRotate(orientation);
-
-                        return m;
+                        return orientation;
                     }
                 }
             }
@@ -270,45 +309,45 @@ public abstract class MediaStorage {
             }
         }
 
-        // method 2: write media contents to a temporary file and run ExifInterface
+        // method 2: read EXIF data from the image headers
         InputStream in = context.getContentResolver().openInputStream(media);
-        OutputStream out = null;
-        File tmp = null;
+        if (in == null)
+            return 0;
         try {
-            tmp = File.createTempFile("rotation", null, context.getCacheDir());
-            out = new FileOutputStream(tmp);
-
-            SystemUtils.copy(in, out);
-            // flush the file
-            out.close();
-
-            ExifInterface exif = new ExifInterface(tmp.toString());
-            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
-            Matrix matrix = new Matrix();
+            int orientation = ExifReader.getOrientation(new BufferedInputStream(in, EXIF_BUFFER_SIZE));
             switch (orientation) {
                 case ExifInterface.ORIENTATION_ROTATE_90:
-                    matrix.postRotate(90);
-                    break;
+                    return 90;
                 case ExifInterface.ORIENTATION_ROTATE_180:
-                    matrix.postRotate(180);
-                    break;
+                    return 180;
                 case ExifInterface.ORIENTATION_ROTATE_270:
-                    matrix.postRotate(270);
-                    break;
+                    return 270;
                 default:
-                    return null;
+                    return 0;
             }
-
-            return matrix;
         }
         finally {
-            if (tmp != null)
-                tmp.delete();
             SystemUtils.closeStream(in);
-            SystemUtils.closeStream(out);
         }
     }
 
+    /** Returns the rotation of the image in degrees, 0 if unknown. */
+    static int getRotationDegrees(Context context, Uri media) {
+        String key = media.toString();
+        Integer rotation = sRotationCache.get(key);
+        if (rotation == null) {
+            try {
+                rotation = readRotation(context, media);
+                sRotationCache.put(key, rotation);
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to check for rotation data", e);
+                return 0;
+            }
+        }
+        return rotation;
+    }
+
     /** Apply a rotation matrix respecting the image orientation. */
     static Bitmap bitmapOrientation(Context context, Uri media, Bitmap bitmap) {
         // check if we have to (and can) rotate the thumbnail
@@ -531,18 +570,35 @@ public abstract class MediaStorage {
     }
 
     public static File resizeImage(Context context, Uri uri, int maxSize) throws IOException {
-        return resizeImage(context, uri, maxSize, maxSize, COMPRESSION_QUALITY);
+        return resizeImage(context, uri, maxSize, maxSize, COMPRESSION_QUALITY, null);
+    }
+
+    /**
+     * Resizes an image for sending.
+     * @param resizer resizer to use for a batch of images, null for a one-time resize
+     */
+    public static File resizeImage(Context context, Uri uri, int maxSize, ImageResizer resizer) throws IOException {
+        return resizeImage(context, uri, maxSize, maxSize, COMPRESSION_QUALITY, resizer);
     }
 
     public static File resizeImage(Context context, Uri uri, int maxWidth, int maxHeight, int quality)
             throws IOException {
+        return resizeImage(context, uri, maxWidth, maxHeight, quality, null);
+    }
+
+    private static File resizeImage(Context context, Uri uri, int maxWidth, int maxHeight, int quality,
+            ImageResizer resizer) throws IOException {
 
         FileOutputStream stream = null;
         try {
             final File file = getOutgoingPictureFile();
             stream = new FileOutputStream(file);
-            resizeImage(context, uri, maxWidth, maxHeight,
-                Bitmap.CompressFormat.JPEG, quality, stream);
+            if (resizer != null)
+                resizer.resize(context, uri, maxWidth, maxHeight,
+                    Bitmap.CompressFormat.JPEG, quality, stream);
+            else
+                resizeImage(context, uri, maxWidth, maxHeight,
+                    Bitmap.CompressFormat.JPEG, quality, stream);
             return file;
         }
         finally {
@@ -558,95 +614,12 @@ public abstract class MediaStorage {
     public static void resizeImage(Context context, Uri uri, int maxWidth, int maxHeight,
             Bitmap.CompressFormat format, int quality, FileOutputStream output)
             throws IOException {
-
-        final int MAX_IMAGE_SIZE = 1200000; // 1.2MP
-
-        ContentResolver cr = context.getContentResolver();
-
-        // compute optimal image scale size
-        int scale = 1;
-        InputStream in = cr.openInputStream(uri);
-
-        try {
-            // decode image size
-            BitmapFactory.Options o = bitmapOptionsDecodeBounds();
-            BitmapFactory.decodeStream(in, null, o);
-            in.close();
-
-            // calculate optimal image scale size
-            while ((o.outWidth * o.outHeight) * (1 / Math.pow(scale, 2)) > MAX_IMAGE_SIZE)
-                scale++;
-
-            Log.d(TAG, "scale = " + scale + ", orig-width: " + o.outWidth + ", orig-height: " + o.outHeight);
-        }
-        catch (IOException e) {
-            Log.d(TAG, "unable to calculate optimal scale size, using original image");
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
-
-        // open image again for the actual scaling
-        Bitmap bitmap = null;
-
-        try {
-            in = cr.openInputStream(uri);
-            BitmapFactory.Options o = new BitmapFactory.Options();
-
-            if (scale > 1) {
-                o.inSampleSize = scale - 1;
-            }
-
-            bitmap = BitmapFactory.decodeStream(in, null, o);
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
-
-        if (bitmap == null) {
-            return;
-        }
-        float photoW = bitmap.getWidth();
-        float photoH = bitmap.getHeight();
-        if (photoW == 0 || photoH == 0) {
-            return;
-        }
-        float scaleFactor = Math.max(photoW / maxWidth, photoH / maxHeight);
-        int w = (int) (photoW / scaleFactor);
-        int h = (int) (photoH / scaleFactor);
-        if (h == 0 || w == 0) {
-            return;
-        }
-
-        Bitmap scaledBitmap = null;
-        try {
-            scaledBitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
-        }
-        finally {
-            if (scaledBitmap != bitmap)
-                bitmap.recycle();
-        }
-
-        // check for rotation data
-        Bitmap rotatedScaledBitmap = bitmapOrientation(context, uri, scaledBitmap);
-        if (rotatedScaledBitmap != scaledBitmap)
-            scaledBitmap.recycle();
-
+        ImageResizer resizer = new ImageResizer();
         try {
-            rotatedScaledBitmap.compress(format, quality, output);
+            resizer.resize(context, uri, maxWidth, maxHeight, format, quality, output);
         }
         finally {
-            rotatedScaledBitmap.recycle();
+            resizer.release();
         }
     }
 
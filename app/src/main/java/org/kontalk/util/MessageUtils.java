@@ -574,7 +574,7 @@ public final class MessageUtils {
         return StringUtils.randomString(30);
     }
 
-    public static File encryptFile(Context context, InputStream in, String[] users)
+    public static File encryptFile(Context context, InputStream in, String mime, String[] users)
             throws GeneralSecurityException, IOException, PGPException {
         PersonalKey key = Kontalk.get().getPersonalKey();
         EndpointServer server = Preferences.getEndpointServer(context);
@@ -582,7 +582,8 @@ public final class MessageUtils {
         // create a temporary file to store encrypted data
         File temp = File.createTempFile("media", null, context.getCacheDir());
         FileOutputStream out = new FileOutputStream(temp);
-        coder.encryptFile(in, out);
+        // skip compression for media that is already compressed
+        coder.encryptFile(in, out, mime, Coder.COMPRESSION_AUTO);
         // close encrypted file
         out.close();
         return temp;
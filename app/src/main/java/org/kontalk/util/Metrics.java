@@ -0,0 +1,311 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.kontalk.Kontalk;
+import org.kontalk.Log;
+
+
+/**
+ * Lightweight in-memory metrics registry: counters, gauges and latency
+ * histograms, identified by name. Units are part of the name by convention
+ * (e.g. <code>connect.tls_ms</code>). Other components can register their
+ * own statistics strings as sources, so everything can be dumped together
+ * for the diagnostics screen and the debug log.
+ * @author Daniele Ricci
+ */
+public final class Metrics {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Minimum interval between periodic dumps to the debug log. */
+    private static final long LOG_INTERVAL = TimeUnit.MINUTES.toMillis(15);
+
+    private static final Map<String, Counter> sCounters = new TreeMap<>();
+    private static final Map<String, Gauge> sGauges = new TreeMap<>();
+    private static final Map<String, Histogram> sHistograms = new TreeMap<>();
+    private static final Map<String, Source> sSources = new TreeMap<>();
+
+    private static final StepTimer sLogTimer = new StepTimer(LOG_INTERVAL);
+
+    /** A component providing its own statistics string. */
+    public interface Source {
+        String getStats();
+    }
+
+    /** A monotonically increasing value. */
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /** A value which can go up and down. */
+    public static final class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Histogram with log-linear buckets, in the style of HdrHistogram:
+     * each power of two is split in {@link #SUB_BUCKETS} buckets, so any
+     * recorded value is accounted for with a relative error below 12.5%
+     * using a small fixed amount of memory. Recording is lock-free.
+     */
+    public static final class Histogram {
+        static final int SUB_BUCKETS_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKETS_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKETS_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        /** Records a value. Negative values are recorded as zero. */
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+
+            mBuckets.incrementAndGet(bucketIndex(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+
+            long min;
+            do {
+                min = mMin.get();
+            } while (value < min && !mMin.compareAndSet(min, value));
+            long max;
+            do {
+                max = mMax.get();
+            } while (value > max && !mMax.compareAndSet(max, value));
+        }
+
+        /** Records the milliseconds elapsed since the given {@link System#nanoTime()}. */
+        public void recordMillisSince(long startNanos) {
+            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        /** Records the microseconds elapsed since the given {@link System#nanoTime()}. */
+        public void recordMicrosSince(long startNanos) {
+            record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMin() {
+            return mCount.get() > 0 ? mMin.get() : 0;
+        }
+
+        public long getMax() {
+            return mCount.get() > 0 ? mMax.get() : 0;
+        }
+
+        public long getMean() {
+            long count = mCount.get();
+            return count > 0 ? mSum.get() / count : 0;
+        }
+
+        /**
+         * Returns the value below which the given percentage of recorded
+         * values fall, within the histogram precision.
+         */
+        public long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0)
+                return 0;
+
+            long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= target)
+                    return Math.min(bucketUpperBound(i), getMax());
+            }
+            return getMax();
+        }
+
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BUCKETS_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BUCKETS_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+
+            int shift = index / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() +
+                " min=" + getMin() +
+                " p50=" + getPercentile(50) +
+                " p90=" + getPercentile(90) +
+                " p99=" + getPercentile(99) +
+                " max=" + getMax() +
+                " mean=" + getMean();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        synchronized (sCounters) {
+            Counter counter = sCounters.get(name);
+            if (counter == null) {
+                counter = new Counter();
+                sCounters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    public static Gauge gauge(String name) {
+        synchronized (sGauges) {
+            Gauge gauge = sGauges.get(name);
+            if (gauge == null) {
+                gauge = new Gauge();
+                sGauges.put(name, gauge);
+            }
+            return gauge;
+        }
+    }
+
+    public static Histogram histogram(String name) {
+        synchronized (sHistograms) {
+            Histogram histogram = sHistograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                sHistograms.put(name, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /** Registers a statistics source, replacing any previous one with the same name. */
+    public static void registerSource(String name, Source source) {
+        synchronized (sSources) {
+            sSources.put(name, source);
+        }
+    }
+
+    public static void unregisterSource(String name) {
+        synchronized (sSources) {
+            sSources.remove(name);
+        }
+    }
+
+    /**
+     * Records a completed transfer: total bytes and throughput in kB/s.
+     * @param name the transfer type, e.g. "download"
+     */
+    public static void recordTransfer(String name, long bytes, long millis) {
+        if (bytes <= 0)
+            return;
+
+        counter(name + ".bytes").add(bytes);
+        // bytes per millisecond is roughly kB/s
+        histogram(name + ".throughput_kbs").record(bytes / Math.max(millis, 1));
+    }
+
+    /** Returns all metrics and sources in a human-readable form, one per line. */
+    public static String dump() {
+        StringBuilder out = new StringBuilder();
+        synchronized (sCounters) {
+            for (Map.Entry<String, Counter> e : sCounters.entrySet()) {
+                out.append(e.getKey()).append(": ")
+                    .append(e.getValue().get()).append('\n');
+            }
+        }
+        synchronized (sGauges) {
+            for (Map.Entry<String, Gauge> e : sGauges.entrySet()) {
+                out.append(e.getKey()).append(": ")
+                    .append(e.getValue().get()).append('\n');
+            }
+        }
+        synchronized (sHistograms) {
+            for (Map.Entry<String, Histogram> e : sHistograms.entrySet()) {
+                out.append(e.getKey()).append(": ")
+                    .append(e.getValue()).append('\n');
+            }
+        }
+        synchronized (sSources) {
+            for (Map.Entry<String, Source> e : sSources.entrySet()) {
+                String stats;
+                try {
+                    stats = e.getValue().getStats();
+                }
+                catch (RuntimeException ex) {
+                    stats = ex.toString();
+                }
+                out.append(e.getKey()).append(": ")
+                    .append(stats).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /** Writes a dump to the debug log, at most once every {@link #LOG_INTERVAL}. */
+    public static void maybeLog() {
+        if (!Log.isDebug())
+            return;
+
+        boolean step;
+        synchronized (sLogTimer) {
+            step = sLogTimer.isStep(true);
+        }
+        if (step)
+            Log.d(TAG, "metrics:\n" + dump());
+    }
+
+}
@@ -51,6 +51,7 @@ import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.ServerList;
+import org.kontalk.client.ServerScores;
 import org.kontalk.service.ServerListUpdater;
 import org.kontalk.service.msgcenter.MessageCenterService;
 
@@ -187,7 +188,8 @@ public final class Preferences {
         }
         else {
             ServerList list = ServerListUpdater.getCurrentList(context);
-            return new ServerList.ServerListProvider(list);
+            return new ServerList.ServerListProvider(list,
+                ServerScores.getInstance(context));
         }
     }
 
@@ -291,6 +293,22 @@ public final class Preferences {
             .commit();
     }
 
+    /**
+     * Returns the time of the last committed scan of system contacts, if it
+     * was performed with the given settings; -1 otherwise.
+     */
+    public static long getContactsScanTimestamp(String settingsKey) {
+        return settingsKey.equals(getString("pref_contacts_scan_key", null)) ?
+            getLong("pref_contacts_scan", -1) : -1;
+    }
+
+    public static boolean setContactsScanTimestamp(long timestamp, String settingsKey) {
+        return sPreferences.edit()
+            .putLong("pref_contacts_scan", timestamp)
+            .putString("pref_contacts_scan_key", settingsKey)
+            .commit();
+    }
+
     public static boolean setLastPushNotification(long timestamp) {
         return sPreferences.edit()
             .putLong("pref_last_push_notification", timestamp)
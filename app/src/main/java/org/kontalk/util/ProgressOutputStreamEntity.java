@@ -19,7 +19,7 @@
 package org.kontalk.util;
 
 import java.io.File;
-import java.io.FilterOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -38,45 +38,62 @@ public class ProgressOutputStreamEntity {
     private final File mFile;
     private final DownloadListener mListener;
     private final long mPublishDelay;
+    private final Processor mProcessor;
+
+    /** Processes downloaded data before it is written (e.g. to decrypt it). */
+    public interface Processor {
+        void process(InputStream in, OutputStream out) throws IOException;
+    }
 
     public ProgressOutputStreamEntity(HttpURLConnection parent,
             String url, File file, final DownloadListener listener,
             final long publishDelay) {
+        this(parent, url, file, listener, publishDelay, null);
+    }
+
+    public ProgressOutputStreamEntity(HttpURLConnection parent,
+            String url, File file, final DownloadListener listener,
+            final long publishDelay, Processor processor) {
         mParent = parent;
         mUrl = url;
         mFile = file;
         mListener = listener;
         mPublishDelay = publishDelay;
+        mProcessor = processor;
     }
 
-    private void _writeTo(OutputStream outstream) throws IOException {
-        InputStream instream = mParent.getInputStream();
+    private void _writeTo(InputStream instream, OutputStream outstream) throws IOException {
         try {
-            final byte[] buffer = new byte[BUFFER_SIZE];
-            int l;
-            while ((l = instream.read(buffer)) != -1) {
-                outstream.write(buffer, 0, l);
+            if (mProcessor != null) {
+                mProcessor.process(instream, outstream);
+            }
+            else {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int l;
+                while ((l = instream.read(buffer)) != -1) {
+                    outstream.write(buffer, 0, l);
+                }
             }
         }
         finally {
-            if (instream != null) {
-                try {
-                    instream.close();
-                }
-                catch (IOException ignored) {
-                }
+            try {
+                instream.close();
+            }
+            catch (IOException ignored) {
             }
         }
     }
 
     public void writeTo(OutputStream outstream) throws IOException {
         mListener.start(mUrl, mFile, mParent.getContentLength());
-        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener, mParent.getContentLength(), mPublishDelay));
+        // progress is measured on the received data
+        _writeTo(new CountingInputStream(mParent.getInputStream(), mUrl, mFile,
+            mListener, mParent.getContentLength(), mPublishDelay), outstream);
         String mime = mParent.getContentType();
         mListener.completed(mUrl, mime, mFile);
     }
 
-    private static final class CountingOutputStream extends FilterOutputStream {
+    private static final class CountingInputStream extends FilterInputStream {
         private final DownloadListener listener;
         private final String url;
         private final File file;
@@ -84,10 +101,10 @@ public class ProgressOutputStreamEntity {
         private final long size;
         private long transferred;
 
-        CountingOutputStream(final OutputStream out,
+        CountingInputStream(final InputStream in,
                 final String url, final File file, final DownloadListener listener,
                 long size, long publishDelay) {
-            super(out);
+            super(in);
             this.url = url;
             this.file = file;
             this.listener = listener;
@@ -97,21 +114,27 @@ public class ProgressOutputStreamEntity {
         }
 
         @Override
-        public void write(@NonNull byte[] buffer) throws IOException {
-            out.write(buffer);
-            publishProgress(buffer.length);
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
         }
 
         @Override
-        public void write(@NonNull byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            publishProgress(len);
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0)
+                publishProgress(read);
+            return read;
         }
 
         @Override
-        public void write(int b) throws IOException {
-            out.write(b);
-            publishProgress(1);
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0)
+                publishProgress(skipped);
+            return skipped;
         }
 
         private void publishProgress(long add) {
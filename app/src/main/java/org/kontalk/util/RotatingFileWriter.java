@@ -18,47 +18,115 @@
 
 package org.kontalk.util;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.Flushable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 
 
 /**
- * A simplified FileWriter capable of rotating a file after a given
- * amount of bytes have been written to the underlying file.
+ * A simplified FileWriter capable of rotating log files. Data is written to
+ * a number of fixed-size segment files (<code>name.0</code>,
+ * <code>name.1</code>, ...); when the current segment is full a new one is
+ * started and the oldest one is deleted, so rotation never copies data.
+ * Use {@link #openReader(File)} to read the whole log.
  * @author Daniele Ricci
  */
 public class RotatingFileWriter implements Flushable, Closeable {
 
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
-    /** Rotate at this amount of bytes. */
-    private static final long ROTATE_AT = 1048576;
-    /** How many old lines to delete when rotating. */
-    private static final int DELETE_OLD = 100;
+    /** Max size of all segments. */
+    private static final long MAX_SIZE = 1048576;
+    /** Number of segments to keep. */
+    private static final int SEGMENTS = 4;
 
-    private final long mRotateAt;
-    private final long mDeleteOld;
     private final File mLogFile;
-    private FileWriter mWriter;
-    /** Caches the amount of bytes written in the current file. */
+    private final long mSegmentSize;
+    private final int mMaxSegments;
+    /** Sequence numbers of the existing segments, oldest first. */
+    private final Deque<Long> mSegments = new ArrayDeque<>();
+    private Writer mWriter;
+    /** Caches the amount of bytes written in the current segment. */
     private long mSize;
 
+    private int mRotationCount;
+
     public RotatingFileWriter(File logFile) throws IOException {
-        this(logFile, ROTATE_AT, DELETE_OLD);
+        this(logFile, MAX_SIZE, SEGMENTS);
     }
 
-    public RotatingFileWriter(File logFile, long rotateAt, int deleteOld) throws IOException {
+    /**
+     * @param logFile base name of the segment files
+     * @param maxSize total amount of bytes to keep (approximate)
+     * @param segments number of segments to split the log into
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public RotatingFileWriter(File logFile, long maxSize, int segments) throws IOException {
         super();
+        if (segments < 2)
+            throw new IllegalArgumentException("at least 2 segments are needed");
+
         mLogFile = logFile;
-        mWriter = new FileWriter(logFile, true);
-        mSize = mLogFile.length();
-        mRotateAt = rotateAt;
-        mDeleteOld = deleteOld;
+        mSegmentSize = maxSize / segments;
+        mMaxSegments = segments;
+
+        // unsegmented log from an old version
+        logFile.delete();
+        new File(logFile.toString() + ".old").delete();
+
+        for (long seq : listSegments(logFile))
+            mSegments.add(seq);
+        if (mSegments.isEmpty())
+            mSegments.add(0L);
+
+        File current = getSegment(mLogFile, mSegments.getLast());
+        mWriter = open(current);
+        mSize = current.length();
+    }
+
+    /** Output is buffered: call {@link #flush()} to write it to the file. */
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    private static File getSegment(File logFile, long seq) {
+        return new File(logFile.toString() + "." + seq);
+    }
+
+    /** Returns the sequence numbers of the segments on disk, sorted. */
+    private static List<Long> listSegments(File logFile) {
+        final String prefix = logFile.getName() + ".";
+        List<Long> segments = new ArrayList<>();
+        File dir = logFile.getAbsoluteFile().getParentFile();
+        String[] names = dir != null ? dir.list() : null;
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(prefix.length())));
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
     }
 
     @Override
@@ -68,19 +136,48 @@ public class RotatingFileWriter implements Flushable, Closeable {
 
     @Override
     public synchronized void close() throws IOException {
-        mWriter.close();
-        mWriter = null;
+        if (mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+        }
     }
 
+    /** Closes the writer and deletes all segments. */
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public synchronized void abort() throws IOException {
         close();
+        for (long seq : mSegments)
+            getSegment(mLogFile, seq).delete();
+        mSegments.clear();
         mLogFile.delete();
     }
 
     private void write(String str) throws IOException {
         mWriter.write(str);
-        mSize += str.length();
+        mSize += getEncodedLength(str);
+    }
+
+    /** Returns the length of the given string encoded in UTF-8. */
+    static int getEncodedLength(String str) {
+        int length = 0;
+        for (int i = 0, n = str.length(); i < n; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length++;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < n &&
+                    Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
     }
 
     private void newLine() throws IOException {
@@ -101,49 +198,71 @@ public class RotatingFileWriter implements Flushable, Closeable {
     }
 
     private void checkRotate() throws IOException {
-        if (mSize >= mRotateAt) {
-            mWriter.close();
-            if (!rotate())
-                throw new IOException("Unable to rotate log file");
-            mWriter = new FileWriter(mLogFile, true);
+        if (mSize >= mSegmentSize)
+            rotate();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void rotate() throws IOException {
+        long seq = mSegments.getLast() + 1;
+        // open the next segment first: if it fails, we keep using the current one
+        Writer writer = open(getSegment(mLogFile, seq));
+        Writer old = mWriter;
+        mWriter = writer;
+        mSegments.add(seq);
+        mSize = 0;
+        old.close();
+
+        while (mSegments.size() > mMaxSegments) {
+            getSegment(mLogFile, mSegments.removeFirst()).delete();
         }
+        mRotationCount++;
     }
 
-    private boolean rotate() throws IOException {
-        // rename the current file
-        File oldFile = new File(mLogFile.toString() + ".old");
-        File newFile = new File(mLogFile.toString());
-        if (newFile.renameTo(oldFile)) {
-            BufferedReader oldLog = null;
-            FileWriter rotatedLog = null;
+    /** Number of rotations since this writer was created. */
+    synchronized int getRotationCount() {
+        return mRotationCount;
+    }
+
+    /**
+     * Opens a stream reading all segments of a log in order.
+     * Data not flushed yet by a writer will not be included.
+     */
+    public static InputStream openReader(File logFile) throws IOException {
+        List<InputStream> streams = new ArrayList<>();
+        for (long seq : listSegments(logFile)) {
             try {
-                // open the old file and start writing lines
-                oldLog = new BufferedReader(new FileReader(oldFile));
-                rotatedLog = new FileWriter(mLogFile.toString());
-                long lineCount = 0;
-                String line;
-                while ((line = oldLog.readLine()) != null) {
-                    lineCount++;
-                    // skip up to DELETE_OLD lines, then start writing lines
-                    if (lineCount > mDeleteOld) {
-                        rotatedLog.write(line);
-                        rotatedLog.write(LINE_SEPARATOR);
-                    }
-                }
+                streams.add(new FileInputStream(getSegment(logFile, seq)));
             }
-            finally {
-                SystemUtils.closeStream(oldLog);
-                SystemUtils.closeStream(rotatedLog);
-                oldFile.delete();
+            catch (FileNotFoundException e) {
+                // deleted by rotation in the meantime
             }
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
 
-            mSize = mLogFile.length();
-            return true;
+    /**
+     * Writes all segments of a log into a single file.
+     * @return the number of bytes written
+     */
+    public static long export(File logFile, File dest) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = openReader(logFile);
+            out = new FileOutputStream(dest);
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+                total += len;
+            }
+            return total;
         }
-        else {
-            // we couldn't rename the old log file
-            // we just delete it to make space for a new one
-            return mLogFile.delete();
+        finally {
+            SystemUtils.closeStream(in);
+            SystemUtils.closeStream(out);
         }
     }
 
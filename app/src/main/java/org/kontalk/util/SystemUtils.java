@@ -205,6 +205,10 @@ public final class SystemUtils {
         return getCurrentNetworkType(context) == ConnectivityManager.TYPE_WIFI;
     }
 
+    public static boolean isOnMobileNetwork(Context context) {
+        return getCurrentNetworkType(context) == ConnectivityManager.TYPE_MOBILE;
+    }
+
     /** Checks for network availability. */
     public static boolean isNetworkConnectionAvailable(Context context) {
         final ConnectivityManager cm = (ConnectivityManager) context
@@ -0,0 +1,422 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.support.v4.util.LruCache;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import org.kontalk.Kontalk;
+import org.kontalk.Log;
+
+
+/**
+ * Two-tier thumbnail cache.
+ * Decoded preview bitmaps are kept in memory by file. Generated thumbnails
+ * are kept on disk by media URI, size, modification time and variant (local
+ * or network), so the same media is never decoded and encoded twice. Disk
+ * entries are hard linked to the preview files when possible.
+ * Cached bitmaps are shared between views: they must never be recycled or
+ * modified.
+ * @author Daniele Ricci
+ */
+public class ThumbnailCache {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Fraction of the heap the memory cache is allowed to use. */
+    private static final int HEAP_FRACTION = 8;
+
+    /** Default size of the disk cache. */
+    public static final long DEFAULT_DISK_SIZE = 10 * 1024 * 1024;
+
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String VARIANT_LOCAL = ".png";
+    private static final String VARIANT_NETWORK = ".jpg";
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Bitmap> mMemory;
+
+    private final File mDiskDir;
+    private final long mMaxDiskSize;
+    /** Disk entries with their size, least recently used first. */
+    private Map<String, Long> mDiskEntries;
+    private long mDiskSize;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mMemoryMisses = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mDiskMisses = new AtomicLong();
+
+    /** @param maxDiskSize disk cache budget in bytes */
+    ThumbnailCache(File diskDir, long maxDiskSize) {
+        mDiskDir = diskDir;
+        mMaxDiskSize = maxDiskSize;
+        mMemory = new LruCache<String, Bitmap>((int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / HEAP_FRACTION)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(new File(context.getApplicationContext()
+                .getCacheDir(), DISK_CACHE_DIR), DEFAULT_DISK_SIZE);
+        }
+        return sInstance;
+    }
+
+    /** Returns a cached preview bitmap, without loading it. */
+    public Bitmap peekBitmap(File previewFile) {
+        return mMemory.get(previewFile.getAbsolutePath());
+    }
+
+    /**
+     * Returns the bitmap of a preview file, decoding it if not in memory.
+     * @throws IOException if the file could not be read or decoded
+     */
+    public Bitmap getBitmap(File previewFile) throws IOException {
+        String key = previewFile.getAbsolutePath();
+        Bitmap bitmap = mMemory.get(key);
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+            return bitmap;
+        }
+
+        mMemoryMisses.incrementAndGet();
+        InputStream in = new FileInputStream(previewFile);
+        try {
+            bitmap = MediaStorage.loadBitmapSimple(in);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+        if (bitmap == null)
+            throw new IOException("unable to decode " + previewFile);
+
+        mMemory.put(key, bitmap);
+        return bitmap;
+    }
+
+    /** Forgets the bitmap of a preview file which has been rewritten. */
+    public void invalidate(File previewFile) {
+        mMemory.remove(previewFile.getAbsolutePath());
+    }
+
+    /**
+     * Returns the disk cache key of a thumbnail of the given media. The key
+     * is built from the media URI, size and modification time, so the media
+     * itself is never read.
+     * @return the key or null if the media could not be found
+     */
+    String getKey(Context context, Uri media, boolean forNetwork) {
+        long length;
+        long modified;
+        if (ContentResolver.SCHEME_FILE.equals(media.getScheme())) {
+            File file = new File(media.getPath());
+            if (!file.isFile())
+                return null;
+            length = file.length();
+            modified = file.lastModified();
+        }
+        else {
+            ParcelFileDescriptor fd = null;
+            try {
+                fd = context.getContentResolver().openFileDescriptor(media, "r");
+                if (fd == null)
+                    return null;
+                length = fd.getStatSize();
+                modified = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ?
+                    FileApi21.getLastModified(fd.getFileDescriptor()) :
+                    queryLastModified(context, media);
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to stat media for thumbnail cache", e);
+                return null;
+            }
+            finally {
+                try {
+                    if (fd != null)
+                        fd.close();
+                }
+                catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+        if (length < 0)
+            return null;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((media + "|" + length + "|" + modified).getBytes("UTF-8"));
+            return StringUtils.encodeHex(digest.digest()) +
+                (forNetwork ? VARIANT_NETWORK : VARIANT_LOCAL);
+        }
+        catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Returns the modification time from the media store, or 0 if not available. */
+    private static long queryLastModified(Context context, Uri media) {
+        Cursor c = null;
+        try {
+            c = context.getContentResolver().query(media,
+                new String[] { MediaStore.MediaColumns.DATE_MODIFIED }, null, null, null);
+            if (c != null && c.moveToFirst())
+                return c.getLong(0);
+        }
+        catch (Exception e) {
+            // not a media store URI
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+        return 0;
+    }
+
+    /**
+     * Links (or copies, if linking is not possible) a cached thumbnail to the
+     * given file. The destination must not be rewritten in place afterwards.
+     * @return true if the thumbnail was found
+     */
+    synchronized boolean get(String key, File destination) {
+        loadDiskEntries();
+        if (mDiskEntries.get(key) == null) {
+            mDiskMisses.incrementAndGet();
+            return false;
+        }
+
+        File file = new File(mDiskDir, key);
+        try {
+            linkOrCopy(file, destination);
+            // remember usage across restarts
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            mDiskHits.incrementAndGet();
+            return true;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to read cached thumbnail", e);
+            remove(key);
+            mDiskMisses.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stores a thumbnail file in the disk cache, linking it if possible.
+     * The thumbnail file must not be rewritten in place afterwards.
+     */
+    synchronized void put(String key, File thumbnail) {
+        loadDiskEntries();
+        File file = new File(mDiskDir, key);
+        File temp = new File(mDiskDir, key + TEMP_SUFFIX);
+        try {
+            if (!mDiskDir.isDirectory() && !mDiskDir.mkdirs())
+                throw new IOException("unable to create " + mDiskDir);
+
+            // write to a temporary file first, so a crash won't leave broken entries
+            linkOrCopy(thumbnail, temp);
+            if (!temp.renameTo(file))
+                throw new IOException("unable to rename " + temp);
+
+            Long old = mDiskEntries.put(key, file.length());
+            if (old != null)
+                mDiskSize -= old;
+            mDiskSize += file.length();
+            trim();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to cache thumbnail", e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * Stores a thumbnail of the given media, e.g. a network preview received
+     * together with the media, so it won't need to be generated again.
+     */
+    public void putThumbnail(Context context, Uri media, File thumbnail, boolean forNetwork) {
+        String key = getKey(context, media, forNetwork);
+        if (key != null)
+            put(key, thumbnail);
+    }
+
+    private void remove(String key) {
+        Long size = mDiskEntries.remove(key);
+        if (size != null)
+            mDiskSize -= size;
+        //noinspection ResultOfMethodCallIgnored
+        new File(mDiskDir, key).delete();
+    }
+
+    /** Evicts the least recently used entries until the cache fits its budget. */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> entries = mDiskEntries.entrySet().iterator();
+        while (mDiskSize > mMaxDiskSize && entries.hasNext()) {
+            Map.Entry<String, Long> e = entries.next();
+            entries.remove();
+            mDiskSize -= e.getValue();
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDiskDir, e.getKey()).delete();
+        }
+    }
+
+    /**
+     * Builds the entry index from the cache directory. Files are ordered
+     * by last modification time, which is updated on every use.
+     */
+    private void loadDiskEntries() {
+        if (mDiskEntries != null)
+            return;
+
+        // access order
+        mDiskEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mDiskSize = 0;
+
+        File[] files = mDiskDir.listFiles();
+        if (files == null)
+            return;
+
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : (modified[a] == modified[b] ? 0 : 1);
+            }
+        });
+
+        for (int i : order) {
+            File file = files[i];
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // leftover from an interrupted write
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+            mDiskEntries.put(file.getName(), file.length());
+            mDiskSize += file.length();
+        }
+        trim();
+    }
+
+    /**
+     * Hard links a file to the destination, so the cache and the destination
+     * share the same data, or copies it if the file system doesn't allow it.
+     */
+    private static void linkOrCopy(File source, File destination) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        destination.delete();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                FileApi21.link(source, destination))
+            return;
+        copy(source, destination);
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(destination);
+            SystemUtils.copy(in, out);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+            SystemUtils.closeStream(out);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static final class FileApi21 {
+        static boolean link(File source, File destination) {
+            try {
+                Os.link(source.getAbsolutePath(), destination.getAbsolutePath());
+                return true;
+            }
+            catch (ErrnoException e) {
+                return false;
+            }
+        }
+
+        static long getLastModified(FileDescriptor fd) throws IOException {
+            try {
+                return Os.fstat(fd).st_mtime;
+            }
+            catch (ErrnoException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "thumbnails=" + mMemory.snapshot().size() +
+            " size=" + mMemory.size() / 1024 + "KB" +
+            " hits=" + mMemoryHits.get() +
+            " misses=" + mMemoryMisses.get() +
+            " disk=" + (mDiskEntries != null ? mDiskEntries.size() : 0) +
+            " disk-size=" + mDiskSize / 1024 + "KB" +
+            " disk-hits=" + mDiskHits.get() +
+            " disk-misses=" + mDiskMisses.get();
+    }
+
+}
@@ -28,6 +28,8 @@ import android.os.PowerManager;
 /**
  * A hash set that acquires a wake lock whenever an item is inserted
  * and releases a wake lock whenever an item is removed.
+ * Single operations are synchronized on the set itself, so callers can
+ * synchronize on it too for compound operations.
  */
 public class WakefulHashSet<E> extends HashSet<E> {
 
@@ -42,7 +44,7 @@ public class WakefulHashSet<E> extends HashSet<E> {
 
     @Override
     @SuppressLint("WakelockTimeout")
-    public boolean add(E e) {
+    public synchronized boolean add(E e) {
         boolean added = super.add(e);
         if (added) {
             mWakeLock.acquire();
@@ -50,7 +52,7 @@ public class WakefulHashSet<E> extends HashSet<E> {
         return added;
     }
 
-    public boolean add(E e, long timeout) {
+    public synchronized boolean add(E e, long timeout) {
         boolean added = super.add(e);
         if (added) {
             mWakeLock.acquire(timeout);
@@ -59,7 +61,7 @@ public class WakefulHashSet<E> extends HashSet<E> {
     }
 
     @Override
-    public boolean remove(Object key) {
+    public synchronized boolean remove(Object key) {
         boolean removed = super.remove(key);
         if (removed) {
             mWakeLock.release();
@@ -68,7 +70,12 @@ public class WakefulHashSet<E> extends HashSet<E> {
     }
 
     @Override
-    public void clear() {
+    public synchronized boolean contains(Object o) {
+        return super.contains(o);
+    }
+
+    @Override
+    public synchronized void clear() {
         super.clear();
         while (mWakeLock.isHeld())
             mWakeLock.release();
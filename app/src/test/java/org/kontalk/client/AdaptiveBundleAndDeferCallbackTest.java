@@ -0,0 +1,124 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AdaptiveBundleAndDeferCallbackTest {
+
+    private static final class TestCallback extends AdaptiveBundleAndDeferCallback {
+        long time;
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        AdaptiveBundleAndDeferCallback.setMobileNetwork(false);
+    }
+
+    @Test
+    public void testDeferOnMobile() {
+        AdaptiveBundleAndDeferCallback.setMobileNetwork(true);
+        TestCallback callback = new TestCallback();
+        callback.time += AdaptiveBundleAndDeferCallback.RADIO_TAIL_MILLIS;
+        callback.onStanzaQueued(false);
+        assertEquals(AdaptiveBundleAndDeferCallback.MOBILE_DEFER_MILLIS,
+            callback.computeDeferMillis());
+
+        AdaptiveBundleAndDeferCallback.setMobileNetwork(false);
+        assertEquals(AdaptiveBundleAndDeferCallback.DEFAULT_DEFER_MILLIS,
+            callback.computeDeferMillis());
+    }
+
+    @Test
+    public void testUrgent() {
+        AdaptiveBundleAndDeferCallback.setMobileNetwork(true);
+        TestCallback callback = new TestCallback();
+        callback.time += AdaptiveBundleAndDeferCallback.RADIO_TAIL_MILLIS;
+        callback.onStanzaQueued(false);
+        callback.onStanzaQueued(true);
+        assertEquals(0, callback.computeDeferMillis());
+        // until the urgent stanza is written
+        assertEquals(0, callback.computeDeferMillis());
+        callback.onStanzaWritten(false);
+        callback.onStanzaWritten(true);
+        assertEquals(AdaptiveBundleAndDeferCallback.MOBILE_DEFER_MILLIS,
+            callback.computeDeferMillis());
+    }
+
+    @Test
+    public void testUrgentWrittenWhileDraining() {
+        AdaptiveBundleAndDeferCallback.setMobileNetwork(true);
+        TestCallback callback = new TestCallback();
+        callback.time += AdaptiveBundleAndDeferCallback.RADIO_TAIL_MILLIS;
+        // written without a new bundle, the writer queue was not empty
+        callback.onStanzaQueued(true);
+        callback.onStanzaQueued(true);
+        callback.onStanzaWritten(true);
+        callback.onStanzaWritten(true);
+        callback.onStanzaQueued(false);
+        // no stale count left to disable deferring
+        assertEquals(AdaptiveBundleAndDeferCallback.MOBILE_DEFER_MILLIS,
+            callback.computeDeferMillis());
+
+        // queued stanzas lost with the connection
+        callback.onStanzaQueued(true);
+        callback.reset();
+        callback.onStanzaWritten(true);
+        assertEquals(AdaptiveBundleAndDeferCallback.MOBILE_DEFER_MILLIS,
+            callback.computeDeferMillis());
+    }
+
+    @Test
+    public void testRadioAwake() {
+        AdaptiveBundleAndDeferCallback.setMobileNetwork(true);
+        TestCallback callback = new TestCallback();
+        callback.time += AdaptiveBundleAndDeferCallback.RADIO_TAIL_MILLIS;
+        callback.onTrafficReceived();
+        callback.time += 1000;
+        assertEquals(0, callback.computeDeferMillis());
+        callback.time += AdaptiveBundleAndDeferCallback.RADIO_TAIL_MILLIS;
+        assertEquals(AdaptiveBundleAndDeferCallback.MOBILE_DEFER_MILLIS,
+            callback.computeDeferMillis());
+    }
+
+    @Test
+    public void testStats() {
+        TestCallback callback = new TestCallback();
+        callback.time += AdaptiveBundleAndDeferCallback.RADIO_TAIL_MILLIS;
+        for (int i = 0; i < 3; i++)
+            callback.onStanzaQueued(false);
+        callback.getBundleAndDeferMillis(null);
+        callback.onStanzaQueued(true);
+        callback.getBundleAndDeferMillis(null);
+
+        callback.time += 60000 - AdaptiveBundleAndDeferCallback.RADIO_TAIL_MILLIS;
+        assertEquals(2f, callback.getFlushesPerMinute(), 0.01f);
+        assertEquals(2f, callback.getAverageBundleSize(), 0.01f);
+    }
+
+}
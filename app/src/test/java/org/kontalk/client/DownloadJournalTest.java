@@ -0,0 +1,114 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+
+public class DownloadJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testPutGet() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFolder.newFolder("journal"));
+        assertNull(journal.get(1));
+
+        File destination = new File(mFolder.getRoot(), "video.mp4");
+        DownloadJournal.Entry entry = new DownloadJournal.Entry(1, "https://example.com/1", destination);
+        entry.etag = "\"abc\"";
+        entry.mime = "video/mp4";
+        entry.length = 300;
+        entry.segments = ClientHTTPConnection.createSegments(entry.length, 3);
+        entry.segments[0].done = 100;
+        entry.segments[2].done = 10;
+        journal.put(entry);
+
+        DownloadJournal.Entry stored = journal.get(1);
+        assertNotNull(stored);
+        assertEquals(entry.url, stored.url);
+        assertEquals(destination, stored.destination);
+        assertEquals(entry.etag, stored.etag);
+        assertEquals(entry.mime, stored.mime);
+        assertEquals(300, stored.length);
+        assertEquals(3, stored.segments.length);
+        assertTrue(stored.segments[0].isComplete());
+        assertFalse(stored.segments[1].isComplete());
+        assertEquals(200, stored.segments[2].start);
+        assertEquals(300, stored.segments[2].end);
+        assertEquals(110, stored.getDone());
+
+        journal.remove(1);
+        assertNull(journal.get(1));
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        DownloadJournal journal = new DownloadJournal(mFolder.newFolder("journal"));
+        DownloadJournal.Entry entry = new DownloadJournal.Entry(2, "https://example.com/2",
+            new File(mFolder.getRoot(), "image.jpg"));
+        journal.put(entry);
+        assertTrue(entry.getPartialFile().createNewFile());
+
+        journal.discard(2);
+        assertNull(journal.get(2));
+        assertFalse(entry.getPartialFile().exists());
+    }
+
+    @Test
+    public void testCreateSegments() {
+        DownloadJournal.Segment[] segments = ClientHTTPConnection.createSegments(10, 3);
+        assertEquals(0, segments[0].start);
+        assertEquals(3, segments[0].end);
+        assertEquals(3, segments[1].start);
+        assertEquals(6, segments[2].start);
+        assertEquals(10, segments[2].end);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateSegmentsUnknownLength() {
+        ClientHTTPConnection.createSegments(-1, 3);
+    }
+
+    @Test
+    public void testGetValidator() {
+        String date = "Wed, 21 Oct 2015 07:28:00 GMT";
+        assertEquals("\"abc\"", ClientHTTPConnection.getValidator("\"abc\"", date));
+        // weak entity tags can't be used with If-Range
+        assertEquals(date, ClientHTTPConnection.getValidator("W/\"abc\"", date));
+        assertEquals(date, ClientHTTPConnection.getValidator(null, date));
+        assertNull(ClientHTTPConnection.getValidator(null, null));
+    }
+
+    @Test
+    public void testParseContentRange() {
+        assertEquals(100, ClientHTTPConnection.parseContentRangeStart("bytes 100-199/200"));
+        assertEquals(0, ClientHTTPConnection.parseContentRangeStart("bytes 0-0/1"));
+        assertEquals(-1, ClientHTTPConnection.parseContentRangeStart("bytes */200"));
+        assertEquals(-1, ClientHTTPConnection.parseContentRangeStart(null));
+    }
+
+}
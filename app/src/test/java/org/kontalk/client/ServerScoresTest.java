@@ -0,0 +1,176 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+
+public class ServerScoresTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final EndpointServer mFast = new EndpointServer("kontalk.net|fast.kontalk.net");
+    private final EndpointServer mSlow = new EndpointServer("kontalk.net|slow.kontalk.net");
+    private final EndpointServer mBroken = new EndpointServer("kontalk.net|broken.kontalk.net");
+
+    @Test
+    public void testScore() throws Exception {
+        ServerScores scores = new ServerScores(new File(mFolder.getRoot(), "scores"));
+        assertEquals(ServerScores.DEFAULT_LATENCY, scores.getScore(mFast));
+
+        scores.recordSuccess(mFast, 100);
+        assertEquals(100, scores.getScore(mFast));
+        scores.recordSuccess(mFast, 200);
+        assertEquals(130, scores.getScore(mFast));
+
+        scores.recordSuccess(mBroken, 50);
+        scores.recordFailure(mBroken);
+        scores.recordFailure(mBroken);
+        assertEquals(50 + 2 * ServerScores.FAILURE_PENALTY, scores.getScore(mBroken));
+
+        // success resets failures
+        scores.recordSuccess(mBroken, 50);
+        assertEquals(50, scores.getScore(mBroken));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        File file = new File(mFolder.getRoot(), "scores");
+        ServerScores scores = new ServerScores(file);
+        scores.recordSuccess(mFast, 100);
+        scores.recordFailure(mSlow);
+
+        ServerScores loaded = new ServerScores(file);
+        assertEquals(100, loaded.getScore(mFast));
+        assertEquals(ServerScores.DEFAULT_LATENCY + ServerScores.FAILURE_PENALTY,
+            loaded.getScore(mSlow));
+    }
+
+    @Test
+    public void testSelect() throws Exception {
+        ServerScores scores = new ServerScores(new File(mFolder.getRoot(), "scores"));
+        scores.recordSuccess(mFast, 100);
+        scores.recordSuccess(mSlow, 800);
+        scores.recordFailure(mBroken);
+        List<EndpointServer> servers = Arrays.asList(mSlow, mBroken, mFast);
+
+        Random random = new Random(42);
+        int fast = 0;
+        final int count = 1000;
+        for (int i = 0; i < count; i++) {
+            if (scores.select(servers, random).equals(mFast))
+                fast++;
+        }
+        // best server most of the times, others explored sometimes
+        assertTrue(fast > count * (1 - ServerScores.EXPLORATION) * 0.9);
+        assertTrue(fast < count);
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        ServerScores scores = new ServerScores(new File(mFolder.getRoot(), "scores"));
+
+        // a port nobody is listening to
+        ServerSocket closed = new ServerSocket(0);
+        int closedPort = closed.getLocalPort();
+        closed.close();
+
+        ServerSocket open = new ServerSocket(0);
+        try {
+            EndpointServer down = new EndpointServer("kontalk.net", "127.0.0.1", closedPort);
+            EndpointServer up = new EndpointServer("kontalk.net", "127.0.0.1", open.getLocalPort());
+
+            assertEquals(up, scores.probe(Arrays.asList(down, up)));
+            assertTrue(scores.getScore(down) > scores.getScore(up));
+        }
+        finally {
+            open.close();
+        }
+    }
+
+    @Test
+    public void testProbeCancelsLosers() throws Exception {
+        ServerScores scores = new ServerScores(new File(mFolder.getRoot(), "scores"));
+
+        ServerSocket open = new ServerSocket(0);
+        try {
+            // non-routable address: the connection attempt hangs until the timeout
+            EndpointServer hanging = new EndpointServer("kontalk.net", "10.255.255.1", 5222);
+            EndpointServer up = new EndpointServer("kontalk.net", "127.0.0.1", open.getLocalPort());
+
+            // the hanging probe starts first, but the winner doesn't wait for it
+            long start = System.currentTimeMillis();
+            assertEquals(up, scores.probe(Arrays.asList(hanging, up)));
+            assertTrue(System.currentTimeMillis() - start < ServerScores.PROBE_TIMEOUT);
+        }
+        finally {
+            open.close();
+        }
+    }
+
+    @Test
+    public void testProviderNextDoesNotProbe() throws Exception {
+        ServerScores scores = new ServerScores(new File(mFolder.getRoot(), "scores"));
+        ServerList list = new ServerList(new Date(), Arrays.asList(mFast, mSlow));
+        ServerList.ServerListProvider provider = new ServerList.ServerListProvider(list, scores);
+        // no probe requested: servers are selected by score only
+        assertNotNull(provider.next());
+        assertNotNull(provider.next());
+        assertNull(provider.next());
+        assertFalse(scores.hasStats(list));
+    }
+
+    @Test
+    public void testProviderProbesOnColdStart() throws Exception {
+        ServerScores scores = new ServerScores(new File(mFolder.getRoot(), "scores"));
+
+        ServerSocket closed = new ServerSocket(0);
+        int closedPort = closed.getLocalPort();
+        closed.close();
+
+        ServerSocket open = new ServerSocket(0);
+        try {
+            EndpointServer down = new EndpointServer("kontalk.net", "127.0.0.1", closedPort);
+            EndpointServer up = new EndpointServer("kontalk.net", "127.0.0.1", open.getLocalPort());
+            ServerList list = new ServerList(new Date(), Arrays.asList(down, up));
+
+            ServerList.ServerListProvider provider = new ServerList.ServerListProvider(list, scores);
+            provider.probe();
+            assertEquals(up, provider.next());
+            assertEquals(down, provider.next());
+            assertNull(provider.next());
+        }
+        finally {
+            open.close();
+        }
+    }
+
+}
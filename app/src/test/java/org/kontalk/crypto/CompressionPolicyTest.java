@@ -0,0 +1,60 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CompressionPolicyTest {
+
+    @Test
+    public void testMimeTypes() throws Exception {
+        assertEquals(Coder.COMPRESSION_NONE, CompressionPolicy.resolve(Coder.COMPRESSION_AUTO, "image/jpeg", null));
+        assertEquals(Coder.COMPRESSION_NONE, CompressionPolicy.resolve(Coder.COMPRESSION_AUTO, "video/mp4", null));
+        assertEquals(Coder.COMPRESSION_NONE, CompressionPolicy.resolve(Coder.COMPRESSION_AUTO, "audio/ogg", null));
+        assertEquals(Coder.COMPRESSION_ZIP, CompressionPolicy.resolve(Coder.COMPRESSION_AUTO, "audio/wav", null));
+        assertEquals(Coder.COMPRESSION_ZIP, CompressionPolicy.resolve(Coder.COMPRESSION_AUTO, "text/x-vcard", null));
+        // explicit modes are never overridden
+        assertEquals(Coder.COMPRESSION_ZLIB, CompressionPolicy.resolve(Coder.COMPRESSION_ZLIB, "image/jpeg", null));
+    }
+
+    @Test
+    public void testEntropyProbe() throws Exception {
+        byte[] random = new byte[CompressionPolicy.PROBE_SIZE * 2];
+        new Random(42).nextBytes(random);
+        InputStream in = new ByteArrayInputStream(random);
+        assertEquals(Coder.COMPRESSION_NONE, CompressionPolicy
+            .resolve(Coder.COMPRESSION_AUTO, "application/octet-stream", in));
+        // stream must be reset after probing
+        assertEquals(random[0] & 0xff, in.read());
+
+        byte[] repeated = new byte[CompressionPolicy.PROBE_SIZE];
+        Arrays.fill(repeated, (byte) 'a');
+        assertEquals(Coder.COMPRESSION_ZIP, CompressionPolicy
+            .resolve(Coder.COMPRESSION_AUTO, null, new ByteArrayInputStream(repeated)));
+    }
+
+}
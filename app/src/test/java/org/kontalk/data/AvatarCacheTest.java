@@ -0,0 +1,63 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AvatarCacheTest {
+
+    @Test
+    public void testComputeSampleSize() {
+        assertEquals(1, AvatarCache.computeSampleSize(100, 100, 100));
+        assertEquals(1, AvatarCache.computeSampleSize(150, 150, 100));
+        assertEquals(2, AvatarCache.computeSampleSize(200, 200, 100));
+        assertEquals(4, AvatarCache.computeSampleSize(1024, 1024, 200));
+        // the shorter side limits subsampling
+        assertEquals(2, AvatarCache.computeSampleSize(2000, 400, 200));
+        assertEquals(2, AvatarCache.computeSampleSize(400, 2000, 200));
+        // smaller than requested
+        assertEquals(1, AvatarCache.computeSampleSize(50, 50, 100));
+    }
+
+    @Test
+    public void testComputeCrop() {
+        assertArrayEquals(new int[] { 0, 0, 100 }, AvatarCache.computeCrop(100, 100));
+        // landscape: crop the center horizontally
+        assertArrayEquals(new int[] { 50, 0, 100 }, AvatarCache.computeCrop(200, 100));
+        // portrait: crop the center vertically
+        assertArrayEquals(new int[] { 0, 150, 100 }, AvatarCache.computeCrop(100, 400));
+        assertArrayEquals(new int[] { 0, 0, 99 }, AvatarCache.computeCrop(99, 100));
+    }
+
+    @Test
+    public void testCroppedSideCoversSize() {
+        // subsampled images must still be large enough to fill the avatar
+        int[][] sizes = { { 4000, 3000 }, { 3000, 4000 }, { 640, 480 }, { 1080, 1920 } };
+        for (int[] s : sizes) {
+            int sampleSize = AvatarCache.computeSampleSize(s[0], s[1], 192);
+            int width = (s[0] + sampleSize - 1) / sampleSize;
+            int height = (s[1] + sampleSize - 1) / sampleSize;
+            assertTrue(AvatarCache.computeCrop(width, height)[2] >= 192);
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ContactCacheTest {
+
+    private static Contact createContact(String userId) {
+        return new Contact(1, null, "Test", "+15555215554", userId, false);
+    }
+
+    @Test
+    public void testLoadOnce() throws Exception {
+        final ContactCache cache = new ContactCache(Integer.MAX_VALUE);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final ContactCache.Loader loader = new ContactCache.Loader() {
+            @Override
+            public Contact load(String userId) {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return createContact(userId);
+            }
+        };
+
+        final Contact[] results = new Contact[2];
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[0] = cache.get("alice@example.com", loader);
+            }
+        });
+        first.start();
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[1] = cache.get("alice@example.com", loader);
+            }
+        });
+        second.start();
+        // a lookup for another contact doesn't wait for the running load
+        Contact other = cache.get("bob@example.com", new ContactCache.Loader() {
+            @Override
+            public Contact load(String userId) {
+                return createContact(userId);
+            }
+        });
+        assertEquals("bob@example.com", other.getJID());
+
+        release.countDown();
+        first.join(10000);
+        second.join(10000);
+
+        assertEquals(1, loads.get());
+        assertNotNull(results[0]);
+        assertSame(results[0], results[1]);
+        assertSame(results[0], cache.get("alice@example.com"));
+    }
+
+    @Test
+    public void testInvalidateDuringLoad() {
+        final ContactCache cache = new ContactCache(Integer.MAX_VALUE);
+        Contact c = cache.get("alice@example.com", new ContactCache.Loader() {
+            @Override
+            public Contact load(String userId) {
+                cache.remove(userId);
+                return createContact(userId);
+            }
+        });
+        // returned to the caller but not cached
+        assertNotNull(c);
+        assertNull(cache.get("alice@example.com"));
+    }
+
+    @Test
+    public void testInvalidateOtherDuringLoad() {
+        final ContactCache cache = new ContactCache(Integer.MAX_VALUE);
+        Contact c = cache.get("alice@example.com", new ContactCache.Loader() {
+            @Override
+            public Contact load(String userId) {
+                cache.remove("bob@example.com");
+                return createContact(userId);
+            }
+        });
+        assertSame(c, cache.get("alice@example.com"));
+    }
+
+    @Test
+    public void testEvictAllDuringLoad() {
+        final ContactCache cache = new ContactCache(Integer.MAX_VALUE);
+        Contact c = cache.get("alice@example.com", new ContactCache.Loader() {
+            @Override
+            public Contact load(String userId) {
+                cache.evictAll();
+                return createContact(userId);
+            }
+        });
+        assertNotNull(c);
+        assertNull(cache.get("alice@example.com"));
+    }
+
+    @Test
+    public void testPutAllGeneration() {
+        ContactCache cache = new ContactCache(Integer.MAX_VALUE);
+        long generation = cache.generation();
+        cache.remove("alice@example.com");
+        cache.putAll(Arrays.asList(createContact("alice@example.com"),
+            createContact("bob@example.com")), generation);
+        assertNull(cache.get("alice@example.com"));
+        assertNotNull(cache.get("bob@example.com"));
+
+        // a new generation is not affected by the old invalidation
+        cache.putAll(Arrays.asList(createContact("alice@example.com")), cache.generation());
+        assertNotNull(cache.get("alice@example.com"));
+
+        generation = cache.generation();
+        cache.evictAll();
+        cache.putAll(Arrays.asList(createContact("bob@example.com")), generation);
+        assertNull(cache.get("bob@example.com"));
+    }
+
+    @Test
+    public void testRemoveAll() {
+        ContactCache cache = new ContactCache(Integer.MAX_VALUE);
+        long generation = cache.generation();
+        cache.put("alice@example.com", createContact("alice@example.com"));
+        cache.put("bob@example.com", createContact("bob@example.com"));
+        cache.put("charlie@example.com", createContact("charlie@example.com"));
+        cache.removeAll(Arrays.asList("alice@example.com", "bob@example.com"));
+        assertNull(cache.get("alice@example.com"));
+        assertNull(cache.get("bob@example.com"));
+        assertNotNull(cache.get("charlie@example.com"));
+
+        // loads started before the invalidation are discarded
+        cache.putAll(Arrays.asList(createContact("alice@example.com"),
+            createContact("dave@example.com")), generation);
+        assertNull(cache.get("alice@example.com"));
+        assertNotNull(cache.get("dave@example.com"));
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        int size = createContact("user1@example.com").getEstimatedSize();
+        ContactCache cache = new ContactCache(size * 3);
+        cache.put("user1@example.com", createContact("user1@example.com"));
+        cache.put("user2@example.com", createContact("user2@example.com"));
+        cache.put("user3@example.com", createContact("user3@example.com"));
+        // user1 becomes the most recently used
+        assertNotNull(cache.get("user1@example.com"));
+
+        cache.put("user4@example.com", createContact("user4@example.com"));
+        assertEquals(3, cache.snapshot().size());
+        assertNull(cache.get("user2@example.com"));
+        assertNotNull(cache.get("user1@example.com"));
+        assertNotNull(cache.get("user3@example.com"));
+        assertNotNull(cache.get("user4@example.com"));
+        assertTrue(cache.missing(Arrays.asList("user1@example.com", "user2@example.com"))
+            .contains("user2@example.com"));
+    }
+
+}
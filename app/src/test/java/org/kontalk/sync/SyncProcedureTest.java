@@ -18,8 +18,11 @@
 
 package org.kontalk.sync;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
@@ -28,6 +31,7 @@ import org.jivesoftware.smack.packet.Presence;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.jxmpp.jid.BareJid;
 import org.jxmpp.jid.Jid;
 import org.jxmpp.jid.impl.JidCreate;
 
@@ -163,4 +167,166 @@ public class SyncProcedureTest {
         assertNull(mSync.getResponse());
     }
 
+    /** Sync procedure counting the operations on its response index. */
+    private static class CountingSyncProcedure extends SyncProcedure {
+        long operations;
+
+        CountingSyncProcedure(List<String> jidList, Object notifyTo) {
+            super(jidList, notifyTo);
+        }
+
+        @Override
+        Map<BareJid, PresenceItem> createResponseIndex(int capacity) {
+            return new HashMap<BareJid, PresenceItem>(capacity) {
+                @Override
+                public PresenceItem get(Object key) {
+                    operations++;
+                    return super.get(key);
+                }
+
+                @Override
+                public PresenceItem put(BareJid key, PresenceItem value) {
+                    operations++;
+                    return super.put(key, value);
+                }
+            };
+        }
+    }
+
+    /** Index operations needed by a synthetic sync of the given number of contacts. */
+    private long runSyntheticSync(int count) {
+        List<String> jidList = new ArrayList<>(count);
+        Jid[] jids = new Jid[count];
+        Map<String, Jid> jidMap = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String jid = "user" + i + "@bench.kontalk.net";
+            jidList.add(jid);
+            jids[i] = JidCreate.bareFromOrThrowUnchecked(jid);
+            jidMap.put(jid, jids[i]);
+        }
+
+        CountingSyncProcedure sync = new CountingSyncProcedure(jidList, this);
+        RequestCollector requests = new RequestCollector();
+        mBus.register(requests);
+        try {
+            sync.onConnected(new ConnectedEvent());
+
+            // more requests are sent as responses arrive
+            for (int i = 0; i < requests.rosterMatches.size(); i++) {
+                RosterMatchRequest request = requests.rosterMatches.get(i);
+                Jid[] matched = new Jid[request.userIds.length];
+                for (int j = 0; j < matched.length; j++)
+                    matched[j] = jidMap.get(request.userIds[j]);
+                sync.onRosterMatch(new RosterMatchEvent(matched, request.id));
+            }
+            assertNotNull(requests.presenceId);
+
+            // iterate in reverse order, the worst case for a linear scan
+            for (int i = count - 1; i >= 0; i--) {
+                sync.onPresence(new PresenceEvent(jids[i], Presence.Type.available,
+                    Presence.Mode.available, 0, null, null, "user" + i, true, true,
+                    null, requests.presenceId));
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                sync.onPublicKey(new PublicKeyEvent(jids[i], new byte[] { 1 },
+                    SyncProcedure.IQ_KEYS_PACKET_ID));
+            }
+            sync.onBlocklist(new BlocklistEvent(new Jid[] { jids[count - 1] },
+                SyncProcedure.IQ_BLOCKLIST_PACKET_ID));
+
+            List<SyncProcedure.PresenceItem> response = sync.getResponse();
+            assertEquals(count, response.size());
+            // roster match order is preserved
+            for (int i = 0; i < count; i++) {
+                SyncProcedure.PresenceItem item = response.get(i);
+                assertEquals(jids[i], item.from);
+                assertTrue(item.matched);
+                assertTrue(item.presence);
+                assertNotNull(item.publicKey);
+                assertEquals(i == count - 1, item.blocked);
+            }
+            return sync.operations;
+        }
+        finally {
+            mBus.unregister(requests);
+        }
+    }
+
+    @Test
+    public void testLinearScaling() {
+        long small = runSyntheticSync(1000);
+        long large = runSyntheticSync(10000);
+        // a constant number of lookups for every event
+        assertTrue("too many operations per contact", small <= 1000 * 4 + 1);
+        // 10 times the contacts, a quadratic implementation would need 100 times as many
+        assertTrue("sync does not scale linearly", large <= small * 10);
+    }
+
+    @Test
+    public void testRosterMatchPipeline() {
+        List<String> jidList = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            jidList.add("user" + i + "@pipeline.kontalk.net");
+
+        SyncProcedure sync = new SyncProcedure(jidList, this, 2);
+        RequestCollector requests = new RequestCollector();
+        mBus.register(requests);
+        try {
+            sync.onConnected(new ConnectedEvent());
+            // no more requests than the window
+            assertEquals(2, requests.rosterMatches.size());
+
+            int sent = 0;
+            for (int i = 0; i < requests.rosterMatches.size(); i++) {
+                RosterMatchRequest request = requests.rosterMatches.get(i);
+                // slices are sent in order
+                assertEquals(jidList.get(sent), request.userIds[0]);
+                sent += request.userIds.length;
+
+                // match only the first user of each slice
+                sync.onRosterMatch(new RosterMatchEvent(new Jid[] {
+                    JidCreate.bareFromOrThrowUnchecked(request.userIds[0])
+                }, request.id));
+                assertTrue(requests.rosterMatches.size() - (i + 1) <= 2);
+
+                // matched items are handed out as they arrive
+                List<SyncProcedure.PresenceItem> matched = sync.takeMatched(0);
+                assertNotNull(matched);
+                assertEquals(1, matched.size());
+                assertEquals(request.userIds[0], matched.get(0).from.toString());
+            }
+            assertEquals(jidList.size(), sent);
+            // fast responses grow slices up to the limit
+            assertTrue(requests.rosterMatches.size() < jidList.size() / 100);
+            // presence data requested once all slices were matched
+            assertNotNull(requests.presenceId);
+        }
+        catch (InterruptedException e) {
+            fail("interrupted");
+        }
+        finally {
+            mBus.unregister(requests);
+        }
+    }
+
+    /** Collects requests posted by a sync procedure running in the test thread. */
+    public static class RequestCollector {
+        private final Thread mThread = Thread.currentThread();
+
+        final List<RosterMatchRequest> rosterMatches = new ArrayList<>();
+        String presenceId;
+
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onRosterMatchRequest(RosterMatchRequest request) {
+            if (Thread.currentThread() == mThread)
+                rosterMatches.add(request);
+        }
+
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onPresenceRequest(PresenceRequest request) {
+            if (Thread.currentThread() == mThread)
+                presenceId = request.id;
+        }
+    }
+
 }
@@ -0,0 +1,99 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AsyncLogWriterTest {
+
+    @Test
+    public void testRingDropOldest() {
+        AsyncLogWriter.Ring ring = new AsyncLogWriter.Ring(4, AsyncLogWriter.OverflowPolicy.DROP_OLDEST);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 10; i++)
+            assertTrue(ring.offer("line" + i));
+
+        String[] out = new String[10];
+        assertEquals(4, ring.drain(out));
+        assertEquals("line6", out[0]);
+        assertEquals("line9", out[3]);
+        assertEquals(6, ring.getDroppedCount());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testRingDropNewest() {
+        AsyncLogWriter.Ring ring = new AsyncLogWriter.Ring(3, AsyncLogWriter.OverflowPolicy.DROP_NEWEST);
+        // rounded up to a power of two
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i < 4, ring.offer("line" + i));
+
+        String[] out = new String[2];
+        assertEquals(2, ring.drain(out));
+        assertEquals("line0", out[0]);
+        assertEquals("line1", out[1]);
+        assertTrue(ring.offer("line10"));
+
+        out = new String[10];
+        assertEquals(3, ring.drain(out));
+        assertEquals("line2", out[0]);
+        assertEquals("line10", out[2]);
+        assertEquals(6, ring.getDroppedCount());
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testWrite() throws Exception {
+        File dir = File.createTempFile("logtest", null);
+        dir.delete();
+        dir.mkdirs();
+        File f = new File(dir, "test.log");
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(f),
+            1024, AsyncLogWriter.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 1000; i++)
+            assertTrue(w.println("line" + i));
+        w.close();
+        assertFalse(w.println("closed"));
+
+        List<String> lines = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(RotatingFileWriter.openReader(f)));
+        String line;
+        while ((line = in.readLine()) != null)
+            lines.add(line);
+        in.close();
+
+        assertEquals(1000, lines.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals("line" + i, lines.get(i));
+        assertEquals(0, w.getDroppedCount());
+        w.abort();
+        dir.delete();
+    }
+
+}
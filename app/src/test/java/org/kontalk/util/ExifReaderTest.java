@@ -0,0 +1,175 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ExifReaderTest {
+
+    @Test
+    public void testBigEndian() throws Exception {
+        byte[] jpeg = createJpeg(exifSegment(false, 6), 1000);
+        assertEquals(6, ExifReader.getOrientation(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void testLittleEndian() throws Exception {
+        byte[] jpeg = createJpeg(exifSegment(true, 8), 1000);
+        assertEquals(8, ExifReader.getOrientation(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void testNoExif() throws Exception {
+        byte[] jpeg = createJpeg(null, 1000);
+        assertEquals(ExifReader.ORIENTATION_UNDEFINED,
+            ExifReader.getOrientation(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void testNotJpeg() throws Exception {
+        byte[] png = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+        assertEquals(ExifReader.ORIENTATION_UNDEFINED,
+            ExifReader.getOrientation(new ByteArrayInputStream(png)));
+    }
+
+    @Test
+    public void testImageDataNotRead() throws Exception {
+        final int imageSize = 1024 * 1024;
+        byte[] jpeg = createJpeg(exifSegment(false, 3), imageSize);
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(jpeg));
+        assertEquals(3, ExifReader.getOrientation(in));
+        assertTrue(in.count < jpeg.length - imageSize);
+    }
+
+    /** Builds a JPEG with a JFIF header, an optional APP1 segment and fake image data. */
+    private static byte[] createJpeg(byte[] app1, int imageSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // SOI
+        out.write(0xFF);
+        out.write(0xD8);
+        // APP0 (JFIF)
+        byte[] jfif = { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 };
+        writeSegment(out, 0xE0, jfif);
+        if (app1 != null)
+            writeSegment(out, 0xE1, app1);
+        // DQT (content does not matter)
+        writeSegment(out, 0xDB, new byte[65]);
+        // SOS
+        writeSegment(out, 0xDA, new byte[10]);
+        out.write(new byte[imageSize]);
+        // EOI
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] data) {
+        out.write(0xFF);
+        out.write(marker);
+        int length = data.length + 2;
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] exifSegment(boolean littleEndian, int orientation) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('E');
+        out.write('x');
+        out.write('i');
+        out.write('f');
+        out.write(0);
+        out.write(0);
+        // TIFF header
+        out.write(littleEndian ? 'I' : 'M');
+        out.write(littleEndian ? 'I' : 'M');
+        writeShort(out, 42, littleEndian);
+        writeInt(out, 8, littleEndian);
+        // IFD0: image width and orientation
+        writeShort(out, 2, littleEndian);
+        writeShort(out, 0x0100, littleEndian);
+        writeShort(out, 4, littleEndian);
+        writeInt(out, 1, littleEndian);
+        writeInt(out, 4000, littleEndian);
+        writeShort(out, 0x0112, littleEndian);
+        writeShort(out, 3, littleEndian);
+        writeInt(out, 1, littleEndian);
+        writeShort(out, orientation, littleEndian);
+        writeShort(out, 0, littleEndian);
+        // no next IFD
+        writeInt(out, 0, littleEndian);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+        }
+        else {
+            out.write((value >> 8) & 0xFF);
+            out.write(value & 0xFF);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(out, value & 0xFFFF, true);
+            writeShort(out, (value >> 16) & 0xFFFF, true);
+        }
+        else {
+            writeShort(out, (value >> 16) & 0xFFFF, false);
+            writeShort(out, value & 0xFFFF, false);
+        }
+    }
+
+    private static final class CountingInputStream extends InputStream {
+        private final InputStream mIn;
+        long count;
+
+        CountingInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = mIn.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = mIn.read(b, off, len);
+            if (read > 0)
+                count += read;
+            return read;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MetricsTest {
+
+    @Test
+    public void testBuckets() {
+        // small values are exact
+        for (int i = 0; i < Metrics.Histogram.SUB_BUCKETS; i++) {
+            assertEquals(i, Metrics.Histogram.bucketIndex(i));
+            assertEquals(i, Metrics.Histogram.bucketUpperBound(i));
+        }
+
+        long[] values = { 8, 9, 15, 16, 17, 100, 1000, 123456, 1L << 40, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = Metrics.Histogram.bucketIndex(value);
+            long upper = Metrics.Histogram.bucketUpperBound(index);
+            assertTrue(value + " > " + upper, value <= upper);
+            // relative error within one sub-bucket
+            assertTrue(value + " -> " + upper, upper - value <= value / Metrics.Histogram.SUB_BUCKETS);
+            if (index > 0)
+                assertTrue(Metrics.Histogram.bucketUpperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        assertEquals(500, histogram.getPercentile(50), 500 / Metrics.Histogram.SUB_BUCKETS);
+        assertEquals(990, histogram.getPercentile(99), 990 / Metrics.Histogram.SUB_BUCKETS);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testRegistry() {
+        Metrics.counter("test.counter").inc();
+        Metrics.counter("test.counter").add(2);
+        assertEquals(3, Metrics.counter("test.counter").get());
+
+        Metrics.histogram("test.latency_ms").record(42);
+        Metrics.registerSource("test.source", new Metrics.Source() {
+            @Override
+            public String getStats() {
+                return "hello";
+            }
+        });
+
+        String dump = Metrics.dump();
+        assertTrue(dump.contains("test.counter: 3\n"));
+        assertTrue(dump.contains("test.latency_ms: count=1 min=42"));
+        assertTrue(dump.contains("test.source: hello\n"));
+
+        Metrics.unregisterSource("test.source");
+        assertFalse(Metrics.dump().contains("test.source"));
+    }
+
+    @Test
+    public void testTransfer() {
+        Metrics.recordTransfer("test.download", 2048000, 1000);
+        assertEquals(2048000, Metrics.counter("test.download.bytes").get());
+        assertEquals(2048, Metrics.histogram("test.download.throughput_kbs").getMax());
+    }
+
+}
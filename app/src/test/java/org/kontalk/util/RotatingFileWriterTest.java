@@ -18,7 +18,12 @@
 
 package org.kontalk.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jivesoftware.smack.util.StringUtils;
 import org.junit.Test;
@@ -28,34 +33,191 @@ import static org.junit.Assert.*;
 
 public class RotatingFileWriterTest {
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     @Test
     public void testRotate() throws Exception {
         int lineSepLen = System.getProperty("line.separator").length();
-        File f = File.createTempFile("log", null);
-        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 2);
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
+        File f = createLogFile();
+        // 3 segments of 1000 bytes: 2 lines each
+        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 3);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            lines.add(StringUtils.randomString(512));
+            w.println(lines.get(i));
+        }
         w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
-        w.println(StringUtils.randomString(512));
+        assertEquals(2, w.getRotationCount());
+        assertEquals((512*4)+(lineSepLen*4), readLog(f).length());
+
+        for (int i = 4; i < 6; i++) {
+            lines.add(StringUtils.randomString(512));
+            w.println(lines.get(i));
+        }
         w.flush();
-        assertEquals((512*5)+(lineSepLen*5), f.length());
-        w.println(StringUtils.randomString(512));
-        // rotation threshold
+        assertEquals(3, w.getRotationCount());
+        // oldest segment deleted
+        assertEquals((512*4)+(lineSepLen*4), readLog(f).length());
+
+        lines.add(StringUtils.randomString(512));
+        w.println(lines.get(6));
         w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
-        w.println(StringUtils.randomString(512));
+        assertEquals((512*5)+(lineSepLen*5), readLog(f).length());
+        assertEquals(joinLines(lines.subList(2, 7)), readLog(f));
+
+        w.close();
+
+        // reopening continues the last segment
+        w = new RotatingFileWriter(f, 3000, 3);
+        lines.add(StringUtils.randomString(512));
+        w.println(lines.get(7));
         w.flush();
-        assertEquals((512*5)+(lineSepLen*5), f.length());
+        assertEquals(1, w.getRotationCount());
+        assertEquals(joinLines(lines.subList(4, 8)), readLog(f));
+
+        // export
+        File export = createLogFile();
+        assertEquals((512*4)+(lineSepLen*4), RotatingFileWriter.export(f, export));
+        assertEquals((512*4)+(lineSepLen*4), export.length());
+        assertTrue(export.delete());
+
+        w.abort();
+        assertEquals(0, readLog(f).length());
+    }
+
+    @Test
+    public void testMultibyteSize() throws Exception {
+        File f = createLogFile();
+        // 3 segments of 1000 bytes
+        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 3);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            line.append('\u00e8');
+        // 600 bytes per line in UTF-8: rotate after the second line
+        w.println(line.toString());
+        assertEquals(0, w.getRotationCount());
+        w.println(line.toString());
+        assertEquals(1, w.getRotationCount());
+        w.abort();
+
+        assertEquals(1, RotatingFileWriter.getEncodedLength("a"));
+        assertEquals(2, RotatingFileWriter.getEncodedLength("\u00e8"));
+        assertEquals(3, RotatingFileWriter.getEncodedLength("\u20ac"));
+        assertEquals(4, RotatingFileWriter.getEncodedLength("\ud83d\ude00"));
+    }
+
+    @Test
+    public void testRotateFailure() throws Exception {
+        int lineSepLen = System.getProperty("line.separator").length();
+        File f = createLogFile();
+        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 3);
+        // block the next segment
+        File next = new File(f.getParentFile(), f.getName() + ".1");
+        assertTrue(next.mkdir());
+
+        w.println(StringUtils.randomString(512));
+        try {
+            w.println(StringUtils.randomString(512));
+            fail("rotation should have failed");
+        }
+        catch (IOException expected) {
+        }
+        assertEquals(0, w.getRotationCount());
+
+        // current segment still usable
+        assertTrue(next.delete());
         w.println(StringUtils.randomString(512));
-        // rotation threshold
         w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
+        assertEquals(1, w.getRotationCount());
+        assertEquals((512*3)+(lineSepLen*3), readLog(f).length());
+        w.abort();
+    }
+
+    @Test
+    public void testExportSurvivesReopen() throws Exception {
+        File f = createLogFile();
+        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 3);
+        w.println(StringUtils.randomString(512));
         w.close();
-        f.delete();
+
+        File export = new File(f.getParentFile(), "test-export.log");
+        assertTrue(RotatingFileWriter.export(f, export) > 0);
+        w = new RotatingFileWriter(f, 3000, 3);
+        assertTrue(export.exists());
+        w.abort();
+        assertTrue(export.delete());
+    }
+
+    @Test
+    public void testRotationWorkIndependentOfSize() throws Exception {
+        // rotating a big log must do the same work as rotating a small one
+        assertRotationDoesNotCopy(3000);
+        assertRotationDoesNotCopy(3 * 1024 * 1024);
+    }
+
+    /**
+     * Checks that rotation only starts a new empty segment and deletes the
+     * oldest one, without rewriting any full segment.
+     */
+    private void assertRotationDoesNotCopy(long maxSize) throws Exception {
+        File f = createLogFile();
+        RotatingFileWriter w = new RotatingFileWriter(f, maxSize, 3);
+        String line = StringUtils.randomString(512);
+        // fill all segments: 0 is deleted, 1 and 2 are full, 3 is empty
+        while (w.getRotationCount() < 3)
+            w.println(line);
+        w.flush();
+
+        File oldest = segment(f, 1);
+        File full = segment(f, 2);
+        File current = segment(f, 3);
+        assertFalse(segment(f, 0).exists());
+        assertEquals(0, current.length());
+
+        // mark full segments to detect any write
+        long mtime = 1000000000000L;
+        assertTrue(oldest.setLastModified(mtime));
+        assertTrue(full.setLastModified(mtime));
+        long fullLength = full.length();
+
+        while (w.getRotationCount() < 4)
+            w.println(line);
+        w.flush();
+
+        assertFalse(oldest.exists());
+        assertEquals(mtime, full.lastModified());
+        assertEquals(fullLength, full.length());
+        assertEquals(0, segment(f, 4).length());
+        w.abort();
+    }
+
+    private static File segment(File logFile, long seq) {
+        return new File(logFile.toString() + "." + seq);
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private File createLogFile() throws IOException {
+        File dir = File.createTempFile("logtest", null);
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return new File(dir, "test.log");
+    }
+
+    private String readLog(File f) throws IOException {
+        InputStream in = RotatingFileWriter.openReader(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) > 0)
+            out.write(buffer, 0, len);
+        in.close();
+        return out.toString();
+    }
+
+    private static String joinLines(List<String> lines) {
+        StringBuilder out = new StringBuilder();
+        for (String line : lines)
+            out.append(line).append(System.getProperty("line.separator"));
+        return out.toString();
     }
 
 }
@@ -0,0 +1,134 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2018 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ThumbnailCacheTest {
+
+    private File mDir;
+    private File mCacheDir;
+
+    @Before
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("thumbtest", null);
+        mDir.delete();
+        mDir.mkdirs();
+        mDir.deleteOnExit();
+        mCacheDir = new File(mDir, "thumbnails");
+    }
+
+    private File createFile(String name, int size, int fill) throws IOException {
+        File file = new File(mDir, name);
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) fill);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private boolean isCached(ThumbnailCache cache, String key) {
+        return cache.get(key, new File(mDir, "out"));
+    }
+
+    @Test
+    public void testGetPut() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(mCacheDir, 1000);
+        File dest = new File(mDir, "dest");
+        assertFalse(cache.get("a.png", dest));
+
+        cache.put("a.png", createFile("a", 100, 1));
+        assertTrue(cache.get("a.png", dest));
+        assertEquals(100, dest.length());
+
+        // replacing an entry doesn't count it twice
+        cache.put("a.png", createFile("a2", 200, 2));
+        assertTrue(cache.get("a.png", dest));
+        assertEquals(200, dest.length());
+        assertTrue(cache.toString().contains("disk=1 "));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(mCacheDir, 300);
+        cache.put("a.png", createFile("a", 100, 1));
+        cache.put("b.png", createFile("b", 100, 2));
+        cache.put("c.png", createFile("c", 100, 3));
+        // a becomes the most recently used
+        assertTrue(isCached(cache, "a.png"));
+
+        cache.put("d.png", createFile("d", 100, 4));
+        assertFalse(isCached(cache, "b.png"));
+        assertFalse(new File(mCacheDir, "b.png").exists());
+        assertTrue(isCached(cache, "a.png"));
+        assertTrue(isCached(cache, "c.png"));
+        assertTrue(isCached(cache, "d.png"));
+
+        // larger than the whole budget
+        cache.put("e.png", createFile("e", 400, 5));
+        assertFalse(isCached(cache, "e.png"));
+    }
+
+    @Test
+    public void testOrderAcrossRestarts() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(mCacheDir, 1000);
+        cache.put("a.png", createFile("a", 100, 1));
+        cache.put("b.png", createFile("b", 100, 2));
+        cache.put("c.png", createFile("c", 100, 3));
+        // usage order is kept through modification times
+        assertTrue(new File(mCacheDir, "a.png").setLastModified(3000000));
+        assertTrue(new File(mCacheDir, "b.png").setLastModified(1000000));
+        assertTrue(new File(mCacheDir, "c.png").setLastModified(2000000));
+        // leftover from an interrupted write
+        createFile("thumbnails/d.png.tmp", 100, 4);
+
+        // smaller budget: the least recently used entry goes
+        cache = new ThumbnailCache(mCacheDir, 200);
+        assertFalse(isCached(cache, "b.png"));
+        assertTrue(isCached(cache, "c.png"));
+        assertTrue(isCached(cache, "a.png"));
+        assertFalse(new File(mCacheDir, "d.png.tmp").exists());
+    }
+
+    @Test
+    public void testDestinationRewrite() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(mCacheDir, 1000);
+        File thumbnail = createFile("a", 100, 1);
+        cache.put("a.png", thumbnail);
+
+        // writers delete the file first, the cached entry must not change
+        assertTrue(thumbnail.delete());
+        createFile("a", 50, 2);
+        File dest = new File(mDir, "dest");
+        assertTrue(cache.get("a.png", dest));
+        assertEquals(100, dest.length());
+    }
+
+}